@@ -0,0 +1,128 @@
+package com.siemens.ct.exi.maven;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import com.siemens.ct.exi.GrammarFactory;
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.GrammarsPrecompiler;
+
+/**
+ * Precompiles XML schemas into grammar snapshots (or JSON grammars) during
+ * <code>process-resources</code>. By default the output is written to
+ * <code>META-INF/exi-grammars/</code> of the build output directory, is
+ * packaged with the classes and can be loaded by
+ * {@link GrammarFactory#createPrecompiledGrammars(String)}.
+ * 
+ * <p>
+ * Schemas are taken from a manifest (one schema location per line) if set,
+ * otherwise all <code>*.xsd</code> files of the schema directory are
+ * compiled. Unchanged schemas are not compiled again.
+ * </p>
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+@Mojo(name = "precompile", defaultPhase = LifecyclePhase.PROCESS_RESOURCES, threadSafe = true)
+public class PrecompileGrammarsMojo extends AbstractMojo {
+
+	/**
+	 * Directory searched recursively for <code>*.xsd</code> files, the
+	 * schemaId is the path relative to this directory
+	 */
+	@Parameter(defaultValue = "${basedir}/src/main/xsd")
+	protected File schemaDirectory;
+
+	/**
+	 * Optional manifest with one schema location per line, the schemaId is
+	 * the location as written
+	 */
+	@Parameter
+	protected File manifest;
+
+	@Parameter(defaultValue = "${project.build.outputDirectory}/"
+			+ GrammarsPrecompiler.CLASSPATH_DIRECTORY)
+	protected File outputDirectory;
+
+	/**
+	 * SNAPSHOT or JSON
+	 */
+	@Parameter(defaultValue = "SNAPSHOT")
+	protected GrammarsPrecompiler.Format format;
+
+	/**
+	 * Number of schemas compiled in parallel, 0 for one per core
+	 */
+	@Parameter(defaultValue = "0")
+	protected int threads;
+
+	@Parameter(property = "exi-grammars.skip", defaultValue = "false")
+	protected boolean skip;
+
+	public void execute() throws MojoExecutionException {
+		if (skip) {
+			getLog().info("Grammar precompilation skipped");
+			return;
+		}
+
+		try {
+			Map<String, String> schemas;
+			if (manifest != null) {
+				schemas = GrammarsPrecompiler.readManifest(manifest);
+			} else if (schemaDirectory.isDirectory()) {
+				schemas = GrammarsPrecompiler.listDirectory(schemaDirectory);
+			} else {
+				getLog().info("No schema directory " + schemaDirectory);
+				return;
+			}
+
+			GrammarsPrecompiler gp = new GrammarsPrecompiler(outputDirectory);
+			gp.setFormat(format);
+			if (threads > 0) {
+				gp.setNumberOfThreads(threads);
+			}
+			int compiled = gp.precompile(schemas);
+			getLog().info(
+					"Precompiled " + compiled + " of " + schemas.size()
+							+ " schemas (" + (schemas.size() - compiled)
+							+ " unchanged) to " + outputDirectory);
+		} catch (IOException e) {
+			throw new MojoExecutionException("Grammar precompilation failed",
+					e);
+		} catch (EXIException e) {
+			throw new MojoExecutionException("Grammar precompilation failed",
+					e);
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.siemens.ct.exi.maven;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import junit.framework.TestCase;
+
+import com.siemens.ct.exi.grammars.GrammarsPrecompiler;
+import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
+
+public class PrecompileGrammarsMojoTest extends TestCase {
+
+	String schemaA = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+			+ " <xs:element name='a' type='xs:string' />" + "</xs:schema>";
+
+	File schemaDirectory;
+	File classes;
+
+	protected void setUp() throws IOException {
+		schemaDirectory = createDirectory("xsd");
+		classes = createDirectory("classes");
+		OutputStream os = new FileOutputStream(new File(schemaDirectory,
+				"a.xsd"));
+		os.write(schemaA.getBytes("UTF-8"));
+		os.close();
+	}
+
+	protected static File createDirectory(String name) throws IOException {
+		File dir = File.createTempFile(name, "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	protected PrecompileGrammarsMojo createMojo() {
+		// configured as by the defaults of the plugin descriptor
+		PrecompileGrammarsMojo mojo = new PrecompileGrammarsMojo();
+		mojo.schemaDirectory = schemaDirectory;
+		mojo.outputDirectory = new File(classes,
+				GrammarsPrecompiler.CLASSPATH_DIRECTORY);
+		mojo.format = GrammarsPrecompiler.Format.SNAPSHOT;
+		return mojo;
+	}
+
+	public void testPrecompile() throws Exception {
+		createMojo().execute();
+
+		ClassLoader cl = new URLClassLoader(new URL[] { classes.toURI()
+				.toURL() }, null);
+		SchemaInformedGrammars g = GrammarsPrecompiler
+				.loadPrecompiledGrammars("a.xsd", cl);
+		assertNotNull(g);
+		assertNotNull(g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("a"));
+
+		// up to date, executed again without changes
+		File out = new GrammarsPrecompiler(createMojo().outputDirectory)
+				.getOutputFile("a.xsd");
+		// whole seconds, file systems may not keep milliseconds
+		long lastModified = (out.lastModified() / 1000 - 10) * 1000;
+		assertTrue(out.setLastModified(lastModified));
+		createMojo().execute();
+		assertEquals(out, new GrammarsPrecompiler(createMojo().outputDirectory)
+				.getOutputFile("a.xsd"));
+		// not written again
+		assertEquals(lastModified, out.lastModified());
+		assertNotNull(GrammarsPrecompiler.loadPrecompiledGrammars("a.xsd", cl));
+	}
+
+	public void testSkip() throws Exception {
+		PrecompileGrammarsMojo mojo = createMojo();
+		mojo.skip = true;
+		mojo.execute();
+		assertFalse(new File(classes, GrammarsPrecompiler.CLASSPATH_DIRECTORY)
+				.exists());
+	}
+
+	public void testNoSchemaDirectory() throws Exception {
+		PrecompileGrammarsMojo mojo = createMojo();
+		mojo.schemaDirectory = new File(schemaDirectory, "missing");
+		mojo.execute();
+		assertFalse(new File(classes, GrammarsPrecompiler.CLASSPATH_DIRECTORY)
+				.exists());
+	}
+
+}
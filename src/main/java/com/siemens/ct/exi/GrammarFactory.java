@@ -23,12 +23,22 @@ package com.siemens.ct.exi;
  * 
  */
 
+import java.io.File;
 import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import javax.xml.namespace.QName;
+
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
 import org.apache.xerces.xni.parser.XMLEntityResolver;
 
 import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.GrammarCache;
 import com.siemens.ct.exi.grammars.Grammars;
+import com.siemens.ct.exi.grammars.GrammarsPrecompiler;
 import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
 import com.siemens.ct.exi.grammars.SchemaLessGrammars;
 import com.siemens.ct.exi.grammars.XSDGrammarsBuilder;
@@ -36,6 +46,12 @@ import com.siemens.ct.exi.grammars.XSDGrammarsBuilder;
 /**
  * Class allows creating EXI <code>Grammars</code>s from different sources.
  * 
+ * <p>
+ * A grammar factory can be shared among threads. Each grammar creation
+ * borrows an <code>XSDGrammarsBuilder</code> from a pool so that grammars for
+ * different schemas can be built in parallel.
+ * </p>
+ * 
  * @author Daniel.Peintner.EXT@siemens.com
  * @author Joerg.Heuer@siemens.com
  * 
@@ -44,10 +60,25 @@ import com.siemens.ct.exi.grammars.XSDGrammarsBuilder;
 
 public class GrammarFactory {
 
-	protected XSDGrammarsBuilder grammarBuilder;
+	// idle builders, a builder is used by one thread at a time
+	protected final ConcurrentLinkedQueue<XSDGrammarsBuilder> grammarBuilders;
+
+	// upper limit of idle builders kept (builders hold on to the last XSModel)
+	protected final int maximumIdleGrammarBuilders;
+
+	// optional, null if grammars are built for each request
+	protected volatile GrammarCache grammarCache;
+
+	// built-in XML Schema types only, built once, never handed out
+	private static volatile SchemaInformedGrammars xsdTypesOnlyGrammars;
+
+	// optional, parsed schema documents shared among all builders
+	protected volatile XMLGrammarPool grammarPool;
 
 	protected GrammarFactory() {
-		grammarBuilder = XSDGrammarsBuilder.newInstance();
+		grammarBuilders = new ConcurrentLinkedQueue<XSDGrammarsBuilder>();
+		maximumIdleGrammarBuilders = Runtime.getRuntime()
+				.availableProcessors();
 	}
 
 	/**
@@ -59,6 +90,68 @@ public class GrammarFactory {
 		return new GrammarFactory();
 	}
 
+	/**
+	 * Borrows a builder from the pool, it must be handed back by
+	 * {@link #releaseGrammarBuilder(XSDGrammarsBuilder)}. Replaces the former
+	 * single <code>grammarBuilder</code> field, subclasses configuring builders
+	 * should override this method.
+	 * 
+	 * @return grammar builder used by the calling thread only
+	 */
+	protected XSDGrammarsBuilder acquireGrammarBuilder() {
+		XSDGrammarsBuilder grammarBuilder = grammarBuilders.poll();
+		if (grammarBuilder == null) {
+			grammarBuilder = XSDGrammarsBuilder.newInstance();
+		}
+		grammarBuilder.setGrammarPool(grammarPool);
+		return grammarBuilder;
+	}
+
+	protected void releaseGrammarBuilder(XSDGrammarsBuilder grammarBuilder) {
+		// Note: size() is not constant time but the queue is short
+		if (grammarBuilders.size() < maximumIdleGrammarBuilders) {
+			grammarBuilders.offer(grammarBuilder);
+		}
+	}
+
+	/**
+	 * Sets the cache used for grammars created by schema location. Each call
+	 * returns its own grammars instance sharing the cached grammar graph.
+	 * 
+	 * @param grammarCache grammar cache or null to disable caching
+	 */
+	public void setGrammarCache(GrammarCache grammarCache) {
+		this.grammarCache = grammarCache;
+	}
+
+	/**
+	 * 
+	 * @return grammar cache or null if caching is disabled
+	 */
+	public GrammarCache getGrammarCache() {
+		return grammarCache;
+	}
+
+	/**
+	 * Sets a pool of parsed schema documents used by all grammar creations,
+	 * e.g. a {@link com.siemens.ct.exi.grammars.SchemaGrammarPool}, so that
+	 * shared imports are parsed only once.
+	 * 
+	 * <p>
+	 * Note: documents taken from the pool are not checked by the grammar
+	 * cache for modifications.
+	 * </p>
+	 * 
+	 * @param grammarPool Xerces grammar pool or null
+	 */
+	public void setGrammarPool(XMLGrammarPool grammarPool) {
+		this.grammarPool = grammarPool;
+	}
+
+	public XMLGrammarPool getGrammarPool() {
+		return grammarPool;
+	}
+
 	/**
 	 * Schema information is generated for processing the EXI body.
 	 * 
@@ -82,12 +175,124 @@ public class GrammarFactory {
 			XMLEntityResolver entityResolver) throws EXIException {
 		if (xsdLocation == null || xsdLocation.equals("")) {
 			throw new EXIException("SchemaLocation not specified correctly!");
+		}
+		GrammarCache grammarCache = this.grammarCache;
+		if (grammarCache != null) {
+			return grammarCache.getGrammars(xsdLocation, entityResolver,
+					new GrammarCache.GrammarsLoader() {
+						public SchemaInformedGrammars loadGrammars(
+								String xsdLocation,
+								XMLEntityResolver entityResolver)
+								throws EXIException {
+							return buildGrammars(xsdLocation, entityResolver);
+						}
+					});
 		} else {
+			return buildGrammars(xsdLocation, entityResolver);
+		}
+	}
+
+	protected SchemaInformedGrammars buildGrammars(String xsdLocation,
+			XMLEntityResolver entityResolver) throws EXIException {
+		XSDGrammarsBuilder grammarBuilder = acquireGrammarBuilder();
+		try {
 			// System.out.println("Grammar for: " + xsdLocation);
 			grammarBuilder.loadGrammars(xsdLocation, entityResolver);
 			SchemaInformedGrammars g = grammarBuilder.toGrammars();
 			g.setSchemaId(xsdLocation);
 			return g;
+		} finally {
+			releaseGrammarBuilder(grammarBuilder);
+		}
+	}
+
+	/**
+	 * Loads grammars precompiled at build time (see
+	 * {@link GrammarsPrecompiler}) from the classpath of the context class
+	 * loader. If there are no precompiled grammars for the schemaId, the
+	 * schemaId is taken as schema location and grammars are built as by
+	 * {@link #createGrammars(String)}.
+	 * 
+	 * @param schemaId schemaId used at precompile time
+	 * @return schema-informed EXI grammars
+	 * @throws EXIException if the schemaId is neither precompiled nor a
+	 *             schema location, or the grammars cannot be built
+	 */
+	public Grammars createPrecompiledGrammars(String schemaId)
+			throws EXIException {
+		ClassLoader classLoader = Thread.currentThread()
+				.getContextClassLoader();
+		if (classLoader == null) {
+			classLoader = GrammarFactory.class.getClassLoader();
+		}
+		return createPrecompiledGrammars(schemaId, classLoader);
+	}
+
+	/**
+	 * Loads grammars precompiled at build time from the classpath of the
+	 * given class loader, falling back to building the grammars from the
+	 * schemaId as schema location (an existing file or an absolute URL).
+	 * 
+	 * @param schemaId schemaId used at precompile time
+	 * @param classLoader class loader of the precompiled grammars
+	 * @return schema-informed EXI grammars
+	 * @throws EXIException if the schemaId is neither precompiled nor a
+	 *             schema location, or the grammars cannot be built
+	 */
+	public Grammars createPrecompiledGrammars(String schemaId,
+			ClassLoader classLoader) throws EXIException {
+		SchemaInformedGrammars g = GrammarsPrecompiler.loadPrecompiledGrammars(
+				schemaId, classLoader);
+		if (g != null) {
+			return g;
+		}
+		if (!isSchemaLocation(schemaId)) {
+			throw new EXIException("No precompiled grammars for schemaId "
+					+ schemaId + " in " + GrammarsPrecompiler.CLASSPATH_DIRECTORY
+					+ " and no such schema location");
+		}
+		return createGrammars(schemaId);
+	}
+
+	private static boolean isSchemaLocation(String schemaId) {
+		if (new File(schemaId).isFile()) {
+			return true;
+		}
+		try {
+			// absolute URL, e.g. file: or http:
+			new URL(schemaId);
+			return true;
+		} catch (MalformedURLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Schema information is generated for processing the EXI body. Only the
+	 * components reachable from the given global elements are taken into
+	 * account, see {@link XSDGrammarsBuilder#setRootElements(Set)}. Such
+	 * grammars are not cached and have no schemaId set.
+	 * 
+	 * @param xsdLocation file location
+	 * @param entityResolver application can register XSD resolver
+	 * @param rootElements qualified names of global root elements
+	 * @return schema-informed EXI grammars
+	 * @throws EXIException EXI exception
+	 */
+	public Grammars createGrammars(String xsdLocation,
+			XMLEntityResolver entityResolver, Set<QName> rootElements)
+			throws EXIException {
+		if (xsdLocation == null || xsdLocation.equals("")) {
+			throw new EXIException("SchemaLocation not specified correctly!");
+		}
+		XSDGrammarsBuilder grammarBuilder = acquireGrammarBuilder();
+		try {
+			grammarBuilder.loadGrammars(xsdLocation, entityResolver);
+			grammarBuilder.setRootElements(rootElements);
+			return grammarBuilder.toGrammars();
+		} finally {
+			grammarBuilder.setRootElements(null);
+			releaseGrammarBuilder(grammarBuilder);
 		}
 	}
 
@@ -112,10 +317,15 @@ public class GrammarFactory {
 	 */
 	public Grammars createGrammars(InputStream is,
 			XMLEntityResolver entityResolver) throws EXIException {
-		grammarBuilder.loadGrammars(is, entityResolver);
-		SchemaInformedGrammars g = grammarBuilder.toGrammars();
-		g.setSchemaId("No-Schema-ID-Set");
-		return g;
+		XSDGrammarsBuilder grammarBuilder = acquireGrammarBuilder();
+		try {
+			grammarBuilder.loadGrammars(is, entityResolver);
+			SchemaInformedGrammars g = grammarBuilder.toGrammars();
+			g.setSchemaId("No-Schema-ID-Set");
+			return g;
+		} finally {
+			releaseGrammarBuilder(grammarBuilder);
+		}
 	}
 
 	/**
@@ -123,10 +333,32 @@ public class GrammarFactory {
 	 * however, the built-in XML schema types are available for use in the EXI
 	 * body.
 	 * 
+	 * <p>
+	 * The grammars are built once per JVM. Each call returns a new instance
+	 * (e.g., with its own schemaId) sharing the grammar graph, which is not
+	 * modified by EXI processing.
+	 * </p>
+	 * 
 	 * @return built-in XSD EXI grammars
 	 * @throws EXIException EXI exception
 	 */
 	public Grammars createXSDTypesOnlyGrammars() throws EXIException {
+		SchemaInformedGrammars g = xsdTypesOnlyGrammars;
+		if (g == null) {
+			synchronized (GrammarFactory.class) {
+				g = xsdTypesOnlyGrammars;
+				if (g == null) {
+					g = buildXSDTypesOnlyGrammars();
+					xsdTypesOnlyGrammars = g;
+				}
+			}
+		}
+		return GrammarCache.copyOf(g);
+	}
+
+	private static SchemaInformedGrammars buildXSDTypesOnlyGrammars()
+			throws EXIException {
+		XSDGrammarsBuilder grammarBuilder = XSDGrammarsBuilder.newInstance();
 		grammarBuilder.loadXSDTypesOnlyGrammars();
 		SchemaInformedGrammars g = grammarBuilder.toGrammars();
 		g.setBuiltInXMLSchemaTypesOnly(true); // builtInXMLSchemaTypesOnly
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.siemens.ct.exi.grammars;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.xerces.xni.XMLResourceIdentifier;
+import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.parser.XMLEntityResolver;
+import org.apache.xerces.xni.parser.XMLInputSource;
+
+/**
+ * Entity resolver that keeps resolved schema documents (main, included and
+ * imported documents) in memory so that repeated grammar builds do not read
+ * them from disk or network again.
+ * 
+ * <p>
+ * Cached documents are validated according to the {@link Validation} mode:
+ * not at all, by modification time (file locations only, other locations are
+ * assumed unchanged) or by content digest (see {@link Validation}). The total
+ * size of cached documents
+ * can be bounded, least recently used documents are dropped first.
+ * </p>
+ * 
+ * <p>
+ * Documents that the application resolver provides as stream are passed
+ * through without caching. The resolver can be shared among threads.
+ * </p>
+ * 
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public class CachingEntityResolver implements XMLEntityResolver {
+
+	public enum Validation {
+		/** cached documents are never checked */
+		NONE,
+		/**
+		 * file locations are checked by modification time, other locations
+		 * are assumed unchanged
+		 */
+		MODIFICATION_TIME,
+		/**
+		 * Documents are read again and compared by content digest, which
+		 * costs a full read and SHA-1 computation per document. To keep cache
+		 * hits cheap this happens only once the revalidation interval has
+		 * elapsed (see {@link CachingEntityResolver#setRevalidationInterval})
+		 * or, for file locations, immediately when modification time or
+		 * length changed. Within the interval a file rewritten with the same
+		 * length and modification time is not detected.
+		 */
+		CONTENT_DIGEST
+	}
+
+	public static final long UNBOUNDED = -1L;
+
+	protected final XMLEntityResolver entityResolver;
+	protected final Validation validation;
+	protected final long maximumBytes;
+
+	// negative: only files with changed time stamp or length are read again
+	protected volatile long revalidationInterval = GrammarCache.DEFAULT_REVALIDATION_INTERVAL;
+
+	// system id --> document (access-order for LRU eviction)
+	protected final Map<String, CachedDocument> documents;
+	protected long bytes;
+
+	public CachingEntityResolver() {
+		this(null, Validation.MODIFICATION_TIME, UNBOUNDED);
+	}
+
+	/**
+	 * @param entityResolver
+	 *            application resolver, may be null
+	 * @param validation
+	 *            how cached documents are checked for modifications
+	 * @param maximumBytes
+	 *            upper limit of cached bytes or {@link #UNBOUNDED}
+	 */
+	public CachingEntityResolver(XMLEntityResolver entityResolver,
+			Validation validation, long maximumBytes) {
+		this.entityResolver = entityResolver;
+		this.validation = validation;
+		this.maximumBytes = maximumBytes;
+		this.documents = new LinkedHashMap<String, CachedDocument>(16, 0.75f,
+				true);
+	}
+
+	public Validation getValidation() {
+		return validation;
+	}
+
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	/**
+	 * Sets how often cached documents are read again and compared by content
+	 * digest ({@link Validation#CONTENT_DIGEST} only)
+	 * 
+	 * @param revalidationInterval
+	 *            milliseconds, 0 for every resolve and a negative value for
+	 *            never (files with changed modification time or length are
+	 *            still read again)
+	 */
+	public void setRevalidationInterval(long revalidationInterval) {
+		this.revalidationInterval = revalidationInterval;
+	}
+
+	public long getRevalidationInterval() {
+		return revalidationInterval;
+	}
+
+	public synchronized int size() {
+		return documents.size();
+	}
+
+	public synchronized long getNumberOfBytes() {
+		return bytes;
+	}
+
+	public synchronized void clear() {
+		documents.clear();
+		bytes = 0;
+	}
+
+	public synchronized void remove(String systemId) {
+		CachedDocument cd = documents.remove(systemId);
+		if (cd != null) {
+			bytes -= cd.content.length;
+		}
+	}
+
+	public XMLInputSource resolveEntity(XMLResourceIdentifier resourceIdentifier)
+			throws XNIException, IOException {
+		XMLInputSource xis = null;
+		if (entityResolver != null) {
+			xis = entityResolver.resolveEntity(resourceIdentifier);
+			if (xis != null
+					&& (xis.getByteStream() != null || xis
+							.getCharacterStream() != null)) {
+				// provided by application
+				return xis;
+			}
+		}
+
+		String systemId = GrammarCache.getSystemId(resourceIdentifier, xis);
+		if (systemId == null) {
+			// e.g., import by namespace only
+			return xis;
+		}
+
+		CachedDocument cd;
+		synchronized (this) {
+			cd = documents.get(systemId);
+		}
+		if (cd == null || !isUpToDate(cd)) {
+			cd = load(systemId);
+			put(cd);
+		}
+
+		String publicId = xis == null ? resourceIdentifier.getPublicId() : xis
+				.getPublicId();
+		String baseSystemId = xis == null ? resourceIdentifier
+				.getBaseSystemId() : xis.getBaseSystemId();
+		String encoding = xis == null ? null : xis.getEncoding();
+		return new XMLInputSource(publicId, systemId, baseSystemId,
+				new ByteArrayInputStream(cd.content), encoding);
+	}
+
+	protected CachedDocument load(String systemId) throws IOException {
+		File f = getFile(systemId);
+		// modification time before reading, changes while reading are
+		// detected next time
+		long lastModified = f == null ? 0L : f.lastModified();
+		long length = f == null ? 0L : f.length();
+		byte[] content = GrammarCache.readFully(new URL(systemId)
+				.openStream());
+		String digest = validation == Validation.CONTENT_DIGEST ? digest(content)
+				: null;
+		return new CachedDocument(systemId, content, lastModified, length,
+				digest);
+	}
+
+	protected boolean isUpToDate(CachedDocument cd) {
+		switch (validation) {
+		case MODIFICATION_TIME:
+			File f = getFile(cd.systemId);
+			return f == null || f.lastModified() == cd.lastModified;
+		case CONTENT_DIGEST:
+			File file = getFile(cd.systemId);
+			if (file != null
+					&& (file.lastModified() != cd.lastModified || file.length() != cd.length)) {
+				// touched, loading again refreshes digest and time stamps
+				return false;
+			}
+			long now = System.currentTimeMillis();
+			if (revalidationInterval < 0
+					|| now - cd.lastValidated < revalidationInterval) {
+				return true;
+			}
+			try {
+				if (cd.digest.equals(digest(GrammarCache
+						.readFully(new URL(cd.systemId).openStream())))) {
+					cd.lastValidated = now;
+					return true;
+				}
+				return false;
+			} catch (IOException e) {
+				return false;
+			}
+		default:
+			return true;
+		}
+	}
+
+	protected synchronized void put(CachedDocument cd) {
+		if (maximumBytes != UNBOUNDED && cd.content.length > maximumBytes) {
+			// too large, never cached
+			return;
+		}
+		CachedDocument old = documents.put(cd.systemId, cd);
+		if (old != null) {
+			bytes -= old.content.length;
+		}
+		bytes += cd.content.length;
+
+		if (maximumBytes != UNBOUNDED) {
+			Iterator<CachedDocument> iter = documents.values().iterator();
+			while (bytes > maximumBytes && iter.hasNext()) {
+				CachedDocument eldest = iter.next();
+				if (eldest != cd) {
+					iter.remove();
+					bytes -= eldest.content.length;
+				}
+			}
+		}
+	}
+
+	static String digest(byte[] content) {
+		return GrammarCache.toHex(GrammarCache.newDigest().digest(content));
+	}
+
+	static File getFile(String systemId) {
+		if (!systemId.startsWith("file:")) {
+			return null;
+		}
+		try {
+			return new File(new URI(systemId));
+		} catch (Exception e) {
+			// e.g., not hierarchical or with fragment
+			return null;
+		}
+	}
+
+	/*
+	 * Internal Helper Class: CachedDocument
+	 */
+	static class CachedDocument {
+		final String systemId;
+		final byte[] content;
+		final long lastModified;
+		final long length;
+		final String digest;
+		volatile long lastValidated;
+
+		CachedDocument(String systemId, byte[] content, long lastModified,
+				long length, String digest) {
+			this.systemId = systemId;
+			this.content = content;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.digest = digest;
+			this.lastValidated = System.currentTimeMillis();
+		}
+	}
+
+}
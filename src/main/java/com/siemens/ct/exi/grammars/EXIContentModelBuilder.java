@@ -30,8 +30,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.xerces.impl.xs.SchemaGrammar;
 import org.apache.xerces.impl.xs.SubstitutionGroupHandler;
@@ -44,6 +49,7 @@ import org.apache.xerces.util.XMLResourceIdentifierImpl;
 import org.apache.xerces.xni.QName;
 import org.apache.xerces.xni.XMLResourceIdentifier;
 import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
 import org.apache.xerces.xni.parser.XMLEntityResolver;
 import org.apache.xerces.xni.parser.XMLErrorHandler;
 import org.apache.xerces.xni.parser.XMLInputSource;
@@ -61,6 +67,7 @@ import org.apache.xerces.xs.XSObject;
 import org.apache.xerces.xs.XSObjectList;
 import org.apache.xerces.xs.XSParticle;
 import org.apache.xerces.xs.XSTerm;
+import org.apache.xerces.xs.XSTypeDefinition;
 import org.apache.xerces.xs.XSWildcard;
 
 import com.siemens.ct.exi.exceptions.EXIException;
@@ -68,11 +75,14 @@ import com.siemens.ct.exi.grammars.event.AttributeGeneric;
 import com.siemens.ct.exi.grammars.event.CharactersGeneric;
 import com.siemens.ct.exi.grammars.event.EndElement;
 import com.siemens.ct.exi.grammars.event.Event;
+import com.siemens.ct.exi.grammars.event.EventType;
 import com.siemens.ct.exi.grammars.event.StartElement;
 import com.siemens.ct.exi.grammars.event.StartElementGeneric;
 import com.siemens.ct.exi.grammars.event.StartElementNS;
+import com.siemens.ct.exi.grammars.grammar.Grammar;
 import com.siemens.ct.exi.grammars.grammar.SchemaInformedElement;
 import com.siemens.ct.exi.grammars.grammar.SchemaInformedGrammar;
+import com.siemens.ct.exi.grammars.production.Production;
 import com.siemens.ct.exi.util.sort.QNameSort;
 import com.siemens.ct.exi.util.sort.StartElementSort;
 
@@ -96,6 +106,11 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 
 	protected static final boolean forUPA = false;
 
+	protected static final String GRAMMAR_POOL_PROPERTY = "http://apache.org/xml/properties/internal/grammar-pool";
+
+	// number of content models compiled by one task
+	protected static final int CONTENT_MODELS_PER_TASK = 32;
+
 	protected static final XSElementDeclarationSort elementDeclSort = new XSElementDeclarationSort();
 	protected static final XSAttributeDeclarationSort attributeDeclSort = new XSAttributeDeclarationSort();
 	protected static final XSAttributeUseSort attributeUseSort = new XSAttributeUseSort();
@@ -113,18 +128,126 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 	// pool for element-declaration of StartElement events
 	protected Map<XSElementDeclaration, StartElement> elementPool;
 
+	// sorted substitution group closure (incl. element itself) per element
+	protected Map<XSElementDeclaration, List<XSElementDeclaration>> possibleElementDeclarations;
+	// StartElement events of the latter
+	protected Map<XSElementDeclaration, List<StartElement>> possibleStartElements;
+
+	// compiled content models, their states and transitions and resulting
+	// element content grammars per particle (derived types may share the
+	// particle of their base type)
+	protected Map<XSParticle, XSCMValidator> contentModels;
+	protected Map<XSParticle, CMTransitions> contentModelTransitions;
+	protected Map<XSParticle, SchemaInformedGrammar> elementContentGrammars;
+	protected Map<XSParticle, SchemaInformedGrammar> mixedContentGrammars;
+
+	// merge equivalent states of element content grammars
+	protected boolean minimizeContentModels = false;
+
+	// optional, shared pool of parsed schema documents
+	protected XMLGrammarPool grammarPool;
+
+	// optional, content models are compiled in parallel if set
+	protected ExecutorService executorService;
+
+	// content model states before and after minimization
+	protected int numberOfContentModelStates;
+	protected int numberOfMinimizedContentModelStates;
+
 	public EXIContentModelBuilder() {
 		super(new CMNodeFactory());
 	}
 
 	protected void initOnce() {
 		elementPool = new HashMap<XSElementDeclaration, StartElement>();
+		possibleElementDeclarations = new HashMap<XSElementDeclaration, List<XSElementDeclaration>>();
+		possibleStartElements = new HashMap<XSElementDeclaration, List<StartElement>>();
+		contentModels = new IdentityHashMap<XSParticle, XSCMValidator>();
+		contentModelTransitions = new IdentityHashMap<XSParticle, CMTransitions>();
+		elementContentGrammars = new IdentityHashMap<XSParticle, SchemaInformedGrammar>();
+		mixedContentGrammars = new IdentityHashMap<XSParticle, SchemaInformedGrammar>();
 		schemaParsingErrors = new ArrayList<String>();
 	}
 
 	protected void initEachRun() {
 		elementPool.clear();
+		possibleElementDeclarations.clear();
+		possibleStartElements.clear();
+		contentModels.clear();
+		contentModelTransitions.clear();
+		elementContentGrammars.clear();
+		mixedContentGrammars.clear();
 		schemaParsingErrors.clear();
+		numberOfContentModelStates = 0;
+		numberOfMinimizedContentModelStates = 0;
+	}
+
+	/**
+	 * Content model states that are equivalent (same events in the same order
+	 * leading to equivalent states) can be merged before the element content
+	 * grammars are used. Event codes are not affected. Default is
+	 * <code>false</code>.
+	 * 
+	 * @param minimizeContentModels
+	 *            whether to merge equivalent content model states
+	 */
+	public void setMinimizeContentModels(boolean minimizeContentModels) {
+		this.minimizeContentModels = minimizeContentModels;
+	}
+
+	public boolean isMinimizeContentModels() {
+		return minimizeContentModels;
+	}
+
+	/**
+	 * Sets a pool of parsed schema documents that is shared among schema
+	 * loads (see {@link SchemaGrammarPool}). Imported documents found in the
+	 * pool are not parsed again.
+	 * 
+	 * @param grammarPool
+	 *            Xerces grammar pool or null
+	 */
+	public void setGrammarPool(XMLGrammarPool grammarPool) {
+		this.grammarPool = grammarPool;
+	}
+
+	public XMLGrammarPool getGrammarPool() {
+		return grammarPool;
+	}
+
+	/**
+	 * Sets the executor used for compiling the content models of all complex
+	 * types and exploring their states in parallel before the grammars are
+	 * created. Grammars themselves are still assembled in one thread in the
+	 * same order, so that the result is the same as without executor. The
+	 * executor is not shut down by the builder.
+	 * 
+	 * @param executorService
+	 *            executor or null to compile content models on demand
+	 */
+	public void setExecutorService(ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	public ExecutorService getExecutorService() {
+		return executorService;
+	}
+
+	/**
+	 * @return number of content model states (element content grammars) of
+	 *         the last loaded schema before minimization
+	 */
+	public int getNumberOfContentModelStates() {
+		return numberOfContentModelStates;
+	}
+
+	/**
+	 * @return number of content model states (element content grammars) of
+	 *         the last loaded schema after minimization, equals
+	 *         {@link #getNumberOfContentModelStates()} if not minimized
+	 */
+	public int getNumberOfMinimizedContentModelStates() {
+		return numberOfMinimizedContentModelStates;
 	}
 
 	public void loadGrammars(XMLInputSource xsdSource) throws EXIException {
@@ -141,6 +264,10 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 				sl.setEntityResolver(entityResolver);
 			}
 			sl.setErrorHandler(this);
+			if (grammarPool != null) {
+				// re-use already parsed (imported) schema documents
+				sl.setProperty(GRAMMAR_POOL_PROPERTY, grammarPool);
+			}
 
 			SchemaGrammar g = (SchemaGrammar) sl.loadGrammar(xsdSource);
 
@@ -229,8 +356,7 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 	// // return super.createAllCM(particle);;
 	// }
 
-	private static SchemaInformedGrammar addNewState(
-			Map<CMState, SchemaInformedGrammar> states, CMState key,
+	private static SchemaInformedGrammar createStateGrammar(CMState key,
 			boolean isMixedContent) {
 		SchemaInformedGrammar val = new SchemaInformedElement();
 		// is end
@@ -241,18 +367,17 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 		if (isMixedContent) {
 			val.addProduction(CHARACTERS_GENERIC, val);
 		}
-		states.put(key, val);
 
 		return val;
 	}
 
-	private void getMaxOccursUnboundedElements(
+	private static void getMaxOccursUnboundedElements(
 			List<XSElementDeclaration> elementsMaxOccursUnbounded,
 			XSParticle xsParticle) {
 		getMaxOccursUnboundedElements(elementsMaxOccursUnbounded, xsParticle, false);
 	}
 	
-	private void getMaxOccursUnboundedElements(
+	private static void getMaxOccursUnboundedElements(
 			List<XSElementDeclaration> elementsMaxOccursUnbounded,
 			XSParticle xsParticle, boolean outerUnbounded) {
 		XSTerm xsTerm = xsParticle.getTerm();
@@ -278,6 +403,164 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 	protected SchemaInformedGrammar handleParticle(XSComplexTypeDefinition ctd,
 			boolean isMixedContent) throws EXIException {
 
+		XSParticle xsParticle = ctd.getParticle();
+		Map<XSParticle, SchemaInformedGrammar> contentGrammars = isMixedContent ? mixedContentGrammars
+				: elementContentGrammars;
+		SchemaInformedGrammar contentGrammar = contentGrammars.get(xsParticle);
+		if (contentGrammar == null) {
+			contentGrammar = createParticleGrammar(ctd, isMixedContent);
+			contentGrammars.put(xsParticle, contentGrammar);
+		}
+		return contentGrammar;
+	}
+
+	protected XSCMValidator getContentModel(XSComplexTypeDefinition ctd) {
+		XSParticle xsParticle = ctd.getParticle();
+		XSCMValidator xscmVal = contentModels.get(xsParticle);
+		if (xscmVal == null) {
+			xscmVal = getContentModel((XSComplexTypeDecl) ctd, forUPA);
+			contentModels.put(xsParticle, xscmVal);
+		}
+		return xscmVal;
+	}
+
+	/**
+	 * States and transitions of a content model, explored on demand unless
+	 * already done by {@link #compileContentModels()}.
+	 */
+	protected CMTransitions getContentModelTransitions(
+			XSComplexTypeDefinition ctd) {
+		XSParticle xsParticle = ctd.getParticle();
+		CMTransitions cmt = contentModelTransitions.get(xsParticle);
+		if (cmt == null) {
+			cmt = exploreContentModel(getContentModel(ctd), xsParticle,
+					subGroupHandler);
+			contentModelTransitions.put(xsParticle, cmt);
+		}
+		return cmt;
+	}
+
+	/**
+	 * Compiles and explores the content models of all complex types with
+	 * element or mixed content using the executor service, if any. Each task
+	 * uses its own <code>CMBuilder</code>. Exploring reads the schema only,
+	 * grammars are assembled later on in one thread.
+	 */
+	protected void compileContentModels() throws EXIException {
+		if (executorService == null) {
+			return;
+		}
+
+		final List<XSComplexTypeDecl> ctds = new ArrayList<XSComplexTypeDecl>();
+		collectContentModelTypes(ctds);
+
+		final SubstitutionGroupHandler sgh = subGroupHandler;
+		List<Future<CMTransitions[]>> futures = new ArrayList<Future<CMTransitions[]>>();
+		for (int i = 0; i < ctds.size(); i += CONTENT_MODELS_PER_TASK) {
+			final int from = i;
+			final int to = Math.min(i + CONTENT_MODELS_PER_TASK, ctds.size());
+			futures.add(executorService.submit(new Callable<CMTransitions[]>() {
+				public CMTransitions[] call() throws Exception {
+					CMBuilder cmBuilder = new CMBuilder(new CMNodeFactory());
+					CMTransitions[] cmts = new CMTransitions[to - from];
+					for (int k = from; k < to; k++) {
+						XSComplexTypeDecl ctd = ctds.get(k);
+						cmts[k - from] = exploreContentModel(
+								cmBuilder.getContentModel(ctd, forUPA),
+								ctd.getParticle(), sgh);
+					}
+					return cmts;
+				}
+			}));
+		}
+
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				CMTransitions[] cmts = futures.get(i).get();
+				for (int k = 0; k < cmts.length; k++) {
+					contentModelTransitions.put(
+							ctds.get(i * CONTENT_MODELS_PER_TASK + k)
+									.getParticle(), cmts[k]);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EXIException(
+					"Interrupted while compiling content models", e);
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			} else {
+				throw new EXIException("Content models could not be compiled",
+						(Exception) t);
+			}
+		} finally {
+			for (int i = 0; i < futures.size(); i++) {
+				futures.get(i).cancel(true);
+			}
+		}
+	}
+
+	/*
+	 * complex types with a particle that is compiled by Xerces (no xsd:all),
+	 * one type per particle
+	 */
+	protected void collectContentModelTypes(List<XSComplexTypeDecl> ctds) {
+		Map<Object, Object> visited = new IdentityHashMap<Object, Object>();
+		List<XSObject> todo = new ArrayList<XSObject>();
+
+		XSNamedMap types = xsModel.getComponents(XSConstants.TYPE_DEFINITION);
+		for (int i = 0; i < types.getLength(); i++) {
+			todo.add(types.item(i));
+		}
+		XSNamedMap elements = xsModel
+				.getComponents(XSConstants.ELEMENT_DECLARATION);
+		for (int i = 0; i < elements.getLength(); i++) {
+			todo.add(elements.item(i));
+		}
+
+		while (!todo.isEmpty()) {
+			XSObject o = todo.remove(todo.size() - 1);
+			if (visited.put(o, o) != null) {
+				continue;
+			}
+			if (o instanceof XSElementDeclaration) {
+				todo.add(((XSElementDeclaration) o).getTypeDefinition());
+			} else if (o instanceof XSModelGroup) {
+				XSObjectList particles = ((XSModelGroup) o).getParticles();
+				for (int i = particles.getLength() - 1; i >= 0; i--) {
+					todo.add(((XSParticle) particles.item(i)).getTerm());
+				}
+			} else if (o instanceof XSComplexTypeDefinition) {
+				XSComplexTypeDefinition ctd = (XSComplexTypeDefinition) o;
+				XSParticle xsParticle = ctd.getParticle();
+				if (xsParticle == null) {
+					continue;
+				}
+				todo.add(xsParticle.getTerm());
+				XSTerm xsTerm = xsParticle.getTerm();
+				if ((ctd.getContentType() == XSComplexTypeDefinition.CONTENTTYPE_ELEMENT || ctd
+						.getContentType() == XSComplexTypeDefinition.CONTENTTYPE_MIXED)
+						&& !(xsTerm instanceof XSModelGroup && ((XSModelGroup) xsTerm)
+								.getCompositor() == XSModelGroup.COMPOSITOR_ALL)
+						&& !contentModelTransitions.containsKey(xsParticle)
+						&& visited.put(xsParticle, xsParticle) == null) {
+					ctds.add((XSComplexTypeDecl) ctd);
+				}
+			} else {
+				// simple types and wildcards
+				assert (o instanceof XSTypeDefinition || o instanceof XSWildcard);
+			}
+		}
+	}
+
+	protected SchemaInformedGrammar createParticleGrammar(
+			XSComplexTypeDefinition ctd, boolean isMixedContent)
+			throws EXIException {
+
 		XSParticle xsParticle = ctd.getParticle();
 		XSTerm xsTerm = xsParticle.getTerm();
 		XSModelGroup mg;
@@ -313,215 +596,359 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 			return allRule;
 		} else {
 			// complex types other than xsd:all model groups
-			XSCMValidator xscmVal = getContentModel((XSComplexTypeDecl) ctd,
-					forUPA);
-
-			int[] state = xscmVal.startContentModel();
-			@SuppressWarnings("unchecked")
-			List<XSObject> possibleElements = xscmVal.whatCanGoHere(state);
-
-			// elements that have a given maxOccurs unbounded
-			List<XSElementDeclaration> elementsMaxOccursUnbounded = new ArrayList<XSElementDeclaration>();
-			getMaxOccursUnboundedElements(elementsMaxOccursUnbounded,
-					xsParticle);
-
-			boolean isEnd = xscmVal.endContentModel(state);
-			int[] occurenceInfo = xscmVal.occurenceInfo(state);
-
-			CMState startState = new CMState(possibleElements, isEnd, state,
-					elementsMaxOccursUnbounded, occurenceInfo);
-			if (DEBUG) {
-				System.out.println("Start = " + startState);
+			CMTransitions cmt = getContentModelTransitions(ctd);
+			List<SchemaInformedGrammar> stateGrammars = createStateGrammars(
+					cmt, isMixedContent);
+			SchemaInformedGrammar startRule = stateGrammars.get(0);
+
+			numberOfContentModelStates += stateGrammars.size();
+			if (minimizeContentModels) {
+				startRule = minimizeContentModel(stateGrammars);
+				numberOfMinimizedContentModelStates += countContentModelStates(startRule);
+			} else {
+				numberOfMinimizedContentModelStates += stateGrammars.size();
 			}
 
-			Map<CMState, SchemaInformedGrammar> knownStates = new HashMap<CMState, SchemaInformedGrammar>();
-			addNewState(knownStates, startState, isMixedContent);
-			handleStateEntries(possibleElements, xscmVal, state, startState,
-					knownStates, isMixedContent, elementsMaxOccursUnbounded);
-
-			return knownStates.get(startState);
+			return startRule;
 		}
 	}
 
-	abstract protected StartElementNS createStartElementNS(String uri);
-
-	abstract protected StartElement translatElementDeclarationToFSA(
-			XSElementDeclaration xsElementDeclaration) throws EXIException;
-
-	private void handleStateEntries(List<XSObject> possibleElements,
-			XSCMValidator xscmVal, int[] originalState, CMState startState,
-			Map<CMState, SchemaInformedGrammar> knownStates,
-			boolean isMixedContent,
-			List<XSElementDeclaration> elementsMaxOccursUnbounded)
-			throws EXIException {
-		assert (knownStates.containsKey(startState));
-
-		for (int ind = 0; ind < possibleElements.size(); ind++) {
-			XSObject xs = possibleElements.get(ind);
-			// copy state since it gets modified
-			int[] cstate = new int[originalState.length];
-			System.arraycopy(originalState, 0, cstate, 0, originalState.length);
+	/*
+	 * Creates one grammar per state and adds the productions transition by
+	 * transition, in the order of exploration. Hence pooled events and
+	 * grammars are created in the same order whether or not the transitions
+	 * have been explored in parallel.
+	 */
+	private List<SchemaInformedGrammar> createStateGrammars(
+			CMTransitions cmt, boolean isMixedContent) throws EXIException {
+		List<SchemaInformedGrammar> stateGrammars = new ArrayList<SchemaInformedGrammar>(
+				cmt.states.size());
+		stateGrammars.add(createStateGrammar(cmt.states.get(0),
+				isMixedContent));
+
+		for (int t = 0; t < cmt.size(); t++) {
+			SchemaInformedGrammar startRule = stateGrammars.get(cmt.sources
+					.get(t));
+			int target = cmt.targets.get(t);
+			if (target == stateGrammars.size()) {
+				// state reached first
+				stateGrammars.add(createStateGrammar(cmt.states.get(target),
+						isMixedContent));
+			}
+			SchemaInformedGrammar nextRule = stateGrammars.get(target);
 
+			XSObject xs = cmt.terms.get(t);
 			if (xs.getType() == XSConstants.ELEMENT_DECLARATION) {
-				// make transition
-				XSElementDeclaration nextEl = (XSElementDeclaration) xs;
-				QName qname = new QName(null, nextEl.getName(), null,
-						nextEl.getNamespace());
-
-				Object nextRet = xscmVal.oneTransition(qname, cstate,
-						subGroupHandler);
-
-				// check whether right transition was taken
-				assert (xs == nextRet);
-
-				// next possible state
-				@SuppressWarnings("unchecked")
-				List<XSObject> nextPossibleElements = xscmVal
-						.whatCanGoHere(cstate);
-				boolean isEnd = xscmVal.endContentModel(cstate);
-				int[] occurenceInfo = xscmVal.occurenceInfo(cstate);
-				// int[] occs2 = xscmVal.occurenceInfo(originalState);
-
-				CMState nextState = new CMState(nextPossibleElements, isEnd,
-						cstate, elementsMaxOccursUnbounded, occurenceInfo);
-
-				printTransition(startState, xs, nextState);
-
 				// retrieve list of possible elements (e.g. substitution group
 				// elements)
-				List<XSElementDeclaration> elements = getPossibleElementDeclarations(nextEl);
+				List<StartElement> elements = getPossibleStartElements((XSElementDeclaration) xs);
 				assert (elements.size() > 0);
-				boolean isNewState = false;
-
 				for (int i = 0; i < elements.size(); i++) {
-					XSElementDeclaration nextEN = elements.get(i);
-					// Event xsEvent = getStartElement(nextEN);
-					Event xsEvent = translatElementDeclarationToFSA(nextEN);
-					if (i == 0) {
-						// first element tells the right way to proceed
-						isNewState = handleStateEntry(startState, knownStates,
-								xsEvent, nextState, isMixedContent);
-					} else {
-						handleStateEntry(startState, knownStates, xsEvent,
-								nextState, isMixedContent);
-					}
+					startRule.addProduction(elements.get(i), nextRule);
 				}
-
-				if (isNewState) {
-					handleStateEntries(nextPossibleElements, xscmVal, cstate,
-							nextState, knownStates, isMixedContent,
-							elementsMaxOccursUnbounded);
-				}
-
 			} else {
 				assert (xs.getType() == XSConstants.WILDCARD);
 				XSWildcard nextWC = ((XSWildcard) xs);
-				short constraintType = nextWC.getConstraintType();
-				if (constraintType == XSWildcard.NSCONSTRAINT_ANY
-						|| constraintType == XSWildcard.NSCONSTRAINT_NOT) {
-					// make transition
-					QName qname = new QName(null, "##wc", null, "");
-					Object nextRet = xscmVal.oneTransition(qname, cstate,
-							subGroupHandler);
-					// check whether right transition was taken
-					assert (xs == nextRet);
-
-					// next possible state
-					@SuppressWarnings("unchecked")
-					List<XSObject> nextPossibleElements = xscmVal
-							.whatCanGoHere(cstate);
-					boolean isEnd = xscmVal.endContentModel(cstate);
-					int[] occurenceInfo = xscmVal.occurenceInfo(cstate);
-					CMState nextState = new CMState(nextPossibleElements,
-							isEnd, cstate, elementsMaxOccursUnbounded,
-							occurenceInfo);
-
-					printTransition(startState, xs, nextState);
-
-					Event xsEvent = START_ELEMENT_GENERIC;
-
-					boolean isNewState = handleStateEntry(startState,
-							knownStates, xsEvent, nextState, isMixedContent);
-					if (isNewState) {
-						handleStateEntries(nextPossibleElements, xscmVal,
-								cstate, nextState, knownStates, isMixedContent,
-								elementsMaxOccursUnbounded);
-					}
-
-				} else {
-					assert (constraintType == XSWildcard.NSCONSTRAINT_LIST);
-					// make transition
+				if (nextWC.getConstraintType() == XSWildcard.NSCONSTRAINT_LIST) {
+					// Note: all namespaces lead to the same next state
 					StringList sl = nextWC.getNsConstraintList();
-					QName qname = new QName(null, "##wc", null, sl.item(0));
-					Object nextRet = xscmVal.oneTransition(qname, cstate,
-							subGroupHandler);
-					assert (xs == nextRet); // check whether right transition
-					// was taken
-
-					// next possible state
-					@SuppressWarnings("unchecked")
-					List<XSObject> nextPossibleElements = xscmVal
-							.whatCanGoHere(cstate);
-					boolean isEnd = xscmVal.endContentModel(cstate);
-					int[] occurenceInfo = xscmVal.occurenceInfo(cstate);
-					CMState nextState = new CMState(nextPossibleElements,
-							isEnd, cstate, elementsMaxOccursUnbounded,
-							occurenceInfo);
-
-					printTransition(startState, xs, nextState);
-
 					for (int i = 0; i < sl.getLength(); i++) {
 						String namespaceURI = sl.item(i);
 						addNamespaceStringEntry(namespaceURI);
-						// Event xsEvent = new StartElementNS(namespaceURI);
-						Event xsEvent = createStartElementNS(namespaceURI);
-						boolean isNewState = handleStateEntry(startState,
-								knownStates, xsEvent, nextState, isMixedContent);
-						if (isNewState) {
-							handleStateEntries(nextPossibleElements, xscmVal,
-									cstate, nextState, knownStates,
-									isMixedContent, elementsMaxOccursUnbounded);
-						}
+						startRule.addProduction(
+								createStartElementNS(namespaceURI), nextRule);
 					}
+				} else {
+					startRule.addProduction(START_ELEMENT_GENERIC, nextRule);
 				}
 			}
 		}
+
+		return stateGrammars;
 	}
 
-	abstract protected void addLocalNameStringEntry(String namespaceURI,
-			String localName);
+	private static int countContentModelStates(Grammar startRule) {
+		Map<Grammar, Grammar> visited = new IdentityHashMap<Grammar, Grammar>();
+		List<Grammar> todo = new ArrayList<Grammar>();
+		todo.add(startRule);
+		while (!todo.isEmpty()) {
+			Grammar g = todo.remove(todo.size() - 1);
+			if (g != null && !visited.containsKey(g)) {
+				visited.put(g, g);
+				for (int i = 0; i < g.getNumberOfEvents(); i++) {
+					Production p = g.getProduction(i);
+					if (!p.getEvent().isEventType(EventType.END_ELEMENT)) {
+						todo.add(p.getNextGrammar());
+					}
+				}
+			}
+		}
+		return visited.size();
+	}
 
-	abstract protected List<String> addNamespaceStringEntry(String namespaceURI);
+	/**
+	 * Merges equivalent states of one content model (Moore partition
+	 * refinement). Start elements are compared by identity, their grammars
+	 * may still be under construction.
+	 * 
+	 * @param states
+	 *            content model states, the first one being the start state
+	 * @return start grammar of the minimized content model
+	 */
+	protected SchemaInformedGrammar minimizeContentModel(
+			List<SchemaInformedGrammar> states) {
+		final int n = states.size();
+		Map<Grammar, Integer> index = new IdentityHashMap<Grammar, Integer>();
+		for (int s = 0; s < n; s++) {
+			index.put(states.get(s), s);
+		}
+
+		// event IDs and successors, -1 for end element
+		Map<Event, Integer> startElementIDs = new IdentityHashMap<Event, Integer>();
+		Map<Event, Integer> eventIDs = new HashMap<Event, Integer>();
+		List<List<Integer>> labels = new ArrayList<List<Integer>>();
+		int[][] next = new int[n][];
+		for (int s = 0; s < n; s++) {
+			SchemaInformedGrammar g = states.get(s);
+			List<Integer> label = new ArrayList<Integer>();
+			next[s] = new int[g.getNumberOfEvents()];
+			for (int i = 0; i < g.getNumberOfEvents(); i++) {
+				Production p = g.getProduction(i);
+				Event ev = p.getEvent();
+				Map<Event, Integer> ids = ev
+						.isEventType(EventType.START_ELEMENT) ? startElementIDs
+						: eventIDs;
+				Integer id = ids.get(ev);
+				if (id == null) {
+					id = startElementIDs.size() + eventIDs.size();
+					ids.put(ev, id);
+				}
+				label.add(id);
+				if (ev.isEventType(EventType.END_ELEMENT)) {
+					next[s][i] = -1;
+				} else {
+					Integer t = index.get(p.getNextGrammar());
+					if (t == null) {
+						// unexpected reference out of content model
+						return states.get(0);
+					}
+					next[s][i] = t;
+				}
+			}
+			labels.add(label);
+		}
+
+		// refine until stable
+		int[] classOf = new int[n];
+		int numberOfClasses = refine(labels, classOf);
+		int previous = -1;
+		while (numberOfClasses != previous) {
+			previous = numberOfClasses;
+			List<List<Integer>> signatures = new ArrayList<List<Integer>>(n);
+			for (int s = 0; s < n; s++) {
+				List<Integer> sig = new ArrayList<Integer>(next[s].length + 1);
+				sig.add(classOf[s]);
+				for (int i = 0; i < next[s].length; i++) {
+					sig.add(next[s][i] == -1 ? -1 : classOf[next[s][i]]);
+				}
+				signatures.add(sig);
+			}
+			numberOfClasses = refine(signatures, classOf);
+		}
+
+		if (numberOfClasses == n) {
+			// nothing to merge
+			return states.get(0);
+		}
+
+		// rebuild, same events in the same order
+		SchemaInformedGrammar[] minimized = new SchemaInformedGrammar[numberOfClasses];
+		for (int c = 0; c < numberOfClasses; c++) {
+			minimized[c] = new SchemaInformedElement();
+		}
+		boolean[] done = new boolean[numberOfClasses];
+		for (int s = 0; s < n; s++) {
+			int c = classOf[s];
+			if (!done[c]) {
+				done[c] = true;
+				SchemaInformedGrammar g = states.get(s);
+				for (int i = 0; i < g.getNumberOfEvents(); i++) {
+					Event ev = g.getProduction(i).getEvent();
+					if (next[s][i] == -1) {
+						minimized[c].addTerminalProduction(ev);
+					} else {
+						minimized[c].addProduction(ev,
+								minimized[classOf[next[s][i]]]);
+					}
+				}
+			}
+		}
+
+		return minimized[classOf[0]];
+	}
+
+	/*
+	 * Assigns equal keys the same class, classes numbered in order of first
+	 * occurrence. Returns the number of classes.
+	 */
+	private static int refine(List<List<Integer>> keys, int[] classOf) {
+		Map<List<Integer>, Integer> classes = new HashMap<List<Integer>, Integer>();
+		for (int s = 0; s < keys.size(); s++) {
+			Integer c = classes.get(keys.get(s));
+			if (c == null) {
+				c = classes.size();
+				classes.put(keys.get(s), c);
+			}
+			classOf[s] = c;
+		}
+		return classes.size();
+	}
+
+	abstract protected StartElementNS createStartElementNS(String uri);
+
+	abstract protected StartElement translatElementDeclarationToFSA(
+			XSElementDeclaration xsElementDeclaration) throws EXIException;
 
 	/**
+	 * Explores all states reachable from the start state depth-first, with an
+	 * explicit stack so that long sequences or large maxOccurs values do not
+	 * exhaust the call stack. Only the given content model and the schema are
+	 * read, hence content models can be explored concurrently.
 	 * 
-	 * Creates/Modifies appropriate rule and return whether the next state has
-	 * been already resolved. If returnValue == TRUE it is a new state which
-	 * requires further processing. If the returnValue == FALSE the according
-	 * state(rule) is already full evaluated
+	 * @param xscmVal
+	 *            compiled content model
+	 * @param xsParticle
+	 *            particle of the content model
+	 * @param subGroupHandler
+	 *            substitution group handler for the transitions
+	 * @return states and transitions in the order of exploration
+	 */
+	protected static CMTransitions exploreContentModel(XSCMValidator xscmVal,
+			XSParticle xsParticle, SubstitutionGroupHandler subGroupHandler) {
+		// elements that have a given maxOccurs unbounded
+		List<XSElementDeclaration> elementsMaxOccursUnbounded = new ArrayList<XSElementDeclaration>();
+		getMaxOccursUnboundedElements(elementsMaxOccursUnbounded, xsParticle);
+
+		CMStateMap<Integer> knownStates = new CMStateMap<Integer>();
+		CMTransitions cmt = new CMTransitions();
+
+		CMState startState = getNextState(xscmVal,
+				xscmVal.startContentModel(), knownStates,
+				elementsMaxOccursUnbounded);
+		if (DEBUG) {
+			System.out.println("Start = " + startState);
+		}
+		knownStates.put(startState, 0);
+		cmt.states.add(startState);
+
+		List<CMStateEntries> todo = new ArrayList<CMStateEntries>();
+		todo.add(new CMStateEntries(startState, 0));
+
+		while (!todo.isEmpty()) {
+			CMStateEntries entries = todo.get(todo.size() - 1);
+			if (entries.next == entries.cmState.states.size()) {
+				// all possible elements handled
+				todo.remove(todo.size() - 1);
+			} else {
+				XSObject xs = entries.cmState.states.get(entries.next++);
+				CMState nextState = makeTransition(xscmVal, entries.cmState,
+						xs, knownStates, elementsMaxOccursUnbounded,
+						subGroupHandler);
+				Integer target = knownStates.get(nextState);
+				if (target == null) {
+					// new state, requires further processing
+					target = cmt.states.size();
+					knownStates.put(nextState, target);
+					cmt.states.add(nextState);
+					todo.add(new CMStateEntries(nextState, target));
+				}
+				cmt.add(entries.index, xs, target);
+			}
+		}
+
+		return cmt;
+	}
+
+	/**
+	 * Takes the transition for one possible element (or wildcard) of a state.
 	 * 
-	 * @param startState
-	 * @param knownStates
-	 * @param xsEvent
-	 * @param nextState
-	 * @return requires further processing of nextState
+	 * @return next state
 	 */
-	private boolean handleStateEntry(CMState startState,
-			Map<CMState, SchemaInformedGrammar> knownStates, Event xsEvent,
-			CMState nextState, boolean isMixedContent) {
-		SchemaInformedGrammar startRule = knownStates.get(startState);
-
-		// System.out.println(knownStates);
-		if (knownStates.containsKey(nextState)) {
-			startRule.addProduction(xsEvent, knownStates.get(nextState));
-			return false;
+	private static CMState makeTransition(XSCMValidator xscmVal,
+			CMState startState, XSObject xs, CMStateMap<Integer> knownStates,
+			List<XSElementDeclaration> elementsMaxOccursUnbounded,
+			SubstitutionGroupHandler subGroupHandler) {
+		// copy state since it gets modified
+		int[] originalState = startState.state;
+		int[] cstate = new int[originalState.length];
+		System.arraycopy(originalState, 0, cstate, 0, originalState.length);
+
+		QName qname;
+		if (xs.getType() == XSConstants.ELEMENT_DECLARATION) {
+			XSElementDeclaration nextEl = (XSElementDeclaration) xs;
+			qname = new QName(null, nextEl.getName(), null,
+					nextEl.getNamespace());
 		} else {
-			addNewState(knownStates, nextState, isMixedContent);
-			startRule.addProduction(xsEvent, knownStates.get(nextState));
-			return true;
+			assert (xs.getType() == XSConstants.WILDCARD);
+			XSWildcard nextWC = ((XSWildcard) xs);
+			short constraintType = nextWC.getConstraintType();
+			if (constraintType == XSWildcard.NSCONSTRAINT_ANY
+					|| constraintType == XSWildcard.NSCONSTRAINT_NOT) {
+				qname = new QName(null, "##wc", null, "");
+			} else {
+				assert (constraintType == XSWildcard.NSCONSTRAINT_LIST);
+				// Note: all namespaces lead to the same next state
+				StringList sl = nextWC.getNsConstraintList();
+				qname = new QName(null, "##wc", null, sl.item(0));
+			}
 		}
+
+		// make transition
+		Object nextRet = xscmVal.oneTransition(qname, cstate, subGroupHandler);
+		// check whether right transition was taken
+		assert (xs == nextRet);
+
+		// next possible state
+		CMState nextState = getNextState(xscmVal, cstate, knownStates,
+				elementsMaxOccursUnbounded);
+
+		printTransition(startState, xs, nextState);
+
+		return nextState;
 	}
 
+	/*
+	 * Note: a bounded repetition e{n,m} is tracked by Xerces as one DFA state
+	 * plus counter, yet each counter value needs its own grammar since the
+	 * available events (and hence event codes) change at the bounds. Per
+	 * counter value only the state array and the (shared) list of possible
+	 * elements are kept, occurrence info is kept only where needed to merge
+	 * states of maxOccurs unbounded elements.
+	 */
+	private static CMState getNextState(XSCMValidator xscmVal, int[] cstate,
+			CMStateMap<Integer> knownStates,
+			List<XSElementDeclaration> elementsMaxOccursUnbounded) {
+		@SuppressWarnings("unchecked")
+		List<XSObject> nextPossibleElements = knownStates.intern(xscmVal
+				.whatCanGoHere(cstate));
+		boolean isEnd = xscmVal.endContentModel(cstate);
+		boolean anyMaxOccursUnbounded = false;
+		for (int i = 0; i < nextPossibleElements.size()
+				&& !anyMaxOccursUnbounded; i++) {
+			anyMaxOccursUnbounded = elementsMaxOccursUnbounded
+					.contains(nextPossibleElements.get(i));
+		}
+		int[] occurenceInfo = anyMaxOccursUnbounded ? xscmVal
+				.occurenceInfo(cstate) : null;
+		return new CMState(nextPossibleElements, isEnd, cstate,
+				anyMaxOccursUnbounded, occurenceInfo);
+	}
+
+	abstract protected void addLocalNameStringEntry(String namespaceURI,
+			String localName);
+
+	abstract protected List<String> addNamespaceStringEntry(String namespaceURI);
+
 	/**
 	 * Returns a list of possible elements. In general this list is the element
 	 * itself. In case of SubstitutionGroups the list is extended by all
@@ -530,12 +957,52 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 	 * 
 	 * (see http://www.w3.org/TR/exi/#elementTerms)
 	 * 
+	 * <p>
+	 * Lists are computed once per schema and shared, they must not be
+	 * modified.
+	 * </p>
+	 * 
 	 * @param el element
 	 * @return list of possible elements
 	 */
 	protected List<XSElementDeclaration> getPossibleElementDeclarations(
 			XSElementDeclaration el) {
+		List<XSElementDeclaration> listElements = possibleElementDeclarations
+				.get(el);
+		if (listElements == null) {
+			listElements = createPossibleElementDeclarations(el);
+			possibleElementDeclarations.put(el, listElements);
+		}
+		return listElements;
+	}
+
+	/**
+	 * Returns the StartElement events of
+	 * {@link #getPossibleElementDeclarations(XSElementDeclaration)}, in the
+	 * same order. Lists are shared, they must not be modified.
+	 * 
+	 * @param el element
+	 * @return list of possible start elements
+	 * @throws EXIException
+	 */
+	protected List<StartElement> getPossibleStartElements(
+			XSElementDeclaration el) throws EXIException {
+		List<StartElement> listStartElements = possibleStartElements.get(el);
+		if (listStartElements == null) {
+			List<XSElementDeclaration> elements = getPossibleElementDeclarations(el);
+			listStartElements = new ArrayList<StartElement>(elements.size());
+			for (int i = 0; i < elements.size(); i++) {
+				// Note: StartElement events are pooled, recursion is fine
+				listStartElements
+						.add(translatElementDeclarationToFSA(elements.get(i)));
+			}
+			possibleStartElements.put(el, listStartElements);
+		}
+		return listStartElements;
+	}
 
+	private List<XSElementDeclaration> createPossibleElementDeclarations(
+			XSElementDeclaration el) {
 		List<XSElementDeclaration> listElements = new ArrayList<XSElementDeclaration>();
 
 		// add element itself
@@ -608,6 +1075,128 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 	}
 	
 	
+	/*
+	 * Internal Helper Class: CMState (and its index) with the index of its
+	 * next possible element to handle
+	 */
+	static class CMStateEntries {
+		final CMState cmState;
+		final int index;
+		int next;
+
+		CMStateEntries(CMState cmState, int index) {
+			this.cmState = cmState;
+			this.index = index;
+			this.next = 0;
+		}
+	}
+
+	/*
+	 * Internal Helper Class: states of one content model, the start state
+	 * first, and its transitions (source state, element or wildcard, target
+	 * state) in the order of exploration
+	 */
+	static class CMTransitions {
+		final List<CMState> states;
+		final List<Integer> sources;
+		final List<XSObject> terms;
+		final List<Integer> targets;
+
+		CMTransitions() {
+			states = new ArrayList<CMState>();
+			sources = new ArrayList<Integer>();
+			terms = new ArrayList<XSObject>();
+			targets = new ArrayList<Integer>();
+		}
+
+		void add(int source, XSObject term, int target) {
+			sources.add(source);
+			terms.add(term);
+			targets.add(target);
+		}
+
+		int size() {
+			return terms.size();
+		}
+	}
+
+	/*
+	 * Internal Helper Class: known CMStates of one content model (open
+	 * addressing with linear probing over cached hash codes). Equal states
+	 * share their hash code, hence the state added first is found. Lists of
+	 * possible elements are interned so that equal lists are identical.
+	 */
+	static class CMStateMap<V> {
+		private final List<CMState> keys;
+		private final List<V> values;
+		// entry index + 1, 0 ... free slot
+		private int[] table;
+		private final Map<List<XSObject>, List<XSObject>> possibleElements;
+
+		CMStateMap() {
+			keys = new ArrayList<CMState>();
+			values = new ArrayList<V>();
+			table = new int[16];
+			possibleElements = new HashMap<List<XSObject>, List<XSObject>>();
+		}
+
+		List<XSObject> intern(List<XSObject> elements) {
+			List<XSObject> known = possibleElements.get(elements);
+			if (known == null) {
+				possibleElements.put(elements, elements);
+				known = elements;
+			}
+			return known;
+		}
+
+		V get(CMState key) {
+			int mask = table.length - 1;
+			for (int i = spread(key.hash) & mask; table[i] != 0; i = (i + 1)
+					& mask) {
+				int entry = table[i] - 1;
+				CMState k = keys.get(entry);
+				if (k.hash == key.hash && k.equals(key)) {
+					return values.get(entry);
+				}
+			}
+			return null;
+		}
+
+		/* Note: no equal key must be present */
+		void put(CMState key, V value) {
+			keys.add(key);
+			values.add(value);
+			if (keys.size() * 2 > table.length) {
+				// grow, re-insert in insertion order
+				table = new int[table.length * 2];
+				for (int entry = 0; entry < keys.size(); entry++) {
+					insert(entry);
+				}
+			} else {
+				insert(keys.size() - 1);
+			}
+		}
+
+		private void insert(int entry) {
+			int mask = table.length - 1;
+			int i = spread(keys.get(entry).hash) & mask;
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = entry + 1;
+		}
+
+		private static int spread(int h) {
+			h ^= (h >>> 16);
+			h *= 0x85ebca6b;
+			return h ^ (h >>> 13);
+		}
+
+		public int size() {
+			return keys.size();
+		}
+	}
+
 	/*
 	 * Internal Helper Class: CMState
 	 */
@@ -615,25 +1204,47 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 		protected final List<XSObject> states;
 		protected final boolean end;
 		protected final int[] state;
-		protected final List<XSElementDeclaration> elementsMaxOccursUnbounded;
 		protected final int[] occurenceInfo;
-
+		// cached, CMStates are compared very often
+		protected final int hash;
+		protected final boolean anyMaxOccursUnbounded;
+
+		/*
+		 * Note: takes ownership of the state array, callers must not modify it
+		 * afterwards (transitions work on copies)
+		 */
 		public CMState(List<XSObject> states, boolean end, int[] state,
-				List<XSElementDeclaration> elementsMaxOccursUnbounded,
-				int[] occurenceInfo) {
+				boolean anyMaxOccursUnbounded, int[] occurenceInfo) {
 			this.states = states;
 			this.end = end;
-			this.elementsMaxOccursUnbounded = elementsMaxOccursUnbounded;
+			this.anyMaxOccursUnbounded = anyMaxOccursUnbounded;
 			this.occurenceInfo = occurenceInfo;
-			// copy, may get modified
-			this.state = new int[state.length];
-			System.arraycopy(state, 0, this.state, 0, state.length);
+			this.state = state;
+			this.hash = hash(states, end, state, anyMaxOccursUnbounded);
+		}
+
+		/*
+		 * Mixes in every value equals() compares, the counter only where it
+		 * is significant. Otherwise the states of a large maxOccurs all
+		 * share one hash code.
+		 */
+		private static int hash(List<XSObject> states, boolean end,
+				int[] state, boolean anyMaxOccursUnbounded) {
+			int h = states.hashCode();
+			h = 31 * h + (end ? 1 : 0);
+			h = 31 * h + state[0];
+			h = 31 * h + state[1];
+			if (states.size() != 0 && !anyMaxOccursUnbounded) {
+				h = 31 * h + state[2];
+			}
+			return h;
 		}
 
 		public boolean equals(Object o) {
 			if (o instanceof CMState) {
 				CMState other = (CMState) o;
-				if (end == other.end && states.equals(other.states)) {
+				if (hash == other.hash && end == other.end
+						&& (states == other.states || states.equals(other.states))) {
 					// return(Arrays.equals(state, other.state)) ;
 					assert (state.length > 1 && other.state.length > 1);
 
@@ -644,29 +1255,19 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 							return true;
 						} else if (state[2] != other.state[2]) {
 							// any element maxOccurs unbounded
-							for (int i = 0; i < states.size(); i++) {
-								XSObject s = states.get(i);
-								if (elementsMaxOccursUnbounded.contains(s)) {
-									// If an array is returned it will have a
-									// length == 4 and will contain:
-									//
-									// a[0] :: min occurs
-									// a[1] :: max occurs
-									// a[2] :: current value of the counter
-									// a[3] :: identifier for the repeating term
-									if(this.occurenceInfo == null) {
-										return true;
-									} else {
-//										int currThis = this.occurenceInfo == null ? -1
-//												: this.occurenceInfo[2];
-//										int currOther = other.occurenceInfo == null ? -1
-//												: other.occurenceInfo[2];
-
-										assert (this.occurenceInfo[0] == other.occurenceInfo[0]);
-										return (this.occurenceInfo[2] >= this.occurenceInfo[0] && other.occurenceInfo[2] >= this.occurenceInfo[0]);
-											
-									}
-									// return true;
+							if (anyMaxOccursUnbounded) {
+								// If an array is returned it will have a
+								// length == 4 and will contain:
+								//
+								// a[0] :: min occurs
+								// a[1] :: max occurs
+								// a[2] :: current value of the counter
+								// a[3] :: identifier for the repeating term
+								if(this.occurenceInfo == null) {
+									return true;
+								} else {
+									assert (this.occurenceInfo[0] == other.occurenceInfo[0]);
+									return (this.occurenceInfo[2] >= this.occurenceInfo[0] && other.occurenceInfo[2] >= this.occurenceInfo[0]);
 								}
 							}
 							return false;
@@ -699,7 +1300,7 @@ public abstract class EXIContentModelBuilder extends CMBuilder implements
 		}
 
 		public int hashCode() {
-			return end ? states.hashCode() : -states.hashCode();
+			return hash;
 		}
 	}
 
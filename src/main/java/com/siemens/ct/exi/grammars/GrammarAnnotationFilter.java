@@ -43,7 +43,11 @@ public class GrammarAnnotationFilter implements ContentHandler {
 		typeNameAtts.addAttribute("", "name", "name", "CDATA", typeName);
 		
 		try {
-			final Transformer t = tf.newTransformer();
+			// Note: TransformerFactory is not thread-safe
+			final Transformer t;
+			synchronized (tf) {
+				t = tf.newTransformer();
+			}
 
 			t.transform(new SAXSource(new XMLReader() {
 				public ContentHandler getContentHandler() {
@@ -0,0 +1,554 @@
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.siemens.ct.exi.grammars;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.xerces.impl.XMLEntityManager;
+import org.apache.xerces.util.XMLResourceIdentifierImpl;
+import org.apache.xerces.xni.XMLResourceIdentifier;
+import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.parser.XMLEntityResolver;
+import org.apache.xerces.xni.parser.XMLInputSource;
+
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.grammar.Document;
+import com.siemens.ct.exi.grammars.grammar.Fragment;
+
+/**
+ * Size-bounded (LRU) cache for schema-informed grammars.
+ *
+ * <p>
+ * Entries are looked up by schema location and application entity resolver
+ * (by identity, a resolver may map imports to other documents) and are only
+ * handed out as long as the schema documents (the main document and any included or imported
+ * document) have not changed. The content digest of all documents is computed
+ * when an entry is built. On a cache hit documents read from file locations
+ * are checked by modification time and size only, their content is compared
+ * only if these changed. Documents from other locations are read and compared
+ * at most once per revalidation interval. {@link #remove(String)} invalidates
+ * the entries of a location explicitly. Concurrent requests for the same
+ * schema location and resolver wait for a single build.
+ * </p>
+ *
+ * <p>
+ * Each call returns its own {@link SchemaInformedGrammars} instance (e.g.,
+ * with its own schemaId), the grammar graph is shared among all callers.
+ * </p>
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public class GrammarCache {
+
+	public static final int DEFAULT_MAXIMUM_SIZE = 32;
+
+	/* milliseconds between content checks of documents not read from files */
+	public static final long DEFAULT_REVALIDATION_INTERVAL = 60000L;
+
+	static final String DIGEST_ALGORITHM = "SHA-1";
+
+	/**
+	 * Builds grammars for a given schema location. The entity resolver handed
+	 * over MUST be used for resolving the schema documents so that the cache
+	 * can compute the content digest.
+	 */
+	public interface GrammarsLoader {
+		public SchemaInformedGrammars loadGrammars(String xsdLocation,
+				XMLEntityResolver entityResolver) throws EXIException;
+	}
+
+	protected final int maximumSize;
+
+	// negative: documents not read from files are never checked again
+	protected volatile long revalidationInterval = DEFAULT_REVALIDATION_INTERVAL;
+
+	// schema location and resolver --> cached grammars (access-order for LRU
+	// eviction)
+	protected final Map<CacheKey, CachedGrammars> entries;
+
+	// schema location and resolver --> build in progress
+	protected final ConcurrentHashMap<CacheKey, FutureTask<CachedGrammars>> pendingBuilds;
+
+	public GrammarCache() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+
+	public GrammarCache(int maximumSize) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException(
+					"Grammar cache size must be positive, " + maximumSize);
+		}
+		this.maximumSize = maximumSize;
+		this.entries = new LinkedHashMap<CacheKey, CachedGrammars>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<CacheKey, CachedGrammars> eldest) {
+				return size() > GrammarCache.this.maximumSize;
+			}
+		};
+		this.pendingBuilds = new ConcurrentHashMap<CacheKey, FutureTask<CachedGrammars>>();
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * Sets how often documents that were not read from a file location (e.g.,
+	 * http or jar locations, documents provided by the application resolver)
+	 * are read again and compared by content digest on a cache hit.
+	 * 
+	 * @param revalidationInterval
+	 *            milliseconds, 0 for every hit and a negative value for never
+	 */
+	public void setRevalidationInterval(long revalidationInterval) {
+		this.revalidationInterval = revalidationInterval;
+	}
+
+	public long getRevalidationInterval() {
+		return revalidationInterval;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Removes the entries of the given location for all entity resolvers
+	 */
+	public synchronized void remove(String xsdLocation) {
+		Iterator<CacheKey> iter = entries.keySet().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().xsdLocation.equals(xsdLocation)) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns cached grammars for the given location and entity resolver if
+	 * the schema documents are unchanged, otherwise the grammars are
+	 * (re-)built by the loader.
+	 *
+	 * @param xsdLocation schema location
+	 * @param entityResolver application XSD resolver, may be null
+	 * @param loader builds grammars if necessary
+	 * @return schema-informed EXI grammars
+	 * @throws EXIException EXI exception
+	 */
+	public SchemaInformedGrammars getGrammars(String xsdLocation,
+			XMLEntityResolver entityResolver, GrammarsLoader loader)
+			throws EXIException {
+		CacheKey key = new CacheKey(xsdLocation, entityResolver);
+		CachedGrammars cg;
+		synchronized (this) {
+			cg = entries.get(key);
+		}
+
+		if (cg != null) {
+			if (cg.isUpToDate(entityResolver, revalidationInterval)) {
+				return copyOf(cg.grammars);
+			}
+			synchronized (this) {
+				if (entries.get(key) == cg) {
+					entries.remove(key);
+				}
+			}
+		}
+
+		return copyOf(build(key, loader).grammars);
+	}
+
+	/**
+	 * Returns a new instance sharing the grammar graph (grammar context,
+	 * document, fragment and element fragment grammars) of the given
+	 * grammars. Setting the schemaId of the copy does not affect the
+	 * original.
+	 * 
+	 * @param g schema-informed grammars
+	 * @return shallow copy
+	 */
+	public static SchemaInformedGrammars copyOf(SchemaInformedGrammars g) {
+		SchemaInformedGrammars copy = new SchemaInformedGrammars(
+				g.getGrammarContext(), (Document) g.getDocumentGrammar(),
+				(Fragment) g.getFragmentGrammar(),
+				g.getSchemaInformedElementFragmentGrammar());
+		if (g.getSchemaId() != null) {
+			copy.setSchemaId(g.getSchemaId());
+		}
+		copy.setBuiltInXMLSchemaTypesOnly(g.isBuiltInXMLSchemaTypesOnly());
+		return copy;
+	}
+
+	protected CachedGrammars build(final CacheKey key,
+			final GrammarsLoader loader) throws EXIException {
+		final String xsdLocation = key.xsdLocation;
+		final XMLEntityResolver entityResolver = key.entityResolver;
+		FutureTask<CachedGrammars> task = new FutureTask<CachedGrammars>(
+				new Callable<CachedGrammars>() {
+					public CachedGrammars call() throws Exception {
+						// another thread may have finished in the meantime
+						CachedGrammars cg;
+						synchronized (GrammarCache.this) {
+							cg = entries.get(key);
+						}
+						if (cg != null
+								&& cg.isUpToDate(entityResolver,
+										revalidationInterval)) {
+							return cg;
+						}
+
+						DigestingEntityResolver der = new DigestingEntityResolver(
+								entityResolver);
+						SchemaInformedGrammars g = loader.loadGrammars(
+								xsdLocation, der);
+						cg = new CachedGrammars(g, der.getDocuments());
+						synchronized (GrammarCache.this) {
+							entries.put(key, cg);
+						}
+						return cg;
+					}
+				});
+
+		FutureTask<CachedGrammars> pending = pendingBuilds.putIfAbsent(key,
+				task);
+		if (pending == null) {
+			// this thread builds
+			try {
+				task.run();
+			} finally {
+				pendingBuilds.remove(key, task);
+			}
+			pending = task;
+		}
+
+		try {
+			return pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EXIException("Interrupted while waiting for grammars of "
+					+ xsdLocation, e);
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof EXIException) {
+				throw (EXIException) t;
+			} else if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			} else {
+				throw new EXIException("Grammars for " + xsdLocation
+						+ " could not be built", (Exception) t);
+			}
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (int i = 0; i < bytes.length; i++) {
+			int b = bytes[i] & 0xFF;
+			if (b < 0x10) {
+				sb.append('0');
+			}
+			sb.append(Integer.toHexString(b));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * system id of a resolved document, the application resolver takes
+	 * precedence
+	 */
+	static String getSystemId(XMLResourceIdentifier rid, XMLInputSource xis)
+			throws IOException {
+		if (xis != null && xis.getSystemId() != null) {
+			return xis.getSystemId();
+		} else if (rid.getExpandedSystemId() != null) {
+			return rid.getExpandedSystemId();
+		} else if (rid.getLiteralSystemId() != null) {
+			return XMLEntityManager.expandSystemId(rid.getLiteralSystemId(),
+					rid.getBaseSystemId(), false);
+		} else {
+			return null;
+		}
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(DIGEST_ALGORITHM
+					+ " message digest not available", e);
+		}
+	}
+
+	static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int len;
+		while ((len = is.read(buffer)) != -1) {
+			baos.write(buffer, 0, len);
+		}
+		is.close();
+		return baos.toByteArray();
+	}
+
+	static String readFully(Reader r) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[4096];
+		int len;
+		while ((len = r.read(buffer)) != -1) {
+			sb.append(buffer, 0, len);
+		}
+		r.close();
+		return sb.toString();
+	}
+
+	/*
+	 * Internal Helper Class: CacheKey, the resolver is compared by identity
+	 */
+	static class CacheKey {
+		final String xsdLocation;
+		final XMLEntityResolver entityResolver;
+
+		CacheKey(String xsdLocation, XMLEntityResolver entityResolver) {
+			this.xsdLocation = xsdLocation;
+			this.entityResolver = entityResolver;
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof CacheKey) {
+				CacheKey other = (CacheKey) o;
+				return xsdLocation.equals(other.xsdLocation)
+						&& entityResolver == other.entityResolver;
+			}
+			return false;
+		}
+
+		public int hashCode() {
+			return 31 * xsdLocation.hashCode()
+					+ System.identityHashCode(entityResolver);
+		}
+	}
+
+	/*
+	 * Internal Helper Class: CachedGrammars
+	 */
+	static class CachedGrammars {
+		final SchemaInformedGrammars grammars;
+		final List<SchemaDocument> documents;
+		// last content check of documents not read from files
+		volatile long lastValidated;
+
+		CachedGrammars(SchemaInformedGrammars grammars,
+				List<SchemaDocument> documents) {
+			this.grammars = grammars;
+			this.documents = documents;
+			// document contents are not kept
+			for (SchemaDocument sd : documents) {
+				sd.inputSource = null;
+			}
+			this.lastValidated = System.currentTimeMillis();
+		}
+
+		boolean isUpToDate(XMLEntityResolver entityResolver,
+				long revalidationInterval) {
+			long now = System.currentTimeMillis();
+			boolean revalidate = revalidationInterval >= 0
+					&& now - lastValidated >= revalidationInterval;
+			DigestingEntityResolver der = null;
+			try {
+				for (SchemaDocument sd : documents) {
+					if (sd.file != null) {
+						if (sd.file.lastModified() == sd.lastModified
+								&& sd.file.length() == sd.length) {
+							continue;
+						}
+						// touched, compare content
+					} else if (!revalidate) {
+						continue;
+					}
+					if (der == null) {
+						der = new DigestingEntityResolver(entityResolver);
+					}
+					SchemaDocument current = der.resolve(sd.resourceIdentifier);
+					if (current == null || !sd.digest.equals(current.digest)) {
+						return false;
+					}
+				}
+			} catch (IOException e) {
+				return false;
+			}
+			if (revalidate) {
+				lastValidated = now;
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Internal Helper Class: SchemaDocument
+	 */
+	static class SchemaDocument {
+		final XMLResourceIdentifier resourceIdentifier;
+		final String systemId;
+		final String digest;
+		// file the content was read from or null, e.g. application stream
+		final File file;
+		final long lastModified;
+		final long length;
+		// in-memory content, only while grammars are built
+		XMLInputSource inputSource;
+
+		SchemaDocument(XMLResourceIdentifier resourceIdentifier,
+				String systemId, String digest, File file, long lastModified,
+				long length, XMLInputSource inputSource) {
+			this.resourceIdentifier = resourceIdentifier;
+			this.systemId = systemId;
+			this.digest = digest;
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.inputSource = inputSource;
+		}
+	}
+
+	/*
+	 * Internal Helper Class: resolves schema documents to memory so that a
+	 * content digest can be computed for each of them
+	 */
+	static class DigestingEntityResolver implements XMLEntityResolver {
+
+		final XMLEntityResolver entityResolver;
+		final List<SchemaDocument> documents;
+
+		DigestingEntityResolver(XMLEntityResolver entityResolver) {
+			this.entityResolver = entityResolver;
+			this.documents = new ArrayList<SchemaDocument>();
+		}
+
+		List<SchemaDocument> getDocuments() {
+			return documents;
+		}
+
+		public XMLInputSource resolveEntity(
+				XMLResourceIdentifier resourceIdentifier) throws XNIException,
+				IOException {
+			SchemaDocument sd = resolve(resourceIdentifier);
+			if (sd == null) {
+				// e.g., import by namespace only
+				return null;
+			}
+			documents.add(sd);
+			return sd.inputSource;
+		}
+
+		SchemaDocument resolve(XMLResourceIdentifier resourceIdentifier)
+				throws IOException {
+			// copy, identifier instances are re-used by Xerces
+			XMLResourceIdentifier rid = new XMLResourceIdentifierImpl(
+					resourceIdentifier.getPublicId(),
+					resourceIdentifier.getLiteralSystemId(),
+					resourceIdentifier.getBaseSystemId(),
+					resourceIdentifier.getExpandedSystemId(),
+					resourceIdentifier.getNamespace());
+
+			XMLInputSource xis = null;
+			if (entityResolver != null) {
+				xis = entityResolver.resolveEntity(rid);
+			}
+
+			String systemId = getSystemId(rid, xis);
+
+			MessageDigest md = newDigest();
+			XMLInputSource inMemory;
+			File file = null;
+			long lastModified = 0L;
+			long length = 0L;
+
+			if (xis != null && xis.getCharacterStream() != null) {
+				String s = readFully(xis.getCharacterStream());
+				md.update(s.getBytes("UTF-8"));
+				inMemory = new XMLInputSource(xis.getPublicId(), systemId,
+						xis.getBaseSystemId(), new StringReader(s),
+						xis.getEncoding());
+			} else {
+				InputStream is;
+				if (xis != null && xis.getByteStream() != null) {
+					is = xis.getByteStream();
+				} else if (systemId != null) {
+					file = CachingEntityResolver.getFile(systemId);
+					if (file != null) {
+						// before reading, changes while reading are
+						// detected next time
+						lastModified = file.lastModified();
+						length = file.length();
+					}
+					is = new URL(systemId).openStream();
+				} else {
+					return null;
+				}
+				byte[] bytes = readFully(is);
+				md.update(bytes);
+				String publicId = xis == null ? rid.getPublicId() : xis
+						.getPublicId();
+				String baseSystemId = xis == null ? rid.getBaseSystemId()
+						: xis.getBaseSystemId();
+				String encoding = xis == null ? null : xis.getEncoding();
+				inMemory = new XMLInputSource(publicId, systemId,
+						baseSystemId, new ByteArrayInputStream(bytes),
+						encoding);
+			}
+
+			return new SchemaDocument(rid, systemId, toHex(md.digest()), file,
+					lastModified, length, inMemory);
+		}
+	}
+
+}
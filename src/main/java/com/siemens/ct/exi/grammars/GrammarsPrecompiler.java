@@ -0,0 +1,576 @@
+package com.siemens.ct.exi.grammars;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.xerces.util.XMLResourceIdentifierImpl;
+
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.GrammarCache.DigestingEntityResolver;
+import com.siemens.ct.exi.grammars.GrammarCache.SchemaDocument;
+import com.siemens.ct.exi.grammars.persistency.Grammars2JSON;
+import com.siemens.ct.exi.grammars.persistency.Grammars2Snapshot;
+import com.siemens.ct.exi.grammars.persistency.GrammarsConstants;
+import com.siemens.ct.exi.grammars.persistency.JSON2Grammars;
+import com.siemens.ct.exi.grammars.persistency.Snapshot2Grammars;
+
+/**
+ * Compiles a set of XML schemas into persisted grammars (snapshot or JSON).
+ *
+ * <p>
+ * Schemas are compiled in parallel. Output files are named after the schema
+ * and a content hash over all its schema documents (the main document and
+ * any included or imported document). An index file in the output directory
+ * maps each schemaId to its output file and records the content digests, a
+ * schema whose documents are unchanged is not compiled again.
+ * </p>
+ *
+ * <p>
+ * Usage:
+ * <code>GrammarsPrecompiler [-json] [-threads n] (xsd-directory | manifest) output-directory</code>
+ * . A directory is searched recursively for <code>*.xsd</code> files, the
+ * schemaId is the path relative to the directory. A manifest lists one schema
+ * location per line (relative to the manifest), the schemaId is the location
+ * as written. Empty lines and lines starting with <code>#</code> are ignored.
+ * </p>
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public class GrammarsPrecompiler {
+
+	public static final String INDEX_FILE = "grammars.idx";
+
+	/**
+	 * Classpath directory of packaged precompiled grammars (index and output
+	 * files)
+	 */
+	public static final String CLASSPATH_DIRECTORY = "META-INF/exi-grammars/";
+
+	/* number of hex digits of the content hash used in file names */
+	static final int HASH_DIGITS = 16;
+
+	public enum Format {
+		SNAPSHOT(".exig", GrammarsConstants.SNAPSHOT_VERSION), JSON(".json",
+				GrammarsConstants.JSON_REVISION);
+
+		final String extension;
+		final int version;
+
+		Format(String extension, int version) {
+			this.extension = extension;
+			this.version = version;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		/**
+		 * On-disk format version, part of the output file name hash
+		 */
+		public int getVersion() {
+			return version;
+		}
+	}
+
+	protected final File outputDirectory;
+	protected Format format = Format.SNAPSHOT;
+	protected int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	// schemaId --> index entry, as found in the output directory
+	protected final Map<String, IndexEntry> index;
+
+	public GrammarsPrecompiler(File outputDirectory) throws IOException {
+		this.outputDirectory = outputDirectory;
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			throw new IOException("Output directory cannot be created, "
+					+ outputDirectory);
+		}
+		File indexFile = new File(outputDirectory, INDEX_FILE);
+		if (indexFile.exists()) {
+			index = readIndex(new FileInputStream(indexFile));
+		} else {
+			index = new LinkedHashMap<String, IndexEntry>();
+		}
+	}
+
+	public File getOutputDirectory() {
+		return outputDirectory;
+	}
+
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public void setNumberOfThreads(int numberOfThreads) {
+		if (numberOfThreads < 1) {
+			throw new IllegalArgumentException(
+					"Number of threads must be positive, " + numberOfThreads);
+		}
+		this.numberOfThreads = numberOfThreads;
+	}
+
+	public int getNumberOfThreads() {
+		return numberOfThreads;
+	}
+
+	/**
+	 * Returns the output file of the given schema or null if there is none
+	 */
+	public File getOutputFile(String schemaId) {
+		IndexEntry ie = index.get(schemaId);
+		return ie == null ? null : new File(outputDirectory, ie.fileName);
+	}
+
+	/**
+	 * Compiles all schemas whose documents or output format changed since the
+	 * last run. Index entries and output files of schemas that are not part
+	 * of the given schemas are removed. Schemas that fail are reported after all other schemas have been
+	 * compiled and indexed.
+	 * 
+	 * @param schemas
+	 *            schemaId --> schema location
+	 * @return number of compiled schemas, the others were up to date
+	 * @throws EXIException
+	 *             if a schema could not be compiled
+	 * @throws IOException
+	 *             if the index cannot be written
+	 */
+	public int precompile(Map<String, String> schemas) throws EXIException,
+			IOException {
+		ExecutorService executor = Executors
+				.newFixedThreadPool(numberOfThreads);
+		Map<String, Future<IndexEntry>> results = new LinkedHashMap<String, Future<IndexEntry>>();
+		try {
+			for (Map.Entry<String, String> e : schemas.entrySet()) {
+				final String schemaId = e.getKey();
+				final String xsdLocation = e.getValue();
+				final IndexEntry previous = index.get(schemaId);
+				if (previous != null && isUpToDate(schemaId, previous)) {
+					continue;
+				}
+				results.put(schemaId, executor.submit(new Callable<IndexEntry>() {
+					public IndexEntry call() throws Exception {
+						return compile(schemaId, xsdLocation, previous);
+					}
+				}));
+			}
+
+			List<String> failures = new ArrayList<String>();
+			Exception firstFailure = null;
+			for (Map.Entry<String, Future<IndexEntry>> e : results.entrySet()) {
+				try {
+					index.put(e.getKey(), e.getValue().get());
+				} catch (ExecutionException ee) {
+					failures.add(e.getKey());
+					if (firstFailure == null) {
+						firstFailure = ee.getCause() instanceof Exception ? (Exception) ee
+								.getCause() : ee;
+					}
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new EXIException("Interrupted while compiling "
+							+ e.getKey(), ie);
+				}
+			}
+
+			prune(schemas);
+			writeIndex();
+
+			if (firstFailure != null) {
+				throw new EXIException(failures.size() + " of "
+						+ results.size() + " schemas failed " + failures,
+						firstFailure);
+			}
+			return results.size();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	protected IndexEntry compile(String schemaId, String xsdLocation,
+			IndexEntry previous) throws EXIException, IOException {
+		// builders are not thread-safe, one per schema
+		XSDGrammarsBuilder grammarBuilder = XSDGrammarsBuilder.newInstance();
+		DigestingEntityResolver der = new DigestingEntityResolver(null);
+		grammarBuilder.loadGrammars(xsdLocation, der);
+		SchemaInformedGrammars grammars = grammarBuilder.toGrammars();
+		grammars.setSchemaId(schemaId);
+
+		IndexEntry ie = new IndexEntry();
+		for (SchemaDocument sd : der.getDocuments()) {
+			ie.systemIds.add(sd.systemId);
+			ie.digests.add(sd.digest);
+		}
+		ie.fileName = getFileName(schemaId, ie.digests);
+
+		// write to a temporary file first, no partial output on failure
+		File out = new File(outputDirectory, ie.fileName);
+		File tmp = File.createTempFile(ie.fileName, ".tmp", outputDirectory);
+		try {
+			OutputStream os = new FileOutputStream(tmp);
+			try {
+				switch (format) {
+				case JSON:
+					new Grammars2JSON().toGrammarsJSON(grammars, os);
+					break;
+				default:
+					new Grammars2Snapshot().toGrammarsSnapshot(grammars, os);
+				}
+			} finally {
+				os.close();
+			}
+			if ((out.exists() && !out.delete()) || !tmp.renameTo(out)) {
+				throw new IOException("Output file cannot be written, " + out);
+			}
+		} finally {
+			tmp.delete();
+		}
+
+		// output of an earlier schema version
+		if (previous != null && !previous.fileName.equals(ie.fileName)) {
+			new File(outputDirectory, previous.fileName).delete();
+		}
+
+		return ie;
+	}
+
+	/*
+	 * Removes index entries and output files of schemas that are no longer
+	 * part of the input
+	 */
+	protected void prune(Map<String, String> schemas) {
+		Iterator<Map.Entry<String, IndexEntry>> iter = index.entrySet()
+				.iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, IndexEntry> e = iter.next();
+			if (!schemas.containsKey(e.getKey())) {
+				iter.remove();
+				new File(outputDirectory, e.getValue().fileName).delete();
+			}
+		}
+	}
+
+	/*
+	 * Output file name, the hash covers schemaId, output format and version
+	 * and the content of all schema documents
+	 */
+	protected String getFileName(String schemaId, List<String> digests)
+			throws IOException {
+		MessageDigest md = GrammarCache.newDigest();
+		md.update(schemaId.getBytes("UTF-8"));
+		md.update((format.name() + format.getVersion()).getBytes("UTF-8"));
+		for (String digest : digests) {
+			md.update(digest.getBytes("UTF-8"));
+		}
+		return getBaseName(schemaId) + "-"
+				+ GrammarCache.toHex(md.digest()).substring(0, HASH_DIGITS)
+				+ format.getExtension();
+	}
+
+	protected boolean isUpToDate(String schemaId, IndexEntry ie) {
+		if (!new File(outputDirectory, ie.fileName).exists()) {
+			return false;
+		}
+		DigestingEntityResolver der = new DigestingEntityResolver(null);
+		try {
+			for (int i = 0; i < ie.systemIds.size(); i++) {
+				String systemId = ie.systemIds.get(i);
+				SchemaDocument sd = der.resolve(new XMLResourceIdentifierImpl(
+						null, systemId, null, systemId));
+				if (sd == null || !sd.digest.equals(ie.digests.get(i))) {
+					return false;
+				}
+			}
+			// output of another format or format version
+			return ie.fileName.equals(getFileName(schemaId, ie.digests));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	static String getBaseName(String schemaId) {
+		String name = schemaId.substring(Math.max(schemaId.lastIndexOf('/'),
+				schemaId.lastIndexOf('\\')) + 1);
+		if (name.endsWith(".xsd")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return name.length() == 0 ? "grammars" : name;
+	}
+
+	/**
+	 * Collects all <code>*.xsd</code> files below the given directory
+	 * 
+	 * @return schemaId (relative path) --> schema location
+	 */
+	public static Map<String, String> listDirectory(File directory)
+			throws IOException {
+		if (!directory.isDirectory()) {
+			throw new IOException("No directory, " + directory);
+		}
+		Map<String, String> schemas = new LinkedHashMap<String, String>();
+		listDirectory(directory, "", schemas);
+		return schemas;
+	}
+
+	private static void listDirectory(File directory, String prefix,
+			Map<String, String> schemas) {
+		File[] files = directory.listFiles();
+		// stable order independent of the file system
+		Arrays.sort(files);
+		for (File f : files) {
+			if (f.isDirectory()) {
+				listDirectory(f, prefix + f.getName() + "/", schemas);
+			} else if (f.getName().endsWith(".xsd")) {
+				schemas.put(prefix + f.getName(), f.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Reads a manifest with one schema location per line
+	 * 
+	 * @return schemaId (location as written) --> schema location
+	 */
+	public static Map<String, String> readManifest(File manifest)
+			throws IOException {
+		Map<String, String> schemas = new LinkedHashMap<String, String>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(
+				new FileInputStream(manifest), "UTF-8"));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String xsdLocation = line;
+				if (line.indexOf("://") < 0 && !line.startsWith("file:")) {
+					File f = new File(line);
+					if (!f.isAbsolute()) {
+						f = new File(manifest.getAbsoluteFile().getParentFile(),
+								line);
+					}
+					xsdLocation = f.getAbsolutePath();
+				}
+				schemas.put(line, xsdLocation);
+			}
+		} finally {
+			br.close();
+		}
+		return schemas;
+	}
+
+	/**
+	 * Loads grammars precompiled into {@link #CLASSPATH_DIRECTORY} of the
+	 * given class loader. No XML Schema processing takes place. The indexes
+	 * of all classpath entries are searched in classpath order, the grammars
+	 * file is read from the same entry as the matching index.
+	 * 
+	 * @param schemaId
+	 *            schemaId used at precompile time
+	 * @param classLoader
+	 *            class loader used for looking up the resources
+	 * @return schema-informed grammars or null if there are no precompiled
+	 *         grammars for the schemaId
+	 * @throws EXIException
+	 *             if the precompiled grammars cannot be read
+	 */
+	public static SchemaInformedGrammars loadPrecompiledGrammars(
+			String schemaId, ClassLoader classLoader) throws EXIException {
+		try {
+			Enumeration<URL> indexes = classLoader
+					.getResources(CLASSPATH_DIRECTORY + INDEX_FILE);
+			while (indexes.hasMoreElements()) {
+				URL indexURL = indexes.nextElement();
+				IndexEntry ie = readIndex(indexURL.openStream()).get(schemaId);
+				if (ie != null) {
+					return loadPrecompiledGrammars(schemaId, new URL(indexURL,
+							ie.fileName));
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			throw new EXIException("Precompiled grammars for " + schemaId
+					+ " cannot be read", e);
+		}
+	}
+
+	private static SchemaInformedGrammars loadPrecompiledGrammars(
+			String schemaId, URL grammarsURL) throws EXIException, IOException {
+		InputStream gis;
+		try {
+			gis = grammarsURL.openStream();
+		} catch (IOException e) {
+			throw new EXIException("Precompiled grammars for " + schemaId
+					+ " are indexed but missing, " + grammarsURL, e);
+		}
+		SchemaInformedGrammars g;
+		try {
+			if (grammarsURL.getPath().endsWith(Format.JSON.getExtension())) {
+				g = new JSON2Grammars().toGrammars(gis);
+			} else {
+				g = new Snapshot2Grammars().toGrammars(gis);
+			}
+		} finally {
+			gis.close();
+		}
+		if (g.getSchemaId() == null) {
+			// JSON grammars do not carry a schemaId
+			g.setSchemaId(schemaId);
+		}
+		return g;
+	}
+
+	/*
+	 * Index: one line per schema, tab-separated schemaId, file name and pairs
+	 * of systemId and content digest
+	 */
+	static Map<String, IndexEntry> readIndex(InputStream is)
+			throws IOException {
+		Map<String, IndexEntry> index = new LinkedHashMap<String, IndexEntry>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(is,
+				"UTF-8"));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length < 2 || fields.length % 2 != 0) {
+					// skip malformed line, the schema is compiled again
+					continue;
+				}
+				IndexEntry ie = new IndexEntry();
+				ie.fileName = fields[1];
+				for (int i = 2; i < fields.length; i += 2) {
+					ie.systemIds.add(fields[i]);
+					ie.digests.add(fields[i + 1]);
+				}
+				index.put(fields[0], ie);
+			}
+		} finally {
+			br.close();
+		}
+		return index;
+	}
+
+	protected void writeIndex() throws IOException {
+		File indexFile = new File(outputDirectory, INDEX_FILE);
+		Writer w = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(indexFile), "UTF-8"));
+		try {
+			for (Map.Entry<String, IndexEntry> e : index.entrySet()) {
+				IndexEntry ie = e.getValue();
+				w.write(e.getKey());
+				w.write('\t');
+				w.write(ie.fileName);
+				for (int i = 0; i < ie.systemIds.size(); i++) {
+					w.write('\t');
+					w.write(ie.systemIds.get(i));
+					w.write('\t');
+					w.write(ie.digests.get(i));
+				}
+				w.write('\n');
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	/*
+	 * Internal Helper Class: IndexEntry
+	 */
+	static class IndexEntry {
+		String fileName;
+		final List<String> systemIds = new ArrayList<String>();
+		final List<String> digests = new ArrayList<String>();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Format format = Format.SNAPSHOT;
+		int numberOfThreads = 0;
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-json".equals(args[i])) {
+				format = Format.JSON;
+			} else if ("-threads".equals(args[i]) && i + 1 < args.length) {
+				numberOfThreads = Integer.parseInt(args[++i]);
+			} else {
+				files.add(args[i]);
+			}
+		}
+		if (files.size() != 2) {
+			System.err
+					.println("Usage: GrammarsPrecompiler [-json] [-threads n] (xsd-directory | manifest) output-directory");
+			System.exit(1);
+		}
+
+		File input = new File(files.get(0));
+		Map<String, String> schemas = input.isDirectory() ? listDirectory(input)
+				: readManifest(input);
+
+		GrammarsPrecompiler gp = new GrammarsPrecompiler(new File(files.get(1)));
+		gp.setFormat(format);
+		if (numberOfThreads > 0) {
+			gp.setNumberOfThreads(numberOfThreads);
+		}
+
+		long start = System.currentTimeMillis();
+		int compiled = gp.precompile(schemas);
+		System.out.println("Compiled " + compiled + " of " + schemas.size()
+				+ " schemas (" + (schemas.size() - compiled)
+				+ " unchanged) in " + (System.currentTimeMillis() - start)
+				+ " ms");
+	}
+
+}
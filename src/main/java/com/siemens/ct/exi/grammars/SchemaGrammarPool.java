@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package com.siemens.ct.exi.grammars;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.xerces.impl.XMLEntityManager;
+import org.apache.xerces.impl.xs.SchemaGrammar;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.apache.xerces.xni.grammars.XMLSchemaDescription;
+
+/**
+ * Thread-safe pool of already parsed XML Schema documents that can be shared
+ * among schema loads, e.g., imported base schemas such as xml.xsd or xlink.
+ * 
+ * <p>
+ * Grammars are keyed by target namespace and (expanded) schema location so
+ * that different documents for the same namespace do not replace each other.
+ * Imports without a schema location are not taken from the pool.
+ * </p>
+ * 
+ * <p>
+ * Note: pooled documents are assumed to be unchanged, call {@link #clear()}
+ * after modifying schema documents.
+ * </p>
+ * 
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public class SchemaGrammarPool implements XMLGrammarPool {
+
+	// namespace + location --> schema grammar
+	protected final ConcurrentHashMap<String, Grammar> grammars;
+
+	public SchemaGrammarPool() {
+		grammars = new ConcurrentHashMap<String, Grammar>();
+	}
+
+	public int size() {
+		return grammars.size();
+	}
+
+	public Grammar[] retrieveInitialGrammarSet(String grammarType) {
+		// grammars are looked up on demand by location
+		return new Grammar[0];
+	}
+
+	public void cacheGrammars(String grammarType, Grammar[] grammarList) {
+		if (!XMLGrammarDescription.XML_SCHEMA.equals(grammarType)) {
+			return;
+		}
+		for (int i = 0; i < grammarList.length; i++) {
+			if (grammarList[i] instanceof SchemaGrammar) {
+				SchemaGrammar sg = (SchemaGrammar) grammarList[i];
+				String key = getKey(sg.getGrammarDescription());
+				// Note: the schema for schemas has no location
+				if (key != null) {
+					grammars.putIfAbsent(key, sg);
+				}
+			}
+		}
+	}
+
+	public Grammar retrieveGrammar(XMLGrammarDescription desc) {
+		if (!XMLGrammarDescription.XML_SCHEMA.equals(desc.getGrammarType())) {
+			return null;
+		}
+		String key = getKey(desc);
+		return key == null ? null : grammars.get(key);
+	}
+
+	public void lockPool() {
+	}
+
+	public void unlockPool() {
+	}
+
+	public void clear() {
+		grammars.clear();
+	}
+
+	/**
+	 * Returns the namespaces and locations of all pooled grammars.
+	 * 
+	 * @return list of pool keys
+	 */
+	public List<String> getKeys() {
+		return new ArrayList<String>(grammars.keySet());
+	}
+
+	protected static String getKey(XMLGrammarDescription desc) {
+		String location = desc.getExpandedSystemId();
+		if (location == null && desc instanceof XMLSchemaDescription) {
+			// import, e.g. schemaLocation hint relative to importing document
+			String[] hints = ((XMLSchemaDescription) desc).getLocationHints();
+			String literal = desc.getLiteralSystemId();
+			if (literal == null && hints != null && hints.length > 0) {
+				literal = hints[0];
+			}
+			if (literal != null) {
+				try {
+					location = XMLEntityManager.expandSystemId(literal,
+							desc.getBaseSystemId(), false);
+				} catch (Exception e) {
+					// malformed location, not pooled
+					location = null;
+				}
+			}
+		}
+		if (location == null) {
+			return null;
+		}
+		String namespace = desc.getNamespace();
+		return (namespace == null ? "" : namespace) + " " + location;
+	}
+
+}
@@ -40,6 +40,8 @@ import java.util.TreeSet;
 import javax.xml.namespace.QName;
 
 import org.apache.xerces.impl.xpath.regex.EXIRegularExpression;
+import org.apache.xerces.xni.parser.XMLEntityResolver;
+import org.apache.xerces.xni.parser.XMLInputSource;
 import org.apache.xerces.xs.StringList;
 import org.apache.xerces.xs.XSAnnotation;
 import org.apache.xerces.xs.XSAttributeDeclaration;
@@ -165,6 +167,21 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 	// built-In mapping
 	protected Map<QName, QName> datatypeMapping;
 
+	// optional root elements, null if grammars are built for all components
+	protected Set<QName> rootElements;
+
+	// components reachable from root elements, null if not restricted
+	protected Set<XSObject> reachableComponents;
+
+	// translate grammars on first use
+	protected boolean lazy;
+
+	// lazy grammars were handed out, builder cannot be re-used
+	protected boolean lazyGrammars;
+
+	// one lock for all lazy translations, they share the pools
+	protected final Object lazyLock = new Object();
+
 	//
 	GrammarUriContext[] grammarUriContexts;
 
@@ -236,6 +253,8 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 
 		grammarTypes.clear();
 		attributePool.clear();
+		// Note: datatypes refer to the QName contexts of the previous run
+		datatypePool.clear();
 
 		uniqueNamedElements = null;
 		elementFragment0 = null;
@@ -265,6 +284,232 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 		}
 	}
 
+	/**
+	 * Restricts the grammars to the given global elements. Only types,
+	 * elements and attributes reachable from these roots (including
+	 * substitution group members, base types, named types derived from
+	 * reachable types and global declarations matched by wildcards) and the
+	 * built-in XML Schema types are translated and added to the string table.
+	 * 
+	 * <p>
+	 * Note: the resulting grammars differ from the grammars of the whole
+	 * schema (e.g., event codes of DocContent), encoder and decoder need to
+	 * use the same root elements. Named types derived from a built-in type
+	 * only (e.g., from xs:anyType or xs:string) are not reachable that way,
+	 * xsi:type casts from a built-in type to such types are not supported.
+	 * </p>
+	 * 
+	 * @param rootElements
+	 *            qualified names of global elements or null for all
+	 *            components
+	 */
+	public void setRootElements(Set<QName> rootElements) {
+		this.rootElements = rootElements;
+	}
+
+	public Set<QName> getRootElements() {
+		return rootElements;
+	}
+
+	/**
+	 * Returns the named base type of each global type of the loaded schema,
+	 * i.e. the possible targets of xsi:type casts per type. Base types in the
+	 * XML Schema namespace (e.g., xs:anyType) and anonymous base types are
+	 * not listed, see {@link #setRootElements(Set)}.
+	 * 
+	 * @return qualified names of global types mapped to their base type
+	 * @see com.siemens.ct.exi.grammars.persistency.Grammars2Image#setBaseTypes(Map)
+	 */
+	public Map<QName, QName> getBaseTypes() {
+		Map<QName, QName> baseTypes = new HashMap<QName, QName>();
+		XSNamedMap types = xsModel.getComponents(XSConstants.TYPE_DEFINITION);
+		for (int i = 0; i < types.getLength(); i++) {
+			XSTypeDefinition td = (XSTypeDefinition) types.item(i);
+			XSTypeDefinition base = td.getBaseType();
+			if (base != null && !base.getAnonymous()
+					&& !Constants.XML_SCHEMA_NS_URI.equals(td.getNamespace())
+					&& !Constants.XML_SCHEMA_NS_URI.equals(base.getNamespace())) {
+				baseTypes.put(new QName(td.getNamespace(), td.getName()),
+						new QName(base.getNamespace(), base.getName()));
+			}
+		}
+		return baseTypes;
+	}
+
+	/**
+	 * Translates grammars on first use instead of in
+	 * {@link #toGrammars()}. Global (and fragment) start elements and the
+	 * type grammars of global types resolve their grammar from the retained
+	 * XSModel when first asked for it, e.g. an encoder of small documents
+	 * against a large schema only translates what it meets. Resolution is
+	 * thread-safe, all lazy grammars of a builder share one lock that is not
+	 * taken anymore once a grammar is resolved.
+	 * 
+	 * <p>
+	 * Note: the builder keeps the XSModel and its pools alive as long as the
+	 * grammars are in use and cannot load another schema afterwards. The
+	 * executor service (if any) is not used. Grammars created by
+	 * {@link GrammarFactory} are not lazy.
+	 * </p>
+	 * 
+	 * @param lazy
+	 *            true to translate grammars on first use
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	@Override
+	public void loadGrammars(XMLInputSource xsdSource,
+			XMLEntityResolver entityResolver) throws EXIException {
+		if (lazyGrammars) {
+			throw new EXIException(
+					"Lazy grammars of this builder still translate from its XSModel, use a new builder instance");
+		}
+		super.loadGrammars(xsdSource, entityResolver);
+	}
+
+	protected boolean isReachable(XSObject xso) {
+		return reachableComponents == null
+				|| reachableComponents.contains(xso);
+	}
+
+	protected Set<XSObject> getReachableComponents(Set<QName> rootElements)
+			throws EXIException {
+		Set<XSObject> reachable = new HashSet<XSObject>();
+		List<XSObject> todo = new ArrayList<XSObject>();
+
+		// built-in types are always available (e.g., for xsi:type casts)
+		XSNamedMap types = xsModel.getComponents(XSConstants.TYPE_DEFINITION);
+		// named types by their base type, targets of xsi:type casts
+		Map<XSObject, List<XSObject>> derivedTypes = new HashMap<XSObject, List<XSObject>>();
+		for (int i = 0; i < types.getLength(); i++) {
+			XSTypeDefinition td = (XSTypeDefinition) types.item(i);
+			if (Constants.XML_SCHEMA_NS_URI.equals(td.getNamespace())) {
+				todo.add(td);
+			} else if (td.getBaseType() != null
+					&& !Constants.XML_SCHEMA_NS_URI.equals(td.getBaseType()
+							.getNamespace())) {
+				// derivations of built-in types would make all types
+				// reachable
+				List<XSObject> derived = derivedTypes.get(td.getBaseType());
+				if (derived == null) {
+					derived = new ArrayList<XSObject>();
+					derivedTypes.put(td.getBaseType(), derived);
+				}
+				derived.add(td);
+			}
+		}
+
+		for (QName root : rootElements) {
+			XSElementDeclaration el = xsModel.getElementDeclaration(
+					root.getLocalPart(), root.getNamespaceURI());
+			if (el == null) {
+				throw new EXIException("No global element declaration for "
+						+ root);
+			}
+			todo.add(el);
+		}
+
+		while (!todo.isEmpty()) {
+			XSObject o = todo.remove(todo.size() - 1);
+			if (o == null || !reachable.add(o)) {
+				continue;
+			}
+
+			switch (o.getType()) {
+			case XSConstants.ELEMENT_DECLARATION:
+				XSElementDeclaration el = (XSElementDeclaration) o;
+				todo.add(el.getTypeDefinition());
+				if (el.getScope() == XSConstants.SCOPE_GLOBAL) {
+					XSObjectList subs = xsModel.getSubstitutionGroup(el);
+					for (int i = 0; subs != null && i < subs.getLength(); i++) {
+						todo.add(subs.item(i));
+					}
+				}
+				break;
+			case XSConstants.ATTRIBUTE_DECLARATION:
+				todo.add(((XSAttributeDeclaration) o).getTypeDefinition());
+				break;
+			case XSConstants.TYPE_DEFINITION:
+				XSTypeDefinition td = (XSTypeDefinition) o;
+				todo.add(td.getBaseType());
+				if (derivedTypes.containsKey(td)) {
+					todo.addAll(derivedTypes.get(td));
+				}
+				if (td.getTypeCategory() == XSTypeDefinition.SIMPLE_TYPE) {
+					XSSimpleTypeDefinition std = (XSSimpleTypeDefinition) td;
+					todo.add(std.getItemType());
+					XSObjectList members = std.getMemberTypes();
+					for (int i = 0; i < members.getLength(); i++) {
+						todo.add(members.item(i));
+					}
+				} else {
+					XSComplexTypeDefinition ctd = (XSComplexTypeDefinition) td;
+					todo.add(ctd.getSimpleType());
+					XSObjectList attributes = ctd.getAttributeUses();
+					for (int i = 0; i < attributes.getLength(); i++) {
+						todo.add(((XSAttributeUse) attributes.item(i))
+								.getAttrDeclaration());
+					}
+					XSWildcard attributeWC = ctd.getAttributeWildcard();
+					if (attributeWC != null) {
+						addGlobalDeclarations(attributeWC,
+								XSConstants.ATTRIBUTE_DECLARATION, todo);
+					}
+					if (ctd.getParticle() != null) {
+						todo.add(ctd.getParticle().getTerm());
+					}
+				}
+				break;
+			case XSConstants.MODEL_GROUP:
+				XSObjectList particles = ((XSModelGroup) o).getParticles();
+				for (int i = 0; i < particles.getLength(); i++) {
+					todo.add(((XSParticle) particles.item(i)).getTerm());
+				}
+				break;
+			case XSConstants.WILDCARD:
+				// global element grammars are used for wildcard matches
+				addGlobalDeclarations((XSWildcard) o,
+						XSConstants.ELEMENT_DECLARATION, todo);
+				break;
+			default:
+				throw new RuntimeException("Unexpected schema component, " + o);
+			}
+		}
+
+		return reachable;
+	}
+
+	private void addGlobalDeclarations(XSWildcard wc, short componentType,
+			List<XSObject> todo) {
+		StringList sl = wc.getNsConstraintList();
+		XSNamedMap nm = xsModel.getComponents(componentType);
+		for (int i = 0; i < nm.getLength(); i++) {
+			XSObject decl = nm.item(i);
+			boolean inList = sl.contains(decl.getNamespace());
+			switch (wc.getConstraintType()) {
+			case XSWildcard.NSCONSTRAINT_ANY:
+				todo.add(decl);
+				break;
+			case XSWildcard.NSCONSTRAINT_LIST:
+				if (inList) {
+					todo.add(decl);
+				}
+				break;
+			default:
+				// XSWildcard.NSCONSTRAINT_NOT
+				if (!inList) {
+					todo.add(decl);
+				}
+			}
+		}
+	}
+
 	protected StartElement createStartElement(QName qname) {
 		QNameContext qnameContext = getQNameContext(qname.getNamespaceURI(),
 				qname.getLocalPart(), grammarUriContexts);
@@ -300,6 +545,24 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 
 	}
 
+	/**
+	 * Returns the pre-populated prefixes for a given namespace URI.
+	 * 
+	 * @param namespaceUri namespace URI
+	 * @return prefixes
+	 */
+	public static String[] getPrefixes(String namespaceUri) {
+		if (Constants.XML_NULL_NS_URI.equals(namespaceUri)) {
+			return Constants.PREFIXES_EMPTY;
+		} else if (Constants.XML_NS_URI.equals(namespaceUri)) {
+			return Constants.PREFIXES_XML;
+		} else if (Constants.XML_SCHEMA_INSTANCE_NS_URI.equals(namespaceUri)) {
+			return Constants.PREFIXES_XSI;
+		} else {
+			return GrammarUriContext.EMPTY_PREFIXES;
+		}
+	}
+
 	public static GrammarUriContext getUriContext(String namespaceUri,
 			GrammarUriContext[] grammarUriContexts) {
 		namespaceUri = namespaceUri == null ? Constants.XML_NULL_NS_URI
@@ -704,10 +967,17 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 	static class StringTableEntries extends ArrayList<NamespaceUriEntry> {
 		private static final long serialVersionUID = 1L;
 		private final XSModel xsModel;
+		// reachable components or null for all
+		private final Set<XSObject> reachable;
 
 		public StringTableEntries(XSModel xsModel) {
+			this(xsModel, null);
+		}
+
+		public StringTableEntries(XSModel xsModel, Set<XSObject> reachable) {
 			super();
 			this.xsModel = xsModel;
+			this.reachable = reachable;
 			// init default entries
 			this.add(new NamespaceUriEntry(Constants.XML_NULL_NS_URI));
 			NamespaceUriEntry nsue1 = new NamespaceUriEntry(
@@ -733,12 +1003,18 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 			}
 		}
 
+		private boolean isReachable(XSObject xso) {
+			return reachable == null || reachable.contains(xso);
+		}
+
 		private void initializeEntries() {
-			// namespaces
-			StringList nss = xsModel.getNamespaces();
-			for (int i = 0; i < nss.size(); i++) {
-				String ns = (String) nss.get(i);
-				checkNamespaceUriEntry(ns);
+			// namespaces (restricted: namespaces of reachable names only)
+			if (reachable == null) {
+				StringList nss = xsModel.getNamespaces();
+				for (int i = 0; i < nss.size(); i++) {
+					String ns = (String) nss.get(i);
+					checkNamespaceUriEntry(ns);
+				}
 			}
 
 			// simple types
@@ -746,7 +1022,9 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 			for (int k = 0; k < nm.size(); k++) {
 				XSSimpleTypeDefinition std = (XSSimpleTypeDefinition) nm
 						.item(k);
-				handleSimpleType(std);
+				if (isReachable(std)) {
+					handleSimpleType(std);
+				}
 			}
 
 			// complex types
@@ -754,21 +1032,27 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 			for (int k = 0; k < nm.size(); k++) {
 				XSComplexTypeDefinition ctd = (XSComplexTypeDefinition) nm
 						.item(k);
-				this.handleComplexType(ctd);
+				if (isReachable(ctd)) {
+					this.handleComplexType(ctd);
+				}
 			}
 
 			// global elements
 			nm = xsModel.getComponents(XSConstants.ELEMENT_DECLARATION);
 			for (int k = 0; k < nm.size(); k++) {
 				XSElementDeclaration it = (XSElementDeclaration) nm.item(k);
-				this.handleElementDeclaration(it);
+				if (isReachable(it)) {
+					this.handleElementDeclaration(it);
+				}
 			}
 
 			// global attributes
 			nm = xsModel.getComponents(XSConstants.ATTRIBUTE_DECLARATION);
 			for (int k = 0; k < nm.size(); k++) {
 				XSAttributeDeclaration it = (XSAttributeDeclaration) nm.item(k);
-				this.handleAttributeDeclaration(it);
+				if (isReachable(it)) {
+					this.handleAttributeDeclaration(it);
+				}
 			}
 		}
 
@@ -932,9 +1216,18 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 
 			throw new EXIException(sb.toString());
 		}
+		if (lazyGrammars) {
+			throw new EXIException(
+					"Lazy grammars of this builder still translate from its XSModel, use a new builder instance");
+		}
+
+		// components reachable from root elements, if any
+		reachableComponents = rootElements == null ? null
+				: getReachableComponents(rootElements);
 
 		// grammar string entries
-		StringTableEntries ste = new StringTableEntries(xsModel);
+		StringTableEntries ste = new StringTableEntries(xsModel,
+				reachableComponents);
 		// System.out.println("UriSize: " + ste.size());
 		grammarUriContexts = new GrammarUriContext[ste.size()];
 		int qNameID = 0;
@@ -942,17 +1235,7 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 			NamespaceUriEntry nsue = ste.get(i);
 			String namespaceUri = nsue.namespaceUri;
 			// prefixes
-			String[] prefixes;
-			if (Constants.XML_NULL_NS_URI.equals(namespaceUri)) {
-				prefixes = Constants.PREFIXES_EMPTY;
-			} else if (Constants.XML_NS_URI.equals(namespaceUri)) {
-				prefixes = Constants.PREFIXES_XML;
-			} else if (Constants.XML_SCHEMA_INSTANCE_NS_URI
-					.equals(namespaceUri)) {
-				prefixes = Constants.PREFIXES_XSI;
-			} else {
-				prefixes = GrammarUriContext.EMPTY_PREFIXES;
-			}
+			String[] prefixes = getPrefixes(namespaceUri);
 
 			// localName contexts
 			List<String> localNames = nsue.localNames;
@@ -963,7 +1246,7 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 				String localName = localNames.get(k);
 				// add entry
 				QName qname = new QName(namespaceUri, localName);
-				grammarLocalNames[k] = new QNameContext(i, k, qname);
+				grammarLocalNames[k] = createQNameContext(i, k, qname);
 				qNameID++;
 			}
 
@@ -984,7 +1267,8 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 				// global element
 				XSElementDeclaration globalElementDecl = xsModel
 						.getElementDeclaration(localName, namespace);
-				if (globalElementDecl != null) {
+				if (globalElementDecl != null
+						&& isReachable(globalElementDecl)) {
 					StartElement grammarGlobalElement = translatElementDeclarationToFSA(globalElementDecl);
 					qnc.setGlobalStartElement(grammarGlobalElement);
 				}
@@ -992,7 +1276,8 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 				// global attribute
 				XSAttributeDeclaration globalAttributeDecl = xsModel
 						.getAttributeDeclaration(localName, namespace);
-				if (globalAttributeDecl != null) {
+				if (globalAttributeDecl != null
+						&& isReachable(globalAttributeDecl)) {
 					Attribute grammarGlobalAttribute = this
 							.getAttribute(globalAttributeDecl);
 					qnc.setGlobalAttribute(grammarGlobalAttribute);
@@ -1001,7 +1286,7 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 				// global types
 				XSTypeDefinition typeDef = xsModel.getTypeDefinition(localName,
 						namespace);
-				if (typeDef != null) {
+				if (typeDef != null && isReachable(typeDef) && !lazy) {
 					SchemaInformedFirstStartTagGrammar fstr = this
 							.translateTypeDefinitionToFSA(typeDef);
 					qnc.setTypeGrammar(fstr);
@@ -1144,9 +1429,25 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 		SchemaInformedGrammars sig = new SchemaInformedGrammars(grammarContext,
 				documentGrammar, fragmentGrammar, this.getSchemaInformedElementFragmentGrammar());
 
+		// pools and XSModel are in use until all grammars are translated
+		lazyGrammars = lazy;
+
 		return sig;
 	}
 
+	protected QNameContext createQNameContext(int namespaceUriID,
+			int localNameID, QName qname) {
+		if (lazy) {
+			XSTypeDefinition typeDef = xsModel.getTypeDefinition(
+					qname.getLocalPart(), qname.getNamespaceURI());
+			if (typeDef != null && isReachable(typeDef)) {
+				return new LazyQNameContext(namespaceUriID, localNameID, qname,
+						typeDef, this);
+			}
+		}
+		return new QNameContext(namespaceUriID, localNameID, qname);
+	}
+
 	// NOT EQUAL
 	// "" [empty string],
 	// "http://www.w3.org/XML/1998/namespace",
@@ -1238,14 +1539,40 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 
 		// global type definitions
 		XSNamedMap types = xsModel.getComponents(XSConstants.TYPE_DEFINITION);
-		for (int i = 0; i < types.getLength(); i++) {
-			XSTypeDefinition td = (XSTypeDefinition) types.item(i);
+		if (lazy) {
+			// declarations for the fragment grammars, no translation
+			Set<XSComplexTypeDefinition> handled = new HashSet<XSComplexTypeDefinition>();
+			for (int i = 0; i < types.getLength(); i++) {
+				XSTypeDefinition td = (XSTypeDefinition) types.item(i);
+				if (isReachable(td)) {
+					collectDeclarations(td, handled);
+				}
+			}
+			XSNamedMap elements = xsModel
+					.getComponents(XSConstants.ELEMENT_DECLARATION);
+			for (int i = 0; i < elements.getLength(); i++) {
+				XSElementDeclaration el = (XSElementDeclaration) elements
+						.item(i);
+				if (isReachable(el)) {
+					collectDeclarations(el.getTypeDefinition(), handled);
+				}
+			}
+		} else {
+			// content models (in parallel if an executor is set)
+			compileContentModels();
+
+			for (int i = 0; i < types.getLength(); i++) {
+				XSTypeDefinition td = (XSTypeDefinition) types.item(i);
+				if (!isReachable(td)) {
+					continue;
+				}
 
-			// QName name = new QName(td.getNamespace(), td.getName());
-			SchemaInformedFirstStartTagGrammar sir = translateTypeDefinitionToFSA(td);
-			// types cannot be nillable nor typable (only elements!)
-			assert (!sir.isNillable());
-			assert (!sir.isTypeCastable());
+				// QName name = new QName(td.getNamespace(), td.getName());
+				SchemaInformedFirstStartTagGrammar sir = translateTypeDefinitionToFSA(td);
+				// types cannot be nillable nor typable (only elements!)
+				assert (!sir.isNillable());
+				assert (!sir.isTypeCastable());
+			}
 		}
 
 		// global elements
@@ -1254,6 +1581,9 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 		for (int i = 0; i < xsGlobalElements.getLength(); i++) {
 			XSElementDeclaration globalElementDecl = (XSElementDeclaration) xsGlobalElements
 					.item(i);
+			if (!isReachable(globalElementDecl)) {
+				continue;
+			}
 			// create rule for global element (do not have scope)
 			StartElement seGlobalElement = translatElementDeclarationToFSA(globalElementDecl);
 
@@ -1264,6 +1594,53 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 		return globalElements;
 	}
 
+	/*
+	 * Lazy mode: pools the element and attribute declarations that the
+	 * translation of the given type would pool (content model particles and
+	 * attribute uses), the fragment grammars list all of them.
+	 */
+	protected void collectDeclarations(XSTypeDefinition td,
+			Set<XSComplexTypeDefinition> handled) throws EXIException {
+		if (td.getTypeCategory() != XSTypeDefinition.COMPLEX_TYPE) {
+			return;
+		}
+		XSComplexTypeDefinition ctd = (XSComplexTypeDefinition) td;
+		if (!handled.add(ctd)) {
+			return;
+		}
+		XSObjectList attributes = ctd.getAttributeUses();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			XSAttributeUse attrUse = (XSAttributeUse) attributes.item(i);
+			getAttribute(attrUse.getAttrDeclaration());
+		}
+		if (ctd.getParticle() != null) {
+			collectDeclarations(ctd.getParticle(), handled);
+		}
+	}
+
+	private void collectDeclarations(XSParticle xsParticle,
+			Set<XSComplexTypeDefinition> handled) throws EXIException {
+		if (xsParticle.getMaxOccurs() == 0
+				&& !xsParticle.getMaxOccursUnbounded()) {
+			// not part of the content model
+			return;
+		}
+		XSTerm xsTerm = xsParticle.getTerm();
+		if (xsTerm.getType() == XSConstants.ELEMENT_DECLARATION) {
+			XSElementDeclaration el = (XSElementDeclaration) xsTerm;
+			for (XSElementDeclaration possible : getPossibleElementDeclarations(el)) {
+				translatElementDeclarationToFSA(possible);
+				collectDeclarations(possible.getTypeDefinition(), handled);
+			}
+		} else if (xsTerm.getType() == XSConstants.MODEL_GROUP) {
+			XSObjectList particles = ((XSModelGroup) xsTerm).getParticles();
+			for (int i = 0; i < particles.getLength(); i++) {
+				collectDeclarations((XSParticle) particles.item(i), handled);
+			}
+		}
+		// wildcards do not refer to declarations
+	}
+
 	protected Attribute getAttribute(XSAttributeDeclaration attrDecl) {
 		// local name for string table pre-population
 		addLocalNameStringEntry(attrDecl.getNamespace(), attrDecl.getName());
@@ -1447,7 +1824,14 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 			String localName = xsElementDeclaration.getName();
 			javax.xml.namespace.QName qname = new javax.xml.namespace.QName(
 					namespaceURI, localName);
-			se = createStartElement(qname); // new StartElement(qname);
+			if (lazy) {
+				// grammar is translated on first use
+				se = new LazyStartElement(getQNameContext(namespaceURI,
+						localName, grammarUriContexts), xsElementDeclaration,
+						this);
+			} else {
+				se = createStartElement(qname); // new StartElement(qname);
+			}
 			addLocalNameStringEntry(namespaceURI, localName);
 			elementPool.put(xsElementDeclaration, se);
 		}
@@ -1456,6 +1840,16 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 		addLocalNameStringEntry(xsElementDeclaration.getNamespace(),
 				xsElementDeclaration.getName());
 
+		if (!lazy) {
+			translateElementGrammar(xsElementDeclaration, se);
+		}
+
+		return se;
+	}
+
+	protected void translateElementGrammar(
+			XSElementDeclaration xsElementDeclaration, StartElement se)
+			throws EXIException {
 		// type definition --> type grammar
 		XSTypeDefinition td = xsElementDeclaration.getTypeDefinition();
 		SchemaInformedFirstStartTagGrammar type = translateTypeDefinitionToFSA(td);
@@ -1486,8 +1880,90 @@ public class XSDGrammarsBuilder extends EXIContentModelBuilder {
 				se.setGrammar(type);
 			}
 		}
+	}
 
-		return se;
+	/*
+	 * Lazy mode: translates the grammar of a pooled start element once. One
+	 * lock per builder since translation fills the shared pools.
+	 */
+	void resolveElementGrammar(LazyStartElement se) {
+		synchronized (lazyLock) {
+			if (!se.resolved) {
+				try {
+					translateElementGrammar(se.elementDeclaration, se);
+				} catch (EXIException e) {
+					// event API does not allow checked exceptions
+					throw new RuntimeException(e);
+				}
+				se.resolved = true;
+			}
+		}
+	}
+
+	void resolveTypeGrammar(LazyQNameContext qnc) {
+		synchronized (lazyLock) {
+			if (!qnc.resolved) {
+				try {
+					qnc.setTypeGrammar(translateTypeDefinitionToFSA(qnc
+							.typeDefinition));
+				} catch (EXIException e) {
+					throw new RuntimeException(e);
+				}
+				qnc.resolved = true;
+			}
+		}
+	}
+
+	/*
+	 * Start element of a declaration whose grammar is translated from the
+	 * retained XSModel on first use, see setLazy(boolean)
+	 */
+	static class LazyStartElement extends StartElement {
+		private static final long serialVersionUID = 1L;
+
+		final transient XSElementDeclaration elementDeclaration;
+		final transient XSDGrammarsBuilder builder;
+		volatile boolean resolved;
+
+		LazyStartElement(QNameContext qnc,
+				XSElementDeclaration elementDeclaration,
+				XSDGrammarsBuilder builder) {
+			super(qnc);
+			this.elementDeclaration = elementDeclaration;
+			this.builder = builder;
+		}
+
+		public Grammar getGrammar() {
+			if (!resolved) {
+				builder.resolveElementGrammar(this);
+			}
+			return super.getGrammar();
+		}
+	}
+
+	/*
+	 * QName context of a global type whose type grammar (xsi:type) is
+	 * translated from the retained XSModel on first use
+	 */
+	static class LazyQNameContext extends QNameContext {
+
+		final XSTypeDefinition typeDefinition;
+		final XSDGrammarsBuilder builder;
+		volatile boolean resolved;
+
+		LazyQNameContext(int namespaceUriID, int localNameID, QName qName,
+				XSTypeDefinition typeDefinition, XSDGrammarsBuilder builder) {
+			super(namespaceUriID, localNameID, qName);
+			this.typeDefinition = typeDefinition;
+			this.builder = builder;
+		}
+
+		public SchemaInformedFirstStartTagGrammar getTypeGrammar() {
+			if (!resolved) {
+				builder.resolveTypeGrammar(this);
+			}
+			return super.getTypeGrammar();
+		}
 	}
 
 //	// http://www.w3.org/TR/exi/#anyTypeGrammar
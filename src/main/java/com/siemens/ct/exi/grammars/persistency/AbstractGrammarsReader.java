@@ -0,0 +1,499 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import com.siemens.ct.exi.context.GrammarContext;
+import com.siemens.ct.exi.context.GrammarUriContext;
+import com.siemens.ct.exi.context.QNameContext;
+import com.siemens.ct.exi.datatype.BinaryBase64Datatype;
+import com.siemens.ct.exi.datatype.BinaryHexDatatype;
+import com.siemens.ct.exi.datatype.BooleanDatatype;
+import com.siemens.ct.exi.datatype.BooleanFacetDatatype;
+import com.siemens.ct.exi.datatype.Datatype;
+import com.siemens.ct.exi.datatype.DatetimeDatatype;
+import com.siemens.ct.exi.datatype.DecimalDatatype;
+import com.siemens.ct.exi.datatype.FloatDatatype;
+import com.siemens.ct.exi.datatype.IntegerDatatype;
+import com.siemens.ct.exi.datatype.UnsignedIntegerDatatype;
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
+import com.siemens.ct.exi.grammars.XSDGrammarsBuilder;
+import com.siemens.ct.exi.grammars.event.Attribute;
+import com.siemens.ct.exi.grammars.event.AttributeGeneric;
+import com.siemens.ct.exi.grammars.event.AttributeNS;
+import com.siemens.ct.exi.grammars.event.Characters;
+import com.siemens.ct.exi.grammars.event.CharactersGeneric;
+import com.siemens.ct.exi.grammars.event.EndDocument;
+import com.siemens.ct.exi.grammars.event.EndElement;
+import com.siemens.ct.exi.grammars.event.Event;
+import com.siemens.ct.exi.grammars.event.StartDocument;
+import com.siemens.ct.exi.grammars.event.StartElement;
+import com.siemens.ct.exi.grammars.event.StartElementGeneric;
+import com.siemens.ct.exi.grammars.event.StartElementNS;
+import com.siemens.ct.exi.grammars.grammar.DocEnd;
+import com.siemens.ct.exi.grammars.grammar.Document;
+import com.siemens.ct.exi.grammars.grammar.Fragment;
+import com.siemens.ct.exi.grammars.grammar.Grammar;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedDocContent;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedElement;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedFirstStartTag;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedFirstStartTagGrammar;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedFragmentContent;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedGrammar;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedStartTag;
+import com.siemens.ct.exi.types.BuiltIn;
+import com.siemens.ct.exi.types.BuiltInType;
+import com.siemens.ct.exi.values.BinaryBase64Value;
+import com.siemens.ct.exi.values.BinaryHexValue;
+import com.siemens.ct.exi.values.BooleanValue;
+import com.siemens.ct.exi.values.DateTimeValue;
+import com.siemens.ct.exi.values.DecimalValue;
+import com.siemens.ct.exi.values.FloatValue;
+import com.siemens.ct.exi.values.IntegerValue;
+import com.siemens.ct.exi.values.StringValue;
+import com.siemens.ct.exi.values.Value;
+
+/**
+ * Common base for readers that rebuild schema-informed grammars from a
+ * persisted form. Subclasses fill in URIs, datatypes and grammar entries, the
+ * base creates grammars, productions and shared events.
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public abstract class AbstractGrammarsReader {
+	static final Event START_DOCUMENT = new StartDocument();
+	static final Event END_DOCUMENT = new EndDocument();
+	static final Event END_ELEMENT = new EndElement();
+	static final Event START_ELEMENT_GENERIC = new StartElementGeneric();
+	static final Event ATTRIBUTE_GENERIC = new AttributeGeneric();
+	static final Event CHARACTERS_GENERIC = new CharactersGeneric();
+
+	/* state while loading */
+	String schemaId;
+	boolean builtInXMLSchemaTypesOnly;
+	int numberOfQNames;
+	GrammarUriContext[] grammarUriContexts;
+	int[] qnameOffsets;
+	Datatype[] datatypes;
+	GrammarEntry[] grammarEntries;
+	Grammar[] grammars;
+	Map<Long, StartElement> startElementPool;
+	Map<Long, Attribute> attributePool;
+	Map<Integer, Characters> charactersPool;
+	StartElementNS[] startElementNSPool;
+	AttributeNS[] attributeNSPool;
+
+	protected void clear() {
+		schemaId = null;
+		builtInXMLSchemaTypesOnly = false;
+		numberOfQNames = 0;
+		grammarUriContexts = null;
+		qnameOffsets = null;
+		datatypes = null;
+		grammarEntries = null;
+		grammars = null;
+		startElementPool = null;
+		attributePool = null;
+		charactersPool = null;
+		startElementNSPool = null;
+		attributeNSPool = null;
+	}
+
+	/**
+	 * Creates grammars and productions for all grammar entries. Missing
+	 * entries (partial loading) are skipped, start elements referring to them
+	 * keep their event codes but fail when their grammar is requested.
+	 */
+	protected void createGrammars() throws EXIException {
+		grammars = new Grammar[grammarEntries.length];
+		for (int i = 0; i < grammarEntries.length; i++) {
+			if (grammarEntries[i] != null) {
+				createGrammar(i);
+			}
+		}
+		startElementPool = new HashMap<Long, StartElement>();
+		attributePool = new HashMap<Long, Attribute>();
+		charactersPool = new HashMap<Integer, Characters>();
+		for (int i = 0; i < grammarEntries.length; i++) {
+			if (grammarEntries[i] != null) {
+				addProductions(grammars[i], grammarEntries[i]);
+			}
+		}
+	}
+
+	protected void setGlobals(int uriID, int localNameID, int typeGrammarID,
+			int elementGrammarID, int attributeDatatypeID) {
+		QNameContext qnc = grammarUriContexts[uriID]
+				.getQNameContext(localNameID);
+		if (typeGrammarID != GrammarsConstants.SNAPSHOT_NO_ID
+				&& grammars[typeGrammarID] != null) {
+			qnc.setTypeGrammar((SchemaInformedFirstStartTagGrammar) grammars[typeGrammarID]);
+		}
+		if (elementGrammarID != GrammarsConstants.SNAPSHOT_NO_ID
+				&& grammars[elementGrammarID] != null) {
+			qnc.setGlobalStartElement(getStartElement(uriID, localNameID,
+					elementGrammarID));
+		}
+		if (attributeDatatypeID != GrammarsConstants.SNAPSHOT_NO_ID) {
+			qnc.setGlobalAttribute(getAttribute(uriID, localNameID,
+					attributeDatatypeID));
+		}
+	}
+
+	protected SchemaInformedGrammars newSchemaInformedGrammars(
+			int documentID, int fragmentID, int elementFragmentID) {
+		GrammarContext grammarContext = new GrammarContext(grammarUriContexts,
+				numberOfQNames);
+		SchemaInformedGrammars sig = new SchemaInformedGrammars(
+				grammarContext,
+				(Document) grammars[documentID],
+				(Fragment) grammars[fragmentID],
+				elementFragmentID == GrammarsConstants.SNAPSHOT_NO_ID ? null
+						: (SchemaInformedGrammar) grammars[elementFragmentID]);
+		if (schemaId != null) {
+			sig.setSchemaId(schemaId);
+		}
+		sig.setBuiltInXMLSchemaTypesOnly(builtInXMLSchemaTypesOnly);
+
+		return sig;
+	}
+
+	protected Datatype getDatatype(int datatypeID) {
+		if (datatypeID == GrammarsConstants.SNAPSHOT_NO_ID) {
+			return null;
+		} else if (datatypeID == GrammarsConstants.SNAPSHOT_DEFAULT_DATATYPE_ID) {
+			return BuiltIn.DEFAULT_DATATYPE;
+		} else {
+			return datatypes[datatypeID];
+		}
+	}
+
+	/**
+	 * Creates the grammar URI contexts for the given URIs and local-names
+	 */
+	protected void initGrammarUriContexts(String[] namespaceUris,
+			String[][] localNames) {
+		grammarUriContexts = new GrammarUriContext[namespaceUris.length];
+		qnameOffsets = new int[namespaceUris.length];
+		numberOfQNames = 0;
+		for (int i = 0; i < namespaceUris.length; i++) {
+			String namespaceUri = namespaceUris[i];
+			QNameContext[] grammarLocalNames = new QNameContext[localNames[i].length];
+			for (int k = 0; k < grammarLocalNames.length; k++) {
+				QName qname = new QName(namespaceUri, localNames[i][k]);
+				grammarLocalNames[k] = new QNameContext(i, k, qname);
+			}
+			qnameOffsets[i] = numberOfQNames;
+			numberOfQNames += grammarLocalNames.length;
+			grammarUriContexts[i] = new GrammarUriContext(i, namespaceUri,
+					grammarLocalNames,
+					XSDGrammarsBuilder.getPrefixes(namespaceUri));
+		}
+		startElementNSPool = new StartElementNS[namespaceUris.length];
+		attributeNSPool = new AttributeNS[namespaceUris.length];
+	}
+
+	/**
+	 * Returns datatypes without any additional information (e.g., facets) or
+	 * null for any other built-in type
+	 */
+	protected static Datatype newSimpleDatatype(BuiltInType bit,
+			QNameContext qncSchemaType) {
+		switch (bit) {
+		case BINARY_BASE64:
+			return new BinaryBase64Datatype(qncSchemaType);
+		case BINARY_HEX:
+			return new BinaryHexDatatype(qncSchemaType);
+		case BOOLEAN:
+			return new BooleanDatatype(qncSchemaType);
+		case BOOLEAN_FACET:
+			return new BooleanFacetDatatype(qncSchemaType);
+		case DECIMAL:
+			return new DecimalDatatype(qncSchemaType);
+		case FLOAT:
+			return new FloatDatatype(qncSchemaType);
+		case UNSIGNED_INTEGER:
+			return new UnsignedIntegerDatatype(qncSchemaType);
+		case INTEGER:
+			return new IntegerDatatype(qncSchemaType);
+		default:
+			return null;
+		}
+	}
+
+	/*
+	 * Same value mapping as XSDGrammarsBuilder uses for enumerations
+	 */
+	protected static Value parseEnumValue(String tok, Datatype dtEnumValues)
+			throws EXIException {
+		Value enumValue;
+		switch (dtEnumValues.getBuiltInType()) {
+		case BINARY_BASE64:
+			enumValue = BinaryBase64Value.parse(tok);
+			break;
+		case BINARY_HEX:
+			enumValue = BinaryHexValue.parse(tok);
+			break;
+		case BOOLEAN:
+			enumValue = BooleanValue.parse(tok);
+			break;
+		case DECIMAL:
+			enumValue = DecimalValue.parse(tok);
+			break;
+		case FLOAT:
+			enumValue = FloatValue.parse(tok);
+			break;
+		case NBIT_UNSIGNED_INTEGER:
+		case UNSIGNED_INTEGER:
+		case INTEGER:
+			enumValue = IntegerValue.parse(tok);
+			break;
+		case DATETIME:
+			enumValue = DateTimeValue.parse(tok,
+					((DatetimeDatatype) dtEnumValues).getDatetimeType());
+			break;
+		default:
+			enumValue = new StringValue(tok);
+		}
+
+		if (enumValue == null) {
+			throw new EXIException(
+					"Enum value cannot be parsed properly, '" + tok + "'");
+		}
+
+		return enumValue;
+	}
+
+	protected Grammar createGrammar(int grammarID) throws EXIException {
+		Grammar r = grammars[grammarID];
+		if (r != null) {
+			return r;
+		}
+
+		GrammarEntry ge = grammarEntries[grammarID];
+		switch (ge.type) {
+		case GrammarsConstants.SNAPSHOT_DOCUMENT:
+			r = new Document("Document");
+			break;
+		case GrammarsConstants.SNAPSHOT_DOC_CONTENT:
+			r = new SchemaInformedDocContent("DocContent");
+			break;
+		case GrammarsConstants.SNAPSHOT_DOC_END:
+			r = new DocEnd("DocEnd");
+			break;
+		case GrammarsConstants.SNAPSHOT_FRAGMENT:
+			r = new Fragment("Fragment");
+			break;
+		case GrammarsConstants.SNAPSHOT_FRAGMENT_CONTENT:
+			r = new SchemaInformedFragmentContent("FragmentContent");
+			break;
+		case GrammarsConstants.SNAPSHOT_ELEMENT_CONTENT:
+			r = new SchemaInformedElement();
+			break;
+		case GrammarsConstants.SNAPSHOT_START_TAG_CONTENT:
+			r = new SchemaInformedStartTag(
+					(SchemaInformedGrammar) createGrammar(ge.elementContentID));
+			break;
+		case GrammarsConstants.SNAPSHOT_FIRST_START_TAG_CONTENT:
+			SchemaInformedFirstStartTag fst = new SchemaInformedFirstStartTag(
+					(SchemaInformedGrammar) createGrammar(ge.elementContentID));
+			fst.setTypeCastable(ge.typeCastable);
+			fst.setNillable(ge.nillable);
+			r = fst;
+			break;
+		default:
+			throw new EXIException("Unknown grammar type in snapshot: "
+					+ ge.type);
+		}
+		grammars[grammarID] = r;
+
+		if (ge.type == GrammarsConstants.SNAPSHOT_FIRST_START_TAG_CONTENT
+				&& ge.typeEmptyID != GrammarsConstants.SNAPSHOT_NO_ID) {
+			// typeEmpty may refer back to this grammar
+			((SchemaInformedFirstStartTag) r)
+					.setTypeEmpty((SchemaInformedFirstStartTagGrammar) createGrammar(ge.typeEmptyID));
+		}
+
+		return r;
+	}
+
+	protected void addProductions(Grammar r, GrammarEntry ge)
+			throws EXIException {
+		for (int i = 0; i < ge.events.length; i++) {
+			Event event;
+			int a0 = ge.arguments[i * 3];
+			switch (ge.events[i]) {
+			case GrammarsConstants.SNAPSHOT_START_DOCUMENT:
+				event = START_DOCUMENT;
+				break;
+			case GrammarsConstants.SNAPSHOT_END_DOCUMENT:
+				event = END_DOCUMENT;
+				break;
+			case GrammarsConstants.SNAPSHOT_START_ELEMENT:
+				event = getStartElement(a0, ge.arguments[i * 3 + 1],
+						ge.arguments[i * 3 + 2]);
+				break;
+			case GrammarsConstants.SNAPSHOT_START_ELEMENT_NS:
+				if (startElementNSPool[a0] == null) {
+					startElementNSPool[a0] = new StartElementNS(a0,
+							grammarUriContexts[a0].getNamespaceUri());
+				}
+				event = startElementNSPool[a0];
+				break;
+			case GrammarsConstants.SNAPSHOT_START_ELEMENT_GENERIC:
+				event = START_ELEMENT_GENERIC;
+				break;
+			case GrammarsConstants.SNAPSHOT_END_ELEMENT:
+				event = END_ELEMENT;
+				break;
+			case GrammarsConstants.SNAPSHOT_ATTRIBUTE:
+				event = getAttribute(a0, ge.arguments[i * 3 + 1],
+						ge.arguments[i * 3 + 2]);
+				break;
+			case GrammarsConstants.SNAPSHOT_ATTRIBUTE_NS:
+				if (attributeNSPool[a0] == null) {
+					attributeNSPool[a0] = new AttributeNS(a0,
+							grammarUriContexts[a0].getNamespaceUri());
+				}
+				event = attributeNSPool[a0];
+				break;
+			case GrammarsConstants.SNAPSHOT_ATTRIBUTE_GENERIC:
+				event = ATTRIBUTE_GENERIC;
+				break;
+			case GrammarsConstants.SNAPSHOT_CHARACTERS:
+				Characters ch = charactersPool.get(a0);
+				if (ch == null) {
+					ch = new Characters(getDatatype(a0));
+					charactersPool.put(a0, ch);
+				}
+				event = ch;
+				break;
+			case GrammarsConstants.SNAPSHOT_CHARACTERS_GENERIC:
+				event = CHARACTERS_GENERIC;
+				break;
+			default:
+				throw new EXIException("Unknown event in snapshot: "
+						+ ge.events[i]);
+			}
+
+			int nextGrammarID = ge.nextGrammarIDs[i];
+			if (nextGrammarID == GrammarsConstants.SNAPSHOT_NO_ID) {
+				r.addTerminalProduction(event);
+			} else {
+				r.addProduction(event, grammars[nextGrammarID]);
+			}
+		}
+	}
+
+	/*
+	 * Reads strings written by Grammars2Snapshot.writeUTF8
+	 */
+	static String readUTF8(DataInputStream dis) throws IOException {
+		int len = dis.readInt();
+		if (len < 0) {
+			throw new IOException("Invalid string length " + len);
+		}
+		byte[] bytes = new byte[len];
+		dis.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	protected StartElement getStartElement(int uriID, int localNameID,
+			int grammarID) {
+		Long key = getKey(uriID, localNameID, grammarID);
+		StartElement se = startElementPool.get(key);
+		if (se == null) {
+			QNameContext qnc = grammarUriContexts[uriID]
+					.getQNameContext(localNameID);
+			if (grammars[grammarID] == null) {
+				se = new UnloadedStartElement(qnc, grammarUriContexts[uriID]
+						.getNamespaceUri());
+			} else {
+				se = new StartElement(qnc);
+				se.setGrammar(grammars[grammarID]);
+			}
+			startElementPool.put(key, se);
+		}
+		return se;
+	}
+
+	protected Attribute getAttribute(int uriID, int localNameID,
+			int datatypeID) {
+		Long key = getKey(uriID, localNameID, datatypeID);
+		Attribute at = attributePool.get(key);
+		if (at == null) {
+			at = new Attribute(grammarUriContexts[uriID]
+					.getQNameContext(localNameID), getDatatype(datatypeID));
+			attributePool.put(key, at);
+		}
+		return at;
+	}
+
+	private Long getKey(int uriID, int localNameID, int id) {
+		long qnameID = qnameOffsets[uriID] + localNameID;
+		return Long.valueOf((qnameID << 32) | (id & 0xFFFFFFFFL));
+	}
+
+	/*
+	 * Start element whose grammar was not loaded (partial loading), e.g. a
+	 * global element listed by DocContent. Dropping the production would
+	 * change the event codes of all other elements.
+	 */
+	static class UnloadedStartElement extends StartElement {
+		private static final long serialVersionUID = 1L;
+
+		private final String qname;
+
+		UnloadedStartElement(QNameContext qnc, String namespaceUri) {
+			super(qnc);
+			this.qname = "{" + namespaceUri + "}" + qnc.getLocalName();
+		}
+
+		public Grammar getGrammar() {
+			// event API does not allow checked exceptions
+			throw new RuntimeException(new EXIException("Element " + qname
+					+ " is not part of the partially loaded grammars"));
+		}
+	}
+
+	static class GrammarEntry {
+		byte type;
+		boolean typeCastable;
+		boolean nillable;
+		int typeEmptyID = GrammarsConstants.SNAPSHOT_NO_ID;
+		int elementContentID = GrammarsConstants.SNAPSHOT_NO_ID;
+		byte[] events;
+		int[] arguments;
+		int[] nextGrammarIDs;
+	}
+
+}
@@ -0,0 +1,319 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.siemens.ct.exi.datatype.Datatype;
+import com.siemens.ct.exi.datatype.DatetimeDatatype;
+import com.siemens.ct.exi.datatype.EnumerationDatatype;
+import com.siemens.ct.exi.datatype.ListDatatype;
+import com.siemens.ct.exi.datatype.NBitUnsignedIntegerDatatype;
+import com.siemens.ct.exi.datatype.RestrictedCharacterSetDatatype;
+import com.siemens.ct.exi.datatype.StringDatatype;
+import com.siemens.ct.exi.datatype.charset.RestrictedCharacterSet;
+import com.siemens.ct.exi.types.BuiltIn;
+import com.siemens.ct.exi.types.BuiltInType;
+import com.siemens.ct.exi.values.Value;
+
+/**
+ * Interns the datatypes of a grammar set and assigns them stable IDs for a
+ * deduplicated datatype table.
+ * 
+ * <p>
+ * Datatypes are registered in one pass. Referenced datatypes (base datatype,
+ * grammar enumeration and, if requested, list item and enumeration value
+ * datatype) are registered first and get lower IDs. Structurally equal
+ * datatypes, i.e. datatypes that would be serialized the same way, share one
+ * ID. Both registering and looking up an ID take constant time: lookups go
+ * through an identity map and new datatypes are matched against a hash index
+ * over their structural fingerprint.
+ * </p>
+ * 
+ * <p>
+ * <code>BuiltIn.DEFAULT_DATATYPE</code> is not part of the table and is
+ * expected to be handled by the caller.
+ * </p>
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public class DatatypeRegistry {
+
+	public static final int NO_ID = -1;
+
+	protected final boolean registerNestedDatatypes;
+
+	// datatype --> datatype ID, all registered instances
+	protected final Map<Datatype, Integer> datatypeIDs = new IdentityHashMap<Datatype, Integer>();
+	// structure --> datatype ID, one entry per ID
+	protected final Map<Key, Integer> structureIDs = new HashMap<Key, Integer>();
+	protected final List<Datatype> datatypes = new ArrayList<Datatype>();
+
+	/**
+	 * @param registerNestedDatatypes
+	 *            whether list item and enumeration value datatypes get IDs
+	 *            of their own
+	 */
+	public DatatypeRegistry(boolean registerNestedDatatypes) {
+		this.registerNestedDatatypes = registerNestedDatatypes;
+	}
+
+	public void clear() {
+		datatypeIDs.clear();
+		structureIDs.clear();
+		datatypes.clear();
+	}
+
+	/**
+	 * Registers datatype and its referenced datatypes.
+	 * 
+	 * @param dt
+	 *            datatype, may be null
+	 * @return datatype ID or NO_ID for null and the default datatype
+	 */
+	public int register(Datatype dt) {
+		if (dt == null || dt == BuiltIn.DEFAULT_DATATYPE) {
+			return NO_ID;
+		}
+		Integer id = datatypeIDs.get(dt);
+		if (id != null) {
+			return id;
+		}
+
+		// referenced datatypes get lower IDs
+		Key key = new Key(dt);
+		key.baseID = register(dt.getBaseDatatype());
+		key.grammarEnumerationID = register(dt.getGrammarEnumeration());
+		if (registerNestedDatatypes) {
+			switch (dt.getBuiltInType()) {
+			case LIST:
+				key.nestedID = register(((ListDatatype) dt).getListDatatype());
+				break;
+			case ENUMERATION:
+				key.nestedID = register(((EnumerationDatatype) dt)
+						.getEnumValueDatatype());
+				break;
+			default:
+				// no nested datatype
+			}
+		}
+
+		id = structureIDs.get(key);
+		if (id == null) {
+			id = datatypes.size();
+			datatypes.add(dt);
+			structureIDs.put(key, id);
+		}
+		datatypeIDs.put(dt, id);
+		return id;
+	}
+
+	public boolean isRegistered(Datatype dt) {
+		return datatypeIDs.containsKey(dt);
+	}
+
+	/**
+	 * @param dt
+	 *            datatype, may be null
+	 * @return datatype ID or NO_ID if the datatype is not registered
+	 */
+	public int getDatatypeID(Datatype dt) {
+		Integer id = datatypeIDs.get(dt);
+		return id == null ? NO_ID : id;
+	}
+
+	/**
+	 * @return representative datatype of the given ID
+	 */
+	public Datatype getDatatype(int datatypeID) {
+		return datatypes.get(datatypeID);
+	}
+
+	public int getNumberOfDatatypes() {
+		return datatypes.size();
+	}
+
+	/*
+	 * Datatype with the IDs of its referenced datatypes
+	 */
+	static class Key {
+		final Datatype dt;
+		final int hash;
+		int baseID = NO_ID;
+		int grammarEnumerationID = NO_ID;
+		int nestedID = NO_ID;
+
+		Key(Datatype dt) {
+			this.dt = dt;
+			this.hash = getDatatypeFingerprint(dt);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			if (dt == k.dt) {
+				return true;
+			}
+			return hash == k.hash && baseID == k.baseID
+					&& grammarEnumerationID == k.grammarEnumerationID
+					&& nestedID == k.nestedID
+					&& dt.getSchemaType() == k.dt.getSchemaType()
+					&& dt.getWhiteSpace() == k.dt.getWhiteSpace()
+					&& isDerivedByUnion(dt) == isDerivedByUnion(k.dt)
+					&& isEqualDatatype(dt, k.dt);
+		}
+	}
+
+	private static boolean isDerivedByUnion(Datatype dt) {
+		return dt.getBuiltInType() == BuiltInType.STRING
+				&& ((StringDatatype) dt).isDerivedByUnion();
+	}
+
+	/* consistent with isEqualDatatype */
+	static int getDatatypeFingerprint(Datatype dt) {
+		BuiltInType bit = dt.getBuiltInType();
+		int h = bit.ordinal();
+		switch(bit) {
+		case NBIT_UNSIGNED_INTEGER:
+			h = 31 * h + ((NBitUnsignedIntegerDatatype) dt).getNumberOfBits();
+			break;
+		case DATETIME:
+			h = 31 * h + ((DatetimeDatatype) dt).getDatetimeType().ordinal();
+			break;
+		case RCS_STRING:
+			h = 31 * h + ((RestrictedCharacterSetDatatype) dt).getRestrictedCharacterSet().size();
+			break;
+		case ENUMERATION:
+			h = 31 * h + ((EnumerationDatatype) dt).getEnumerationSize();
+			break;
+		case LIST:
+			h = 31 * h + getDatatypeFingerprint(((ListDatatype) dt).getListDatatype());
+			break;
+		default:
+			break;
+		}
+		return h;
+	}
+
+	static boolean isEqualDatatype(Datatype dt1, Datatype dt2) {
+		BuiltInType bit1 = dt1.getBuiltInType();
+		BuiltInType bit2 = dt2.getBuiltInType();
+		
+		if(bit1 != bit2) {
+			return false;
+		}
+		
+		
+		switch(bit1) {
+		case BINARY_BASE64:
+		case BINARY_HEX:
+		case BOOLEAN:
+		case BOOLEAN_FACET:
+		case DECIMAL:
+		case FLOAT:
+		case UNSIGNED_INTEGER:
+		case INTEGER:
+		case STRING:
+			/* the same --> OK */
+			break;
+		case NBIT_UNSIGNED_INTEGER:
+			NBitUnsignedIntegerDatatype nbit1 = (NBitUnsignedIntegerDatatype) dt1;
+			NBitUnsignedIntegerDatatype nbit2 = (NBitUnsignedIntegerDatatype) dt2;
+			if ( nbit1.getNumberOfBits() != nbit2.getNumberOfBits() ) {
+				return false;
+			}
+			if ( !nbit1.getLowerBound().equals(nbit2.getLowerBound()) ) {
+				return false;
+			}
+			if ( !nbit1.getUpperBound().equals(nbit2.getUpperBound()) ) {
+				return false;
+			}
+			break;
+		case DATETIME:
+			DatetimeDatatype d1 =  (DatetimeDatatype) dt1;
+			DatetimeDatatype d2 =  (DatetimeDatatype) dt2;
+			if ( d1.getDatetimeType() != d2.getDatetimeType() ) {
+				return false;
+			}
+			break;
+		case RCS_STRING:
+			RestrictedCharacterSetDatatype r1 =   (RestrictedCharacterSetDatatype) dt1;
+			RestrictedCharacterSetDatatype r2 =   (RestrictedCharacterSetDatatype) dt2;
+			RestrictedCharacterSet rcs1 = r1.getRestrictedCharacterSet();
+			RestrictedCharacterSet rcs2 = r2.getRestrictedCharacterSet();
+			if(rcs1.size() != rcs2.size()) {
+				return false;
+			}
+			for(int i=0; i<rcs1.size(); i++) {
+				if( rcs1.getCodePoint(i) != rcs2.getCodePoint(i) ) {
+					return false;
+				}
+			}
+			break;
+		case ENUMERATION:
+			EnumerationDatatype e1 =  (EnumerationDatatype) dt1;
+			EnumerationDatatype e2 =  (EnumerationDatatype) dt2;
+			if ( e1.getEnumerationSize() != e2.getEnumerationSize() ) {
+				return false;
+			}
+			if ( e1.getEnumValueDatatype().getBuiltInType() != e2.getEnumValueDatatype().getBuiltInType() ) {
+				return false;
+			}
+			for(int i=0; i<e1.getEnumerationSize(); i++) {
+				Value v1 = e1.getEnumValue(i);
+				Value v2 = e2.getEnumValue(i);
+				if( !v1.equals(v2) ) {
+					return false;
+				}
+			}
+			break;
+		case LIST:
+			ListDatatype l1 =  (ListDatatype) dt1;
+			ListDatatype l2 =  (ListDatatype) dt2;
+			
+			if( ! isEqualDatatype(l1.getListDatatype(), l2.getListDatatype()) ) {
+				return false;
+			}
+			break;
+		default:
+			return false;
+		}
+		
+		
+		return true;
+	}
+}
@@ -24,16 +24,13 @@ package com.siemens.ct.exi.grammars.persistency;
  */
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import com.siemens.ct.exi.datatype.Datatype;
-import com.siemens.ct.exi.datatype.DatetimeDatatype;
-import com.siemens.ct.exi.datatype.EnumerationDatatype;
-import com.siemens.ct.exi.datatype.ListDatatype;
-import com.siemens.ct.exi.datatype.NBitUnsignedIntegerDatatype;
-import com.siemens.ct.exi.datatype.RestrictedCharacterSetDatatype;
-import com.siemens.ct.exi.datatype.charset.RestrictedCharacterSet;
 import com.siemens.ct.exi.grammars.event.Attribute;
 import com.siemens.ct.exi.grammars.event.AttributeNS;
 import com.siemens.ct.exi.grammars.event.Characters;
@@ -52,67 +49,378 @@ import com.siemens.ct.exi.grammars.grammar.SchemaInformedFirstStartTagGrammar;
 import com.siemens.ct.exi.grammars.grammar.SchemaInformedFragmentContent;
 import com.siemens.ct.exi.grammars.grammar.SchemaInformedStartTagGrammar;
 import com.siemens.ct.exi.grammars.production.Production;
-import com.siemens.ct.exi.types.BuiltInType;
-import com.siemens.ct.exi.values.Value;
 
+/**
+ * Dispenses grammar IDs for all handled grammars.
+ * 
+ * <p>
+ * If grammars are optimized, equivalent grammars share one ID. Two grammars
+ * are equivalent if they have the same type and flags, the same events and
+ * their referenced grammars (next grammar, start element grammar, element
+ * content and TypeEmpty grammar) are pairwise equivalent again. The coarsest
+ * such equivalence is computed for the whole grammar graph by partition
+ * refinement (Hopcroft) in O(m log n), m being the number of grammar
+ * references and n the number of grammars.
+ * </p>
+ */
 public class GrammarIdDispenser {
 
-	/**
-	 * large maxOccurs values create very large grammars that tend to consume
-	 * much computational power. Define the maximum depth. 
-	 */
-	static final int DEFAULT_RECURSIVE_HANDLED_DEPTH_STOP = 100;
-	final int RECURSIVE_HANDLED_DEPTH_STOP;
-
 	final boolean doOptimizeGrammars;
 	
+	/* handled grammars in discovery order */
 	private List<Grammar> grammars;
+	/* handled grammar (identity) --> position in grammars */
+	private Map<Grammar, Integer> grammarIndex;
+	
+	/* optimized only: class (= ID) per handled grammar and first grammar per class */
+	private int[] classOf;
+	private List<Grammar> representatives;
 	
 	public GrammarIdDispenser() {
 		this(true);
 	}
 	
 	public GrammarIdDispenser(boolean optimizeGrammars) {
-		this(optimizeGrammars, DEFAULT_RECURSIVE_HANDLED_DEPTH_STOP);
+		doOptimizeGrammars = optimizeGrammars;
+		grammars = new ArrayList<Grammar>();	
+		grammarIndex = new IdentityHashMap<Grammar, Integer>();
 	}
 	
+	/**
+	 * @deprecated grammar equivalence is no longer depth-limited, use
+	 *             {@link #GrammarIdDispenser(boolean)}
+	 */
+	@Deprecated
 	public GrammarIdDispenser(boolean optimizeGrammars, int depth) {
-		doOptimizeGrammars = optimizeGrammars;
-		RECURSIVE_HANDLED_DEPTH_STOP = depth;
-		grammars = new ArrayList<Grammar>();	
+		this(optimizeGrammars);
 	}
 	
 	
 	public void clear() {
 		grammars.clear();
+		grammarIndex.clear();
+		invalidate();
+	}
+	
+	private void invalidate() {
+		classOf = null;
+		representatives = null;
+	}
+	
+	private List<Grammar> getRepresentatives() {
+		if (!doOptimizeGrammars) {
+			return grammars;
+		}
+		if (representatives == null) {
+			minimize();
+		}
+		return representatives;
+	}
+	
+	/*
+	 * Successor slots of a grammar: 0 ... element content, 1 ... TypeEmpty,
+	 * 2+2i ... next grammar of production i, 3+2i ... start element grammar
+	 */
+	private static Grammar getSuccessor(Grammar gr, int slot) {
+		switch(slot) {
+		case 0:
+			return (gr instanceof SchemaInformedStartTagGrammar) ? gr.getElementContentGrammar() : null;
+		case 1:
+			return (gr instanceof SchemaInformedFirstStartTagGrammar) ? ((SchemaInformedFirstStartTagGrammar) gr).getTypeEmpty() : null;
+		default:
+			Production p = gr.getProduction((slot - 2) / 2);
+			if (slot % 2 == 0) {
+				return p.getNextGrammar();
+			} else if (p.getEvent() instanceof StartElement) {
+				return ((StartElement) p.getEvent()).getGrammar();
+			} else {
+				return null;
+			}
+		}
+	}
+	
+	private static int getNumberOfSlots(Grammar gr) {
+		return 2 + 2 * gr.getNumberOfEvents();
 	}
 	
-	// null ... grammar not found
-	// != null ... found equal grammar
-	private Grammar getEqualGrammar(Grammar gr) {
+	/**
+	 * Computes the coarsest grammar equivalence over all handled grammars (and
+	 * the grammars they refer to) and numbers the classes in discovery order.
+	 */
+	private void minimize() {
+		// also picks up referenced grammars not handled yet
+		int numberOfEdges = 0;
+		int numberOfLetters = 2;
+		for (int i = 0; i < grammars.size(); i++) {
+			Grammar g = grammars.get(i);
+			int slots = getNumberOfSlots(g);
+			numberOfLetters = Math.max(numberOfLetters, slots);
+			for (int a = 0; a < slots; a++) {
+				Grammar t = getSuccessor(g, a);
+				if (t != null) {
+					numberOfEdges++;
+					if (!grammarIndex.containsKey(t)) {
+						grammarIndex.put(t, grammars.size());
+						grammars.add(t);
+					}
+				}
+			}
+		}
+		
+		final int n = grammars.size();
+		classOf = new int[n];
+		representatives = new ArrayList<Grammar>();
+		if (n == 0) {
+			return;
+		}
+		
+		// inverse edges grouped by target
+		int[] edgeSource = new int[numberOfEdges];
+		int[] edgeTarget = new int[numberOfEdges];
+		int[] edgeLetter = new int[numberOfEdges];
+		int[] inStart = new int[n + 1];
+		int e = 0;
+		for (int s = 0; s < n; s++) {
+			Grammar g = grammars.get(s);
+			for (int a = 0; a < getNumberOfSlots(g); a++) {
+				Grammar t = getSuccessor(g, a);
+				if (t != null) {
+					edgeSource[e] = s;
+					edgeTarget[e] = grammarIndex.get(t);
+					edgeLetter[e] = a;
+					inStart[edgeTarget[e] + 1]++;
+					e++;
+				}
+			}
+		}
+		for (int t = 0; t < n; t++) {
+			inStart[t + 1] += inStart[t];
+		}
+		int[] inEdges = new int[numberOfEdges];
+		int[] fill = new int[n];
+		System.arraycopy(inStart, 0, fill, 0, n);
+		for (e = 0; e < numberOfEdges; e++) {
+			inEdges[fill[edgeTarget[e]]++] = e;
+		}
 		
-		for(Grammar gx : this.grammars) {
-			if(gr == gx) {
-				// System.out.println("Exactly the same grammar found: " + gx);
-				return gx;
+		/*
+		 * Initial partition: equal local label (type, flags, events). Blocks
+		 * are contiguous ranges in elems, marked elements are kept in
+		 * [first, mid).
+		 */
+		int[] blockOf = new int[n];
+		int numberOfBlocks = 0;
+		Map<Integer, List<Integer>> labels = new HashMap<Integer, List<Integer>>();
+		DatatypeRegistry datatypes = new DatatypeRegistry(true);
+		for (int s = 0; s < n; s++) {
+			Grammar g = grammars.get(s);
+			Integer fp = getFingerprint(g);
+			List<Integer> candidates = labels.get(fp);
+			if (candidates == null) {
+				candidates = new ArrayList<Integer>();
+				labels.put(fp, candidates);
+			}
+			blockOf[s] = -1;
+			for (int c : candidates) {
+				if (isEqualLabel(grammars.get(c), g, datatypes)) {
+					blockOf[s] = blockOf[c];
+					break;
+				}
+			}
+			if (blockOf[s] == -1) {
+				blockOf[s] = numberOfBlocks++;
+				candidates.add(s);
+			}
+		}
+		
+		int[] first = new int[n];
+		int[] mid = new int[n];
+		int[] end = new int[n];
+		for (int s = 0; s < n; s++) {
+			end[blockOf[s]]++;
+		}
+		for (int b = 0; b < numberOfBlocks; b++) {
+			first[b] = (b == 0) ? 0 : end[b - 1];
+			end[b] += first[b];
+			mid[b] = first[b];
+		}
+		int[] elems = new int[n];
+		int[] loc = new int[n];
+		for (int s = 0; s < n; s++) {
+			int b = blockOf[s];
+			loc[s] = mid[b]++;
+			elems[loc[s]] = s;
+		}
+		for (int b = 0; b < numberOfBlocks; b++) {
+			mid[b] = first[b];
+		}
+		
+		/*
+		 * Hopcroft: every block is used as splitter once it has been created,
+		 * a split block keeps its ID for the larger half so that the smaller
+		 * half is queued. Each grammar is part of O(log n) splitters.
+		 */
+		int[] queue = new int[n];
+		int head = 0;
+		int tail = 0;
+		for (int b = 0; b < numberOfBlocks; b++) {
+			queue[tail++] = b;
+		}
+		
+		int[] letterHead = new int[numberOfLetters];
+		for (int a = 0; a < numberOfLetters; a++) {
+			letterHead[a] = -1;
+		}
+		int[] nextInLetter = new int[numberOfEdges];
+		int[] touchedLetters = new int[numberOfLetters];
+		int[] touchedBlocks = new int[n];
+		int[] splitter = new int[n];
+		
+		while (head < tail) {
+			int sb = queue[head++];
+			int size = end[sb] - first[sb];
+			System.arraycopy(elems, first[sb], splitter, 0, size);
+			
+			// predecessors of the splitter grouped by letter
+			int numberOfTouchedLetters = 0;
+			for (int k = 0; k < size; k++) {
+				int t = splitter[k];
+				for (int i = inStart[t]; i < inStart[t + 1]; i++) {
+					int ie = inEdges[i];
+					int a = edgeLetter[ie];
+					if (letterHead[a] == -1) {
+						touchedLetters[numberOfTouchedLetters++] = a;
+					}
+					nextInLetter[ie] = letterHead[a];
+					letterHead[a] = ie;
+				}
 			}
 			
-			if ( isSameGrammarType(gr, gx) ) {
-				// type of grammar the same
+			for (int l = 0; l < numberOfTouchedLetters; l++) {
+				int a = touchedLetters[l];
+				int numberOfTouchedBlocks = 0;
+				
+				// mark predecessors
+				for (int ie = letterHead[a]; ie != -1; ie = nextInLetter[ie]) {
+					int s = edgeSource[ie];
+					int b = blockOf[s];
+					int i = loc[s];
+					if (i >= mid[b]) {
+						if (mid[b] == first[b]) {
+							touchedBlocks[numberOfTouchedBlocks++] = b;
+						}
+						int j = mid[b]++;
+						int o = elems[j];
+						elems[j] = s;
+						loc[s] = j;
+						elems[i] = o;
+						loc[o] = i;
+					}
+				}
+				letterHead[a] = -1;
 				
-				if (gr.getNumberOfEvents() == gx.getNumberOfEvents()) {
-					List<Grammar> handled = new ArrayList<Grammar>();
-					if( isEqualGrammar(gr, gx, handled) ) {
-						// the same grammar found
-						// System.out.println("Same grammar found for: " +  gx + " == " + gr);
-						return gx;
+				// split touched blocks into marked and unmarked part
+				for (int k = 0; k < numberOfTouchedBlocks; k++) {
+					int b = touchedBlocks[k];
+					if (mid[b] == end[b]) {
+						// all marked
+						mid[b] = first[b];
+						continue;
+					}
+					int nb = numberOfBlocks++;
+					if (mid[b] - first[b] <= end[b] - mid[b]) {
+						first[nb] = first[b];
+						end[nb] = mid[b];
+						first[b] = mid[b];
+					} else {
+						first[nb] = mid[b];
+						end[nb] = end[b];
+						end[b] = mid[b];
 					}
+					mid[b] = first[b];
+					mid[nb] = first[nb];
+					for (int i = first[nb]; i < end[nb]; i++) {
+						blockOf[elems[i]] = nb;
+					}
+					queue[tail++] = nb;
 				}
 			}
+		}
+		
+		// number classes in discovery order
+		int[] blockClass = new int[numberOfBlocks];
+		for (int b = 0; b < numberOfBlocks; b++) {
+			blockClass[b] = -1;
+		}
+		for (int s = 0; s < n; s++) {
+			int b = blockOf[s];
+			if (blockClass[b] == -1) {
+				blockClass[b] = representatives.size();
+				representatives.add(grammars.get(s));
+			}
+			classOf[s] = blockClass[b];
+		}
+	}
+	
+	/**
+	 * Structural fingerprint that is consistent with grammar equivalence:
+	 * grammar type and flags, and per production
+	 * the event type, its QName or namespace, its datatype and the shape (type
+	 * and number of events) of the referenced grammars. Successors are not
+	 * followed any further so that recursive grammars terminate.
+	 */
+	private static int getFingerprint(Grammar gr) {
+		int h = getShape(gr);
+		if ( gr instanceof SchemaInformedFirstStartTagGrammar) {
+			SchemaInformedFirstStartTagGrammar fr = (SchemaInformedFirstStartTagGrammar) gr;
+			h = 31 * h + (fr.isTypeCastable() ? 1 : 0);
+			h = 31 * h + (fr.isNillable() ? 1 : 0);
+			h = 31 * h + getShape(fr.getTypeEmpty());
+		}
+		if ( gr instanceof SchemaInformedStartTagGrammar ) {
+			h = 31 * h + getShape(gr.getElementContentGrammar());
+		}
+		
+		for(int i=0; i<gr.getNumberOfEvents(); i++) {
+			Production p = gr.getProduction(i);
+			Event ev = p.getEvent();
+			h = 31 * h + ev.getEventType().ordinal();
 			
+			switch(ev.getEventType()) {
+			case ATTRIBUTE:
+				Attribute at = (Attribute) ev;
+				h = 31 * h + at.getQName().hashCode();
+				h = 31 * h + DatatypeRegistry.getDatatypeFingerprint(at.getDatatype());
+				break;
+			case ATTRIBUTE_NS:
+				h = 31 * h + ((AttributeNS) ev).getNamespaceURI().hashCode();
+				break;
+			case START_ELEMENT:
+				StartElement se = (StartElement) ev;
+				h = 31 * h + se.getQName().hashCode();
+				h = 31 * h + getShape(se.getGrammar());
+				break;
+			case START_ELEMENT_NS:
+				h = 31 * h + ((StartElementNS) ev).getNamespaceURI().hashCode();
+				break;
+			case CHARACTERS:
+				h = 31 * h + DatatypeRegistry.getDatatypeFingerprint(((Characters) ev).getDatatype());
+				break;
+			default:
+				break;
+			}
+			
+			h = 31 * h + getShape(p.getNextGrammar());
 		}
 		
-		return null;
+		return h;
+	}
+	
+	private static int getShape(Grammar gr) {
+		if (gr == null) {
+			return -1;
+		}
+		return 31 * getGrammarTypeID(gr) + gr.getNumberOfEvents();
 	}
 	
 	private static int getGrammarTypeID(Grammar gr) {
@@ -168,31 +476,11 @@ public class GrammarIdDispenser {
 	}
 	
 	
-	private boolean isEqualGrammar(Grammar gr, Grammar gx, List<Grammar> handled) {
-		if( gr == gx) {
-			return true;
-		}
-		
-		// handled already ?
-		for(Grammar g : handled) {
-			if(g == gx) {
-				// return true;
-				for(Grammar gg : handled) {
-					if(gg == gr) {
-						return true;
-					}
-				}
-			}
-		}
-		handled.add(gx);
-		handled.add(gr);
-		
-		if(handled.size() > RECURSIVE_HANDLED_DEPTH_STOP) {
-			// System.out.println(handled.size());	
-			return false;
-		}
-		
-		
+	/*
+	 * Same type, flags and events, referenced grammars are not compared
+	 */
+	private static boolean isEqualLabel(Grammar gr, Grammar gx,
+			DatatypeRegistry datatypes) {
 		if ( ! isSameGrammarType(gr, gx) ) {
 			return false;
 		}
@@ -201,13 +489,15 @@ public class GrammarIdDispenser {
 			return false;
 		}
 		
+		for(int a=0; a<getNumberOfSlots(gr); a++) {
+			if ( (getSuccessor(gr, a) == null) != (getSuccessor(gx, a) == null) ) {
+				return false;
+			}
+		}
+		
 		for(int i=0; i<gr.getNumberOfEvents(); i++) {
-			Production pr = gr.getProduction(i);
-			Production px = gx.getProduction(i);
-			
-			// event
-			Event er = pr.getEvent();
-			Event ex = px.getEvent();
+			Event er = gr.getProduction(i).getEvent();
+			Event ex = gx.getProduction(i).getEvent();
 			
 			if(er.getEventType() != ex.getEventType()) {
 				return false;
@@ -227,7 +517,7 @@ public class GrammarIdDispenser {
 				if ( ! ar.getQName().equals(ax.getQName())) {
 					return false;
 				}
-				if ( ! isEqualDatatype(ar.getDatatype(), ax.getDatatype()) ) {
+				if ( ! isEqualDatatype(ar.getDatatype(), ax.getDatatype(), datatypes) ) {
 					return false;
 				}
 				break;
@@ -241,16 +531,9 @@ public class GrammarIdDispenser {
 			case START_ELEMENT:
 				StartElement ser = (StartElement) er;
 				StartElement sex = (StartElement) ex;
-				
 				if ( ! ser.getQName().equals(sex.getQName())) {
 					return false;
 				}
-				
-				if( ! isEqualGrammar(ser.getGrammar(), sex.getGrammar(), handled )  ) {
-				// if( ! isEqualGrammar(ser.getGrammar(), sex.getGrammar(), new ArrayList<Grammar>() )  ) {
-					return false;
-				}
-				
 				break;
 			case START_ELEMENT_NS:
 				StartElementNS sensr = (StartElementNS) er;
@@ -262,172 +545,63 @@ public class GrammarIdDispenser {
 			case CHARACTERS:
 				Characters chr = (Characters) er;
 				Characters chx = (Characters) ex;
-				if ( ! isEqualDatatype(chr.getDatatype(), chx.getDatatype()) ) {
+				if ( ! isEqualDatatype(chr.getDatatype(), chx.getDatatype(), datatypes) ) {
 					return false;
 				}
 				break;
 			default:
 				throw new RuntimeException("Unexpected Grammar Event Type for: " + er);
 			}
-			
-				
-			// next grammar
-			Grammar nr = pr.getNextGrammar();
-			Grammar nx = px.getNextGrammar();
-			
-			if( ! isEqualGrammar(nr, nx, handled )  ) {
-			// if( ! isEqualGrammar(nr, nx, new ArrayList<Grammar>()  )  ) {
-				return false;
-			}
 		}
 		
-		
 		return true;
 	}
 	
-	
-
-	private static boolean isEqualDatatype(Datatype dt1, Datatype dt2) {
-		BuiltInType bit1 = dt1.getBuiltInType();
-		BuiltInType bit2 = dt2.getBuiltInType();
-		
-		if(bit1 != bit2) {
-			return false;
-		}
-		
-		
-		switch(bit1) {
-		case BINARY_BASE64:
-		case BINARY_HEX:
-		case BOOLEAN:
-		case BOOLEAN_FACET:
-		case DECIMAL:
-		case FLOAT:
-		case UNSIGNED_INTEGER:
-		case INTEGER:
-		case STRING:
-			/* the same --> OK */
-			break;
-		case NBIT_UNSIGNED_INTEGER:
-			NBitUnsignedIntegerDatatype nbit1 = (NBitUnsignedIntegerDatatype) dt1;
-			NBitUnsignedIntegerDatatype nbit2 = (NBitUnsignedIntegerDatatype) dt2;
-			if ( nbit1.getNumberOfBits() != nbit2.getNumberOfBits() ) {
-				return false;
-			}
-			if ( !nbit1.getLowerBound().equals(nbit2.getLowerBound()) ) {
-				return false;
-			}
-			if ( !nbit1.getUpperBound().equals(nbit2.getUpperBound()) ) {
-				return false;
-			}
-			break;
-		case DATETIME:
-			DatetimeDatatype d1 =  (DatetimeDatatype) dt1;
-			DatetimeDatatype d2 =  (DatetimeDatatype) dt2;
-			if ( d1.getDatetimeType() != d2.getDatetimeType() ) {
-				return false;
-			}
-			break;
-		case RCS_STRING:
-			RestrictedCharacterSetDatatype r1 =   (RestrictedCharacterSetDatatype) dt1;
-			RestrictedCharacterSetDatatype r2 =   (RestrictedCharacterSetDatatype) dt2;
-			RestrictedCharacterSet rcs1 = r1.getRestrictedCharacterSet();
-			RestrictedCharacterSet rcs2 = r2.getRestrictedCharacterSet();
-			if(rcs1.size() != rcs2.size()) {
-				return false;
-			}
-			for(int i=0; i<rcs1.size(); i++) {
-				if( rcs1.getCodePoint(i) != rcs2.getCodePoint(i) ) {
-					return false;
-				}
-			}
-			break;
-		case ENUMERATION:
-			EnumerationDatatype e1 =  (EnumerationDatatype) dt1;
-			EnumerationDatatype e2 =  (EnumerationDatatype) dt2;
-			if ( e1.getEnumerationSize() != e2.getEnumerationSize() ) {
-				return false;
-			}
-			if ( e1.getEnumValueDatatype().getBuiltInType() != e2.getEnumValueDatatype().getBuiltInType() ) {
-				return false;
-			}
-			for(int i=0; i<e1.getEnumerationSize(); i++) {
-				Value v1 = e1.getEnumValue(i);
-				Value v2 = e1.getEnumValue(i);
-				if( !v1.equals(v2) ) {
-					return false;
-				}
-			}
-			break;
-		case LIST:
-			ListDatatype l1 =  (ListDatatype) dt1;
-			ListDatatype l2 =  (ListDatatype) dt2;
-			
-			if( ! isEqualDatatype(l1.getListDatatype(), l2.getListDatatype()) ) {
-				return false;
-			}
-			break;
-		default:
-			return false;
+	/*
+	 * Datatypes are equal if they are persisted the same way, i.e. share the
+	 * registry key (schema type, whitespace, union, base and enumeration
+	 * included)
+	 */
+	private static boolean isEqualDatatype(Datatype dtr, Datatype dtx,
+			DatatypeRegistry datatypes) {
+		if (dtr == dtx) {
+			return true;
 		}
-		
-		
-		return true;
+		int id = datatypes.register(dtr);
+		return id != DatatypeRegistry.NO_ID && id == datatypes.register(dtx);
 	}
-
-
+	
 	public boolean isGrammarHandled(Grammar gr) {
-		boolean handled = false;
-		if (doOptimizeGrammars) {
-			// System.out.println("getEqualGrammar for " + gr);
-			Grammar gx = getEqualGrammar(gr);
-			if(gx == null) {
-				handled = false;
-			} else {
-				handled = true;
-			}
-			
-		} else {
-			Iterator<Grammar> giter =  this.getGrammarIterator();
-			while(handled == false && giter.hasNext() ) {
-				Grammar g = giter.next();
-				if(g == gr) {
-					// abort
-					handled = true;
-				}
-			}
-		}
-		
-		return handled;
+		return getKnownGrammarID(gr) != -1;
 	}
 	
-
-	
 	public void addHandledGrammar(Grammar gr) {
-//		if(grammars.contains(gr)) {
-//			System.err.println("Duplicate entry");
-//		}
-//		assert(!grammars.contains(gr));
+		if (grammarIndex.containsKey(gr)) {
+			return;
+		}
+		grammarIndex.put(gr, grammars.size());
 		this.grammars.add(gr);
+		invalidate();
 	}
 
 	
+	/**
+	 * @return handled grammars, if optimized one grammar per equivalence
+	 *         class in the order of their IDs
+	 */
 	public Iterator<Grammar> getGrammarIterator() {
-		return this.grammars.iterator();
+		return getRepresentatives().iterator();
 	}
 	
 	private int getKnownGrammarID(Grammar r) {
-		for(int i=0; i<grammars.size(); i++) {
-			if ( grammars.get(i) == r  ) {
-				return i;
-			}
-		}
-		return -1;
+		Integer id = grammarIndex.get(r);
+		return id == null ? -1 : id;
 	}
 	
 	public Grammar getGrammar(int gid) {
-		if(this.grammars != null && this.grammars.size() > gid && gid >= 0) {
-			return this.grammars.get(gid);
+		List<Grammar> grs = getRepresentatives();
+		if(grs.size() > gid && gid >= 0) {
+			return grs.get(gid);
 		} else {
 			throw new RuntimeException("Unexpected grammarID");
 		}
@@ -443,34 +617,20 @@ public class GrammarIdDispenser {
 	}
 	
 	public int getGrammarID(Grammar r) {
-		int id;
-		
-		//System.out.println("getGrammarID " + r);
-		
 		if (doOptimizeGrammars) {
-			id = getKnownGrammarID(r);
-			if(id != -1) {
-				return id;
-			}
-			// IF not found pointer equality, retrieve "equal" grammar
-			Grammar gx = getEqualGrammar(r);
-			if(gx == null) {
+			getRepresentatives();
+			// minimization also covers referenced grammars
+			int id = getKnownGrammarID(r);
+			if(id == -1) {
 				throw new RuntimeException("no valid grammar ID found for :" + r + ". MUST be handled before!!");
-			} else {
-				id = getGrammarID(gx);
 			}
+			return classOf[id];
 		} else {
 			if (!isGrammarHandled(r)) {
 				this.addHandledGrammar(r);
 			}
-			
-			id = getKnownGrammarID(r);
+			return getKnownGrammarID(r);
 		}
-
-
-		return id;
 	}
 	
-	
-	
 }
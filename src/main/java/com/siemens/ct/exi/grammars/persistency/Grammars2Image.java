@@ -0,0 +1,224 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import com.siemens.ct.exi.context.GrammarContext;
+import com.siemens.ct.exi.context.GrammarUriContext;
+import com.siemens.ct.exi.context.QNameContext;
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
+import com.siemens.ct.exi.grammars.grammar.Grammar;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedFirstStartTagGrammar;
+import com.siemens.ct.exi.grammars.production.Production;
+
+/**
+ * Writes schema-informed grammars as read-only image with fixed-size int
+ * tables for qnames, grammars and productions. The image is meant to be
+ * mapped into memory by {@link MappedGrammarsImage}, which reads single
+ * grammars without parsing the whole file. EXI coders still work on
+ * materialized heap grammars, one copy per JVM.
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public class Grammars2Image extends Grammars2Snapshot {
+
+	// optional, named base type per global type
+	protected Map<QName, QName> baseTypes;
+
+	public Grammars2Image() {
+		super();
+	}
+
+	/**
+	 * Sets the base types of the global types (see
+	 * {@link com.siemens.ct.exi.grammars.XSDGrammarsBuilder#getBaseTypes()}).
+	 * Grammars do not know their derivations, the image records them for
+	 * partial loading, which then adds the grammars of derived types (targets
+	 * of xsi:type casts). Without base types a partial load materializes the
+	 * grammars of all global types.
+	 * 
+	 * @param baseTypes
+	 *            qualified names of global types mapped to their base type or
+	 *            null
+	 */
+	public void setBaseTypes(Map<QName, QName> baseTypes) {
+		this.baseTypes = baseTypes;
+	}
+
+	public Map<QName, QName> getBaseTypes() {
+		return baseTypes;
+	}
+
+	public void toGrammarsImage(SchemaInformedGrammars grammars,
+			OutputStream os) throws IOException, EXIException {
+
+		prepare(grammars);
+
+		// strings and datatypes are kept as snapshot meta data
+		ByteArrayOutputStream baosMeta = new ByteArrayOutputStream();
+		DataOutputStream dosMeta = new DataOutputStream(baosMeta);
+		writeMetaData(dosMeta, grammars);
+		dosMeta.flush();
+		byte[] metaData = baosMeta.toByteArray();
+
+		GrammarContext grammarContext = grammars.getGrammarContext();
+		int numberOfGrammars = gpreps.getNumberOfGrammars();
+		int numberOfProductions = 0;
+		for (int i = 0; i < numberOfGrammars; i++) {
+			numberOfProductions += gpreps.getGrammar(i).getNumberOfEvents();
+		}
+
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+				os));
+
+		/*
+		 * Header
+		 */
+		dos.writeInt(GrammarsConstants.IMAGE_MAGIC);
+		dos.writeInt(GrammarsConstants.IMAGE_VERSION);
+		dos.writeInt(grammarContext.getNumberOfGrammarUriContexts());
+		dos.writeInt(grammarContext.getNumberOfGrammarQNameContexts());
+		dos.writeInt(numberOfGrammars);
+		dos.writeInt(numberOfProductions);
+		dos.writeInt(gpreps.getGrammarID(grammars.getDocumentGrammar()));
+		dos.writeInt(gpreps.getGrammarID(grammars.getFragmentGrammar()));
+		dos.writeInt(getElementFragmentGrammarID(grammars));
+		dos.writeInt(metaData.length);
+		dos.writeInt(baseTypes == null ? 0
+				: GrammarsConstants.IMAGE_FLAG_BASE_TYPES);
+
+		/*
+		 * QName table
+		 */
+		for (int i = 0; i < grammarContext.getNumberOfGrammarUriContexts(); i++) {
+			GrammarUriContext guc = grammarContext.getGrammarUriContext(i);
+			for (int k = 0; k < guc.getNumberOfQNames(); k++) {
+				QNameContext qnc = guc.getQNameContext(k);
+				dos.writeInt(i);
+				dos.writeInt(k);
+				dos.writeInt(getGlobalTypeGrammarID(qnc));
+				dos.writeInt(getGlobalElementGrammarID(qnc));
+				dos.writeInt(getGlobalAttributeDatatypeID(qnc));
+				dos.writeInt(getBaseTypeQNameID(grammarContext, guc, qnc));
+			}
+		}
+
+		/*
+		 * Grammar table
+		 */
+		int firstProduction = 0;
+		for (int i = 0; i < numberOfGrammars; i++) {
+			Grammar r = gpreps.getGrammar(i);
+			byte grammarType = getGrammarType(r);
+			int flags = 0;
+			int typeEmptyID = GrammarsConstants.SNAPSHOT_NO_ID;
+			int elementContentID = GrammarsConstants.SNAPSHOT_NO_ID;
+			if (grammarType == GrammarsConstants.SNAPSHOT_FIRST_START_TAG_CONTENT) {
+				SchemaInformedFirstStartTagGrammar fst = (SchemaInformedFirstStartTagGrammar) r;
+				if (fst.isTypeCastable()) {
+					flags |= GrammarsConstants.IMAGE_FLAG_TYPE_CASTABLE;
+				}
+				if (fst.isNillable()) {
+					flags |= GrammarsConstants.IMAGE_FLAG_NILLABLE;
+				}
+				typeEmptyID = getTypeEmptyGrammarID(fst);
+				elementContentID = gpreps.getGrammarID(r
+						.getElementContentGrammar());
+			} else if (grammarType == GrammarsConstants.SNAPSHOT_START_TAG_CONTENT) {
+				elementContentID = gpreps.getGrammarID(r
+						.getElementContentGrammar());
+			}
+			dos.writeInt(grammarType);
+			dos.writeInt(flags);
+			dos.writeInt(typeEmptyID);
+			dos.writeInt(elementContentID);
+			dos.writeInt(firstProduction);
+			dos.writeInt(r.getNumberOfEvents());
+			firstProduction += r.getNumberOfEvents();
+		}
+
+		/*
+		 * Production table
+		 */
+		int[] args = new int[3];
+		for (int i = 0; i < numberOfGrammars; i++) {
+			Grammar r = gpreps.getGrammar(i);
+			for (int k = 0; k < r.getNumberOfEvents(); k++) {
+				Production ei = r.getProduction(k);
+				args[0] = args[1] = args[2] = GrammarsConstants.SNAPSHOT_NO_ID;
+				getEventArguments(ei.getEvent(), args);
+				dos.writeInt(getEventCode(ei.getEvent()));
+				dos.writeInt(args[0]);
+				dos.writeInt(args[1]);
+				dos.writeInt(args[2]);
+				dos.writeInt(getNextGrammarID(ei));
+			}
+		}
+
+		/*
+		 * Meta data
+		 */
+		dos.write(metaData);
+
+		dos.flush();
+	}
+
+	/*
+	 * qname ID of the named base type of a global type, NO_ID if there is
+	 * none or the base type has no string table entry
+	 */
+	protected int getBaseTypeQNameID(GrammarContext grammarContext,
+			GrammarUriContext guc, QNameContext qnc) {
+		if (baseTypes == null) {
+			return GrammarsConstants.SNAPSHOT_NO_ID;
+		}
+		QName base = baseTypes.get(new QName(guc.getNamespaceUri(), qnc
+				.getLocalName()));
+		if (base == null) {
+			return GrammarsConstants.SNAPSHOT_NO_ID;
+		}
+		int qnameID = 0;
+		for (int i = 0; i < grammarContext.getNumberOfGrammarUriContexts(); i++) {
+			GrammarUriContext bguc = grammarContext.getGrammarUriContext(i);
+			if (bguc.getNamespaceUri().equals(base.getNamespaceURI())) {
+				QNameContext bqnc = bguc.getQNameContext(base.getLocalPart());
+				return bqnc == null ? GrammarsConstants.SNAPSHOT_NO_ID
+						: qnameID + bqnc.getLocalNameID();
+			}
+			qnameID += bguc.getNumberOfQNames();
+		}
+		return GrammarsConstants.SNAPSHOT_NO_ID;
+	}
+
+}
@@ -23,13 +23,9 @@ package com.siemens.ct.exi.grammars.persistency;
  * 
  */
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.util.ArrayList;
-import java.util.List;
 
 import com.siemens.ct.exi.context.GrammarContext;
 import com.siemens.ct.exi.context.GrammarUriContext;
@@ -40,10 +36,10 @@ import com.siemens.ct.exi.datatype.EnumerationDatatype;
 import com.siemens.ct.exi.datatype.ListDatatype;
 import com.siemens.ct.exi.datatype.NBitUnsignedIntegerDatatype;
 import com.siemens.ct.exi.datatype.RestrictedCharacterSetDatatype;
+import com.siemens.ct.exi.datatype.StringDatatype;
 import com.siemens.ct.exi.datatype.charset.RestrictedCharacterSet;
 import com.siemens.ct.exi.exceptions.EXIException;
 import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
-import com.siemens.ct.exi.grammars.XSDGrammarsBuilder;
 import com.siemens.ct.exi.grammars.event.Attribute;
 import com.siemens.ct.exi.grammars.event.AttributeNS;
 import com.siemens.ct.exi.grammars.event.Characters;
@@ -63,9 +59,7 @@ import com.siemens.ct.exi.grammars.grammar.SchemaInformedFragmentContent;
 import com.siemens.ct.exi.grammars.grammar.SchemaInformedGrammar;
 import com.siemens.ct.exi.grammars.grammar.SchemaInformedStartTagGrammar;
 import com.siemens.ct.exi.grammars.production.Production;
-import com.siemens.ct.exi.types.BuiltIn;
 import com.siemens.ct.exi.types.BuiltInType;
-import com.siemens.ct.exi.util.PrintfUtils;
 import com.siemens.ct.exi.values.IntegerValue;
 import com.siemens.ct.exi.values.Value;
 
@@ -77,11 +71,28 @@ public class Grammars2JSON {
 	protected int statsCountStates = 0;
 
 	GrammarsPreperation gpreps = new GrammarsPreperation();
+
+	// no indentation and line breaks
+	protected boolean compact = false;
 	
 	public Grammars2JSON() {
 		super();
 	}
 
+	/**
+	 * Compact output has no whitespace between tokens, the JSON structure is
+	 * the same. Default is <code>false</code>.
+	 * 
+	 * @param compact whether to omit indentation and line breaks
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+	}
+
+	public boolean isCompact() {
+		return compact;
+	}
+
 	protected void clear() {
 		gpreps.clear();
 	}
@@ -97,9 +108,10 @@ public class Grammars2JSON {
 
 		GrammarContext grammarContext = grammars.getGrammarContext();
 
-		Writer w = new OutputStreamWriter(os);
+		JSONWriter w = new JSONWriter(new OutputStreamWriter(os, "UTF-8"),
+				compact);
 		
-		List<Datatype> listOfDatatypes = new ArrayList<Datatype>();
+		DatatypeRegistry datatypes = new DatatypeRegistry(false);
 
 		for (int i = 0; i < gpreps.getNumberOfGrammars(); i++) {
 			Grammar r = gpreps.getGrammar(i);
@@ -108,226 +120,160 @@ public class Grammars2JSON {
 				Event e = p.getEvent();
 				if(e instanceof DatatypeEvent) {
 					DatatypeEvent de = (DatatypeEvent) e;
-					// System.out.println(de.getDatatype());
-					if (!listOfDatatypes.contains(de.getDatatype()) && de.getDatatype() != BuiltIn.DEFAULT_DATATYPE) {							
-						listOfDatatypes.add(de.getDatatype());
-					}
-					// any simple Type !??!
-					Datatype base = de.getDatatype().getBaseDatatype();
-					if(base != null && !listOfDatatypes.contains(base)) {
-						listOfDatatypes.add(base);
-					}
+					datatypes.register(de.getDatatype());
+				}
+			}
+		}
+		for (int i = 0; i < grammarContext.getNumberOfGrammarUriContexts(); i++) {
+			GrammarUriContext guc = grammarContext.getGrammarUriContext(i);
+			for (int k = 0; k < guc.getNumberOfQNames(); k++) {
+				Attribute at = guc.getQNameContext(k).getGlobalAttribute();
+				if (at != null) {
+					datatypes.register(at.getDatatype());
 				}
 			}
 		}
 		
-		int ind = 0;
-		PrintfUtils.printfIndLn(w, ind, "{");
+		w.beginObject();
 		
 		{
 			/*
 			 * QNames, NameTables
 			 */
+			w.name(GrammarsConstants.QNAMES).beginObject();
 			
-			ind++;
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : { ", GrammarsConstants.QNAMES);
-			
-			ind++;
-//			PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d, ", GrammarsConstants.NUMBER_OF_URIS, grammarContext.getNumberOfGrammarUriContexts());
-//			PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d, ", GrammarsConstants.NUMBER_OF_QNAMES, grammarContext.getNumberOfGrammarQNameContexts());
-			
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : [", GrammarsConstants.NAMESPACE_CONTEXT, grammarContext.getNumberOfGrammarQNameContexts());
-			ind++;
+			w.name(GrammarsConstants.NAMESPACE_CONTEXT).beginArray();
 			
 			for (int i = 0; i < grammarContext.getNumberOfGrammarUriContexts(); i++) {
-				
-				PrintfUtils.printfIndLn(w, ind, "{"); // namespaceContext array entry
-				ind++;
-				
 				GrammarUriContext guc = grammarContext.getGrammarUriContext(i);
 
-				// namespaceUri
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.URI_ID, guc.getNamespaceUriID()); // UriID not necessary but useful
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\", ", GrammarsConstants.URI, guc.getNamespaceUri());
+				w.beginObject(); // namespaceContext array entry
 
-//				PrintfUtils.printfIndLn(w, ind, "\"%s\" : %s, ", GrammarsConstants.NUMBER_OF_LOCAL_NAMES,  guc.getNumberOfQNames());
+				// namespaceUri
+				w.name(GrammarsConstants.URI_ID).value(guc.getNamespaceUriID()); // UriID not necessary but useful
+				w.name(GrammarsConstants.URI).value(guc.getNamespaceUri());
 
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : [", GrammarsConstants.QNAME_CONTEXT);
-				ind++;
+				w.name(GrammarsConstants.QNAME_CONTEXT).beginArray();
 				
 				// qnames
 				for (int k = 0; k < guc.getNumberOfQNames(); k++) {
 					QNameContext qnc = guc.getQNameContext(k);
 
+					w.beginObject();
 
-					{
-						PrintfUtils.printfIndLn(w, ind, "{");
-						ind++;
-						
-						PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.URI_ID, qnc.getNamespaceUriID()); 
-						
-						// PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.QNAME_ID, qnc.getQNameID()); // QNameID not necessary but useful
-						PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.LOCAL_NAME_ID, qnc.getLocalNameID()); // LocalNameID not necessary but useful
+					w.name(GrammarsConstants.URI_ID).value(qnc.getNamespaceUriID());
+					w.name(GrammarsConstants.LOCAL_NAME_ID).value(qnc.getLocalNameID()); // LocalNameID not necessary but useful
 						
-						// local-names
-						PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\"", GrammarsConstants.LOCAL_NAME, qnc.getLocalName());
+					// local-names
+					w.name(GrammarsConstants.LOCAL_NAME).value(qnc.getLocalName());
 						
-						// global type
-						if (qnc.getTypeGrammar() != null) {
-							PrintfUtils.printfIndLn(w, ind, ",");
-							PrintfUtils.printfIndLn(w, ind, "\"%s\" : %s ", GrammarsConstants.GLOBAL_TYPE_GRAMMAR_ID, gpreps.getGrammarID(qnc.getTypeGrammar()));
-						}
-
-						// global element
-						if (qnc.getGlobalStartElement() != null) {
-							StartElement se = qnc.getGlobalStartElement();
-							PrintfUtils.printfIndLn(w, ind, ",");
-							PrintfUtils.printfIndLn(w, ind, "\"%s\" : %s ", GrammarsConstants.GLOBAL_ELEMENT_GRAMMAR_ID,  gpreps.getGrammarID(se.getGrammar()));
-						}
-
-						// global attribute
-						if (qnc.getGlobalAttribute() != null) {
-							Attribute at = qnc.getGlobalAttribute();
-
-							
-							// globalAttributeDatatypeID
-							PrintfUtils.printfIndLn(w, ind, ",");
-							PrintfUtils.printfIndLn(w, ind, "\"%s\" : %s ", GrammarsConstants.GLOBAL_ATTRIBUTE_DATATYPE_ID,  listOfDatatypes.indexOf(at.getDatatype()));
-						}
-						
-						ind--;
-						PrintfUtils.printfIndLn(w, ind, "}");
-						if(k < (guc.getNumberOfQNames()-1)) {
-							PrintfUtils.printfIndLn(w, ind, ", ");
-						}
+					// global type
+					if (qnc.getTypeGrammar() != null) {
+						w.name(GrammarsConstants.GLOBAL_TYPE_GRAMMAR_ID).value(gpreps.getGrammarID(qnc.getTypeGrammar()));
+					}
 
+					// global element
+					if (qnc.getGlobalStartElement() != null) {
+						StartElement se = qnc.getGlobalStartElement();
+						w.name(GrammarsConstants.GLOBAL_ELEMENT_GRAMMAR_ID).value(gpreps.getGrammarID(se.getGrammar()));
+					}
 
+					// global attribute
+					if (qnc.getGlobalAttribute() != null) {
+						Attribute at = qnc.getGlobalAttribute();
+						// globalAttributeDatatypeID
+						w.name(GrammarsConstants.GLOBAL_ATTRIBUTE_DATATYPE_ID).value(datatypes.getDatatypeID(at.getDatatype()));
 					}
-					
+
+					w.endObject();
 				}
 				
-				ind--;
-				PrintfUtils.printfIndLn(w, ind, "]");  // qnameContext
-				
-				ind--;
-				PrintfUtils.printfIndLn(w, ind, "}"); // namespaceContext array entry
-				
-				if(i < (grammarContext.getNumberOfGrammarUriContexts()-1)) {
-					PrintfUtils.printfIndLn(w, ind, ", ");
-				}
+				w.endArray(); // qnameContext
 				
+				w.endObject(); // namespaceContext array entry
 			}
-			
 
-			ind--;
-			PrintfUtils.printfIndLn(w, ind, "]");  // namespaceContext
+			w.endArray(); // namespaceContext
 			
-			ind--;
-			PrintfUtils.printfIndLn(w, ind, "}"); // qnames
+			w.endObject(); // qnames
 			
 			/*
 			 * Datatypes
 			 */
-			PrintfUtils.printfIndLn(w, ind, ",");
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : [ ", GrammarsConstants.SIMPLE_DATATYPES);
-			ind++;
+			w.name(GrammarsConstants.SIMPLE_DATATYPES).beginArray();
 
-			for(int i=0; i<listOfDatatypes.size(); i++) {
-				Datatype dt = listOfDatatypes.get(i);
+			for(int i=0; i<datatypes.getNumberOfDatatypes(); i++) {
+				Datatype dt = datatypes.getDatatype(i);
 				// simpleDatatype 
-				PrintfUtils.printfIndLn(w, ind, "{");
-				
-				{
-					// datatype
-					ind++;
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d,", GrammarsConstants.SIMPLE_DATATYPE_ID,  i);
-					this.printBuiltInDatatype(w, ind, dt); // , grammarContext);
-					// TODO schema type
-					{
-						dt.getSchemaType();
-					}
-					ind--;
-				}
-				PrintfUtils.printfIndLn(w, ind, "}");
-				
-				if(i < (listOfDatatypes.size()-1)) {
-					PrintfUtils.printfIndLn(w, ind, ", ");
-				}
-				
+				w.beginObject();
+				w.name(GrammarsConstants.SIMPLE_DATATYPE_ID).value(i);
+				this.printBuiltInDatatype(w, dt);
+				this.printDatatypeDetails(w, dt, datatypes);
+				w.endObject();
 			}
 			
-			
-			ind--;
-			PrintfUtils.printfIndLn(w, ind, "]"); // simpleDatatypes
-			
-			PrintfUtils.printfIndLn(w, ind, ", ");
+			w.endArray(); // simpleDatatypes
 			
 			/*
 			 * Grammar Rules
 			 */
-			PrintfUtils.printfIndLn(w, ind, "\"grs\" : {");
-			ind++;
-			
-			
+			w.name(GrammarsConstants.GRS).beginObject();
 			
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.DOCUMENT_GRAMMAR_ID,  gpreps.getGrammarID(grammars.getDocumentGrammar()));
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.FRAGMENT_GRAMMAR_ID , gpreps.getGrammarID(grammars.getFragmentGrammar()));
+			w.name(GrammarsConstants.DOCUMENT_GRAMMAR_ID).value(gpreps.getGrammarID(grammars.getDocumentGrammar()));
+			w.name(GrammarsConstants.FRAGMENT_GRAMMAR_ID).value(gpreps.getGrammarID(grammars.getFragmentGrammar()));
+			if (grammars.getSchemaInformedElementFragmentGrammar() != null) {
+				w.name(GrammarsConstants.ELEMENT_FRAGMENT_GRAMMAR_ID).value(gpreps.getGrammarID(grammars.getSchemaInformedElementFragmentGrammar()));
+			}
 
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : [", GrammarsConstants.GRAMMAR,  gpreps.getGrammarID(grammars.getDocumentGrammar()));
-			ind++;
+			w.name(GrammarsConstants.GRAMMAR).beginArray();
 
 			for (int i = 0; i < gpreps.getNumberOfGrammars(); i++) {
 				Grammar r = gpreps.getGrammar(i);
-				this.printGrammar(w,  ind, (SchemaInformedGrammar) r, listOfDatatypes);
-				
-				if(i < (gpreps.getNumberOfGrammars()-1)) {
-					PrintfUtils.printfIndLn(w, ind, ", ");
-				}
+				this.printGrammar(w, (SchemaInformedGrammar) r, datatypes);
 			}
 			
-			ind--;
-			PrintfUtils.printfIndLn(w, ind, "]");
+			w.endArray();
 			
-			ind--;
-			PrintfUtils.printfIndLn(w, ind, "}"); // grs
-
+			w.endObject(); // grs
 		}
 		
-		PrintfUtils.printfIndLn(w, 0, "}");
+		w.endObject();
 
 		w.flush();
 	}
 
-	protected void printGrammar(Writer w, int ind, SchemaInformedGrammar sir,
-			List<Datatype> listOfDatatypes) throws IOException {
+	void printGrammar(JSONWriter w, SchemaInformedGrammar sir,
+			DatatypeRegistry datatypes) throws IOException {
 
-		PrintfUtils.printfIndLn(w, ind, "{" );
-		ind++;
+		w.beginObject();
 		
-		PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%d\" ,", GrammarsConstants.GRAMMAR_ID,  gpreps.getGrammarID(sir)); // GrammarID not necessary but useful
+		w.name(GrammarsConstants.GRAMMAR_ID).value(Integer.toString(gpreps.getGrammarID(sir))); // GrammarID not necessary but useful
 		
 		if (sir instanceof SchemaInformedFirstStartTagGrammar) {
 			SchemaInformedFirstStartTagGrammar fst = (SchemaInformedFirstStartTagGrammar) sir;
 			
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.TYPE, GrammarsConstants.FIRST_START_TAG_CONTENT);
-
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : %s ,", GrammarsConstants.IS_TYPE_CASTABLE, fst.isTypeCastable());
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : %s ,", GrammarsConstants.IS_NILLABLE, fst.isNillable());
-			
+			w.name(GrammarsConstants.TYPE).value(GrammarsConstants.FIRST_START_TAG_CONTENT);
+			w.name(GrammarsConstants.IS_TYPE_CASTABLE).value(fst.isTypeCastable());
+			w.name(GrammarsConstants.IS_NILLABLE).value(fst.isNillable());
+			if (fst.getTypeEmpty() != null) {
+				w.name(GrammarsConstants.TYPE_EMPTY_GRAMMAR_ID).value(gpreps.getGrammarID(fst.getTypeEmpty()));
+			}
+			w.name(GrammarsConstants.ELEMENT_CONTENT_GRAMMAR_ID).value(gpreps.getGrammarID(sir.getElementContentGrammar()));
 		} else if (sir instanceof SchemaInformedStartTagGrammar) {
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.TYPE, GrammarsConstants.START_TAG_CONTENT);
+			w.name(GrammarsConstants.TYPE).value(GrammarsConstants.START_TAG_CONTENT);
+			w.name(GrammarsConstants.ELEMENT_CONTENT_GRAMMAR_ID).value(gpreps.getGrammarID(sir.getElementContentGrammar()));
 		} else if (sir instanceof SchemaInformedElement) {
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.TYPE, GrammarsConstants.ELEMENT_CONTENT);
+			w.name(GrammarsConstants.TYPE).value(GrammarsConstants.ELEMENT_CONTENT);
 		} else if (sir instanceof Document) {
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.TYPE, GrammarsConstants.DOCUMENT);
+			w.name(GrammarsConstants.TYPE).value(GrammarsConstants.DOCUMENT);
 		} else if (sir instanceof SchemaInformedDocContent) {
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.TYPE, GrammarsConstants.DOC_CONTENT);
+			w.name(GrammarsConstants.TYPE).value(GrammarsConstants.DOC_CONTENT);
 		} else if (sir instanceof DocEnd) {
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.TYPE, GrammarsConstants.DOC_END);
+			w.name(GrammarsConstants.TYPE).value(GrammarsConstants.DOC_END);
 		} else if (sir instanceof Fragment) {
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.TYPE, GrammarsConstants.FRAGMENT);
+			w.name(GrammarsConstants.TYPE).value(GrammarsConstants.FRAGMENT);
 		} else if (sir instanceof SchemaInformedFragmentContent) {
-			PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.TYPE, GrammarsConstants.FRAGMENT_CONTENT);
+			w.name(GrammarsConstants.TYPE).value(GrammarsConstants.FRAGMENT_CONTENT);
 		} else {
 			// System.err.println("Unkown Rule type: " + sir);
 			throw new RuntimeException("Unkown Rule type: " + sir);
@@ -336,103 +282,96 @@ public class Grammars2JSON {
 			statsCountStates++;
 		}
 		
-		PrintfUtils.printfIndLn(w, ind, "\"%s\" : [ ", GrammarsConstants.PRODUCTION);
-		ind++;
-		printGrammarProduction(w, ind, sir, listOfDatatypes); // , ruleStateID);
-		ind--;
-		PrintfUtils.printfIndLn(w, ind, "]");
+		w.name(GrammarsConstants.PRODUCTION).beginArray();
+		printGrammarProduction(w, sir, datatypes);
+		w.endArray();
 		
-		ind--;
-		PrintfUtils.printfIndLn(w, ind, "}" );
+		w.endObject();
 	}
 
-	protected void printGrammarProduction(Writer w, int ind, SchemaInformedGrammar sir,
-			List<Datatype> listOfDatatypes) throws IOException {
+	void printGrammarProduction(JSONWriter w, SchemaInformedGrammar sir,
+			DatatypeRegistry datatypes) throws IOException {
 
 		for (int i = 0; i < sir.getNumberOfEvents(); i++) {
 			if (STATS_ON) {
 				statsCountTransitions++;
 			}
 			
-			PrintfUtils.printfIndLn(w, ind, "{");
-			ind++;
+			w.beginObject();
 			
 			Production ei = sir.getProduction(i);
 			Event event = ei.getEvent();
 			EventType eventType = event.getEventType();
 			switch (eventType) {
 			case START_DOCUMENT:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.START_DOCUMENT);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.START_DOCUMENT);
 				break;
 			case END_DOCUMENT:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.END_DOCUMENT);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.END_DOCUMENT);
 				break;
 			case START_ELEMENT:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.START_ELEMENT);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.START_ELEMENT);
 				{
 					StartElement se = (StartElement) event;
 					QNameContext eqname = se.getQNameContext();
 
 					// qname
-					// PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.START_ELEMENT_QNAME_ID,  eqname.getQNameID());
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.START_ELEMENT_NAMESPACE_ID,  eqname.getNamespaceUriID());
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.START_ELEMENT_LOCALNAME_ID,  eqname.getLocalNameID());
+					w.name(GrammarsConstants.START_ELEMENT_NAMESPACE_ID).value(eqname.getNamespaceUriID());
+					w.name(GrammarsConstants.START_ELEMENT_LOCALNAME_ID).value(eqname.getLocalNameID());
 
 					// grammar
 					Grammar seRule = se.getGrammar();
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.START_ELEMENT_GRAMMAR_ID, gpreps.getGrammarID(seRule));
+					w.name(GrammarsConstants.START_ELEMENT_GRAMMAR_ID).value(gpreps.getGrammarID(seRule));
 				}
 				break;
 			case START_ELEMENT_NS:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.START_ELEMENT_NS);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.START_ELEMENT_NS);
 				{
 					StartElementNS seNS = (StartElementNS) event;
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.START_ELEMENT_NAMESPACE_ID, seNS.getNamespaceUriID());
+					w.name(GrammarsConstants.START_ELEMENT_NAMESPACE_ID).value(seNS.getNamespaceUriID());
 				}
 				break;
 			case END_ELEMENT:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.END_ELEMENT);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.END_ELEMENT);
 				break;
 			case ATTRIBUTE:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.ATTRIBUTE);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.ATTRIBUTE);
 				{
 					Attribute at = (Attribute) event;
 					QNameContext eqname = at.getQNameContext();
 
 					// qname
-					// PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.ATTRIBUTE_QNAME_ID, eqname.getQNameID());
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.ATTRIBUTE_NAMESPACE_ID, eqname.getNamespaceUriID());
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.ATTRIBUTE_LOCALNAME_ID, eqname.getLocalNameID());
+					w.name(GrammarsConstants.ATTRIBUTE_NAMESPACE_ID).value(eqname.getNamespaceUriID());
+					w.name(GrammarsConstants.ATTRIBUTE_LOCALNAME_ID).value(eqname.getLocalNameID());
 					
 					// datatype
 					Datatype dt = at.getDatatype();
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.ATTRIBUTE_DATATYPE_ID, listOfDatatypes.indexOf(dt));
+					w.name(GrammarsConstants.ATTRIBUTE_DATATYPE_ID).value(datatypes.getDatatypeID(dt));
 				}
 				break;
 			case ATTRIBUTE_NS:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.ATTRIBUTE_NS);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.ATTRIBUTE_NS);
 				{
 					AttributeNS atNS = (AttributeNS) event;
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.ATTRIBUTE_NAMESPACE_ID, atNS.getNamespaceUriID());
+					w.name(GrammarsConstants.ATTRIBUTE_NAMESPACE_ID).value(atNS.getNamespaceUriID());
 				}
 				break;
 			case CHARACTERS:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.CHARACTERS);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.CHARACTERS);
 				{
 					Characters ch = (Characters) event;
 					Datatype dt = ch.getDatatype();
-					
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d ,", GrammarsConstants.CHARACTERS_DATATYPE_ID, listOfDatatypes.indexOf(dt));
+					w.name(GrammarsConstants.CHARACTERS_DATATYPE_ID).value(datatypes.getDatatypeID(dt));
 				}
 				break;
 			case START_ELEMENT_GENERIC:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.START_ELEMENT_GENERIC);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.START_ELEMENT_GENERIC);
 				break;
 			case ATTRIBUTE_GENERIC:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.ATTRIBUTE_GENERIC);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.ATTRIBUTE_GENERIC);
 				break;
 			case CHARACTERS_GENERIC:
-				PrintfUtils.printfIndLn(w, ind, "\"%s\" : \"%s\" ,", GrammarsConstants.EVENT, GrammarsConstants.CHARACTERS_GENERIC);
+				w.name(GrammarsConstants.EVENT).value(GrammarsConstants.CHARACTERS_GENERIC);
 				break;
 			default:
 				System.err.println("Unknown Event " + ei.getEvent());
@@ -442,137 +381,96 @@ public class Grammars2JSON {
 			{
 				Grammar nextRule = ei.getNextGrammar();
 				if (nextRule.getNumberOfEvents() > 0) {
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d", GrammarsConstants.NEXT_GRAMMAR_ID,  gpreps.getGrammarID(nextRule));
+					w.name(GrammarsConstants.NEXT_GRAMMAR_ID).value(gpreps.getGrammarID(nextRule));
 				} else {
 					// No events anymore, eg. EE, ED
-					PrintfUtils.printfIndLn(w, ind, "\"%s\" : %d", GrammarsConstants.NEXT_GRAMMAR_ID, -1);
+					w.name(GrammarsConstants.NEXT_GRAMMAR_ID).value(-1);
 				}
-
 			}
 
-			ind--;
-			PrintfUtils.printfIndLn(w, ind, "}");
-			
-			
-			if(i < (sir.getNumberOfEvents()-1)) {
-				PrintfUtils.printfIndLn(w, ind, ", ");
-			}
-			
+			w.endObject();
 		}
 	}
 
-	protected void printBuiltInDatatype(Writer w, int ind, Datatype dt) throws IOException {
-		printBuiltInDatatype(w, ind, dt, "type");
+	void printBuiltInDatatype(JSONWriter w, Datatype dt) throws IOException {
+		printBuiltInDatatype(w, dt, GrammarsConstants.TYPE);
 	}
 	
-	protected void printBuiltInDatatype(Writer w, int ind, Datatype dt, String typeID) throws IOException {
+	void printBuiltInDatatype(JSONWriter w, Datatype dt, String typeID) throws IOException {
 		
 		BuiltInType bit = dt.getBuiltInType();
 		
-		PrintfUtils.printfInd(w, ind, "\"%s\": \"%s\"", typeID, bit);
-		
+		w.name(typeID).value(bit.name());
 		
 		switch (bit) {
 		case NBIT_UNSIGNED_INTEGER:
-			PrintfUtils.printfLn(w, ",", bit);
 			NBitUnsignedIntegerDatatype nbdt = (NBitUnsignedIntegerDatatype) dt;
 			IntegerValue ivLower = nbdt.getLowerBound();
-			PrintfUtils.printfIndLn(w, ind, "\"%s\": %s,", GrammarsConstants.LOWER_BOUND, ivLower.toString());
+			w.name(GrammarsConstants.LOWER_BOUND).literal(ivLower.toString());
 			IntegerValue ivUpper = nbdt.getUpperBound();
-			PrintfUtils.printfIndLn(w, ind, "\"%s\": %s", GrammarsConstants.UPPER_BOUND, ivUpper.toString());
+			w.name(GrammarsConstants.UPPER_BOUND).literal(ivUpper.toString());
 			break;
 		case LIST:
-			PrintfUtils.printfLn(w, ",", bit);
 			ListDatatype ldt = (ListDatatype) dt;
-			
-			this.printBuiltInDatatype(w, ind, ldt.getListDatatype(), "listType"); //,grammarContext);
-			
+			this.printBuiltInDatatype(w, ldt.getListDatatype(), GrammarsConstants.LIST_TYPE);
 			break;
 		case ENUMERATION:
-			PrintfUtils.printfLn(w, ",", bit);
 			EnumerationDatatype edt = (EnumerationDatatype) dt;
-			
-			PrintfUtils.printfInd(w, ind, "\"%s\": [", "enumValues");
-			
+			w.name(GrammarsConstants.DATATYPE_ENUM_VALUES).beginArray();
 			for(int i=0; i<edt.getEnumerationSize(); i++) {
-
 				Value enumVal = edt.getEnumValue(i);
-				
-				PrintfUtils.printf(w, "\"%s\"", enumVal.toString());
-				if((i+1)<edt.getEnumerationSize()) {
-					PrintfUtils.printf(w, ", ");
-				}
+				w.value(enumVal.toString());
 			}
-			PrintfUtils.printfLn(w, "]");
-			
+			w.endArray();
+			this.printBuiltInDatatype(w, edt.getEnumValueDatatype(), GrammarsConstants.DATATYPE_ENUM_VALUES_BUILTIN_TYPE);
 			break;
 		case DATETIME:
-			PrintfUtils.printfLn(w, ",", bit);
 			DatetimeDatatype ddt = (DatetimeDatatype) dt;
-			PrintfUtils.printfIndLn(w, ind, "\"%s\": \"%s\"", "datetimeType", ddt.getDatetimeType().toString());
+			w.name(GrammarsConstants.DATETIME_TYPE).value(ddt.getDatetimeType().toString());
 			break;
 		case RCS_STRING:
-			PrintfUtils.printfLn(w, ",", bit);
 			RestrictedCharacterSetDatatype rcsdt = (RestrictedCharacterSetDatatype) dt;
-			
 			RestrictedCharacterSet rcs = rcsdt.getRestrictedCharacterSet();
-			PrintfUtils.printfInd(w, ind, "\"%s\": [", "codePoints");
+			w.name(GrammarsConstants.CODE_POINTS).beginArray();
 			for(int i=0; i<rcs.size(); i++) {
-				PrintfUtils.printf(w, "%d", rcs.getCodePoint(i));
-				if((i+1)<rcs.size()) {
-					PrintfUtils.printf(w, ", ");
-				}
+				w.value(rcs.getCodePoint(i));
 			}
-			PrintfUtils.printfLn(w, "]");
+			w.endArray();
 			break;
 //		case BOOLEAN:
 		case BOOLEAN_FACET:
-			PrintfUtils.printfLn(w, ",", bit);
-			PrintfUtils.printfIndLn(w, ind, "\"%s\": \"%s\"", GrammarsConstants.DATATYPE_BOOLEAN_FACET, "true");
+			w.name(GrammarsConstants.DATATYPE_BOOLEAN_FACET).value("true");
 			break;
 		default:
-			PrintfUtils.printfLn(w, "", bit);
 			// default builInTypes without any additional information
 		}
 		
 	}
 
-	public static void main(String[] args) throws Exception {
-		String xsd = null;
-		String grsOut = null;
-		
-		//  schema-for-json.xsd, see https://www.w3.org/TR/exi-for-json/schema-for-json.xsd
-		// xsd = "../exificient.js/grammars/schema-for-json.xsd";
-		xsd = "../exificient.js/grammars/exi4json.xsd";
-		// notebook
-		// xsd = "../exificient.js/grammars/notebook.xsd";
-		
-		grsOut = xsd + ".grs";
-
-		XSDGrammarsBuilder grammarBuilder = XSDGrammarsBuilder.newInstance();
-
-		grammarBuilder.loadGrammars(xsd);
-
-		SchemaInformedGrammars grammarIn = grammarBuilder.toGrammars();
-
-		Grammars2JSON g2j = new Grammars2JSON();
-		
-		
-		/*
-		 * Encode
-		 */
-		FileOutputStream fos = new FileOutputStream(grsOut);
-		g2j.toGrammarsJSON(grammarIn, fos);
-		fos.close();
-
-		/*
-		 * STATS
-		 */
-		if (STATS_ON) {
-			System.out.println("Transitions: " + g2j.statsCountTransitions);
-			System.out.println("States: " + g2j.statsCountStates);
+	void printDatatypeDetails(JSONWriter w, Datatype dt,
+			DatatypeRegistry datatypes) throws IOException {
+		// schema type
+		QNameContext schemaType = dt.getSchemaType();
+		if (schemaType != null) {
+			w.name(GrammarsConstants.SCHEMA_TYPE_NAMESPACE_ID).value(schemaType.getNamespaceUriID());
+			w.name(GrammarsConstants.SCHEMA_TYPE_LOCALNAME_ID).value(schemaType.getLocalNameID());
+		}
+		// base datatype
+		if (datatypes.isRegistered(dt.getBaseDatatype())) {
+			w.name(GrammarsConstants.BASE_DATATYPE_ID).value(datatypes.getDatatypeID(dt.getBaseDatatype()));
+		}
+		if (dt.getGrammarEnumeration() != null) {
+			w.name(GrammarsConstants.GRAMMAR_ENUMERATION_DATATYPE_ID).value(datatypes.getDatatypeID(dt.getGrammarEnumeration()));
+		}
+		// string facets
+		if (dt.getBuiltInType() == BuiltInType.STRING || dt.getBuiltInType() == BuiltInType.RCS_STRING) {
+			if (dt.getWhiteSpace() != null) {
+				w.name(GrammarsConstants.WHITE_SPACE).value(dt.getWhiteSpace().toString());
+			}
+			if (dt.getBuiltInType() == BuiltInType.STRING && ((StringDatatype) dt).isDerivedByUnion()) {
+				w.name(GrammarsConstants.IS_DERIVED_BY_UNION).value(true);
+			}
 		}
-
 	}
 
 }
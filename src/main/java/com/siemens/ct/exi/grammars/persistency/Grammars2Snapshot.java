@@ -0,0 +1,461 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.siemens.ct.exi.context.GrammarContext;
+import com.siemens.ct.exi.context.GrammarUriContext;
+import com.siemens.ct.exi.context.QNameContext;
+import com.siemens.ct.exi.datatype.Datatype;
+import com.siemens.ct.exi.datatype.DatetimeDatatype;
+import com.siemens.ct.exi.datatype.EnumerationDatatype;
+import com.siemens.ct.exi.datatype.ListDatatype;
+import com.siemens.ct.exi.datatype.NBitUnsignedIntegerDatatype;
+import com.siemens.ct.exi.datatype.RestrictedCharacterSetDatatype;
+import com.siemens.ct.exi.datatype.StringDatatype;
+import com.siemens.ct.exi.datatype.WhiteSpace;
+import com.siemens.ct.exi.datatype.charset.RestrictedCharacterSet;
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
+import com.siemens.ct.exi.grammars.event.Attribute;
+import com.siemens.ct.exi.grammars.event.AttributeNS;
+import com.siemens.ct.exi.grammars.event.DatatypeEvent;
+import com.siemens.ct.exi.grammars.event.Event;
+import com.siemens.ct.exi.grammars.event.StartElement;
+import com.siemens.ct.exi.grammars.event.StartElementNS;
+import com.siemens.ct.exi.grammars.grammar.DocEnd;
+import com.siemens.ct.exi.grammars.grammar.Document;
+import com.siemens.ct.exi.grammars.grammar.Fragment;
+import com.siemens.ct.exi.grammars.grammar.Grammar;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedDocContent;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedElement;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedFirstStartTagGrammar;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedFragmentContent;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedStartTagGrammar;
+import com.siemens.ct.exi.grammars.production.Production;
+import com.siemens.ct.exi.types.BuiltIn;
+import com.siemens.ct.exi.types.BuiltInType;
+
+/**
+ * Writes schema-informed grammars as compact binary snapshot which can be
+ * loaded by {@link Snapshot2Grammars} without any XML Schema processing.
+ *
+ * <p>
+ * Grammars are not optimized, each grammar instance is written so that the
+ * loaded grammar graph equals the original one.
+ * </p>
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public class Grammars2Snapshot {
+
+	GrammarsPreperation gpreps = new GrammarsPreperation(false);
+
+	// datatype --> datatype ID, referenced datatypes included
+	protected DatatypeRegistry datatypes = new DatatypeRegistry(true);
+
+	public Grammars2Snapshot() {
+		super();
+	}
+
+	protected void clear() {
+		gpreps.clear();
+		datatypes.clear();
+	}
+
+	public void toGrammarsSnapshot(SchemaInformedGrammars grammars,
+			OutputStream os) throws IOException, EXIException {
+
+		prepare(grammars);
+
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+				os));
+
+		dos.writeInt(GrammarsConstants.SNAPSHOT_MAGIC);
+		dos.writeInt(GrammarsConstants.SNAPSHOT_VERSION);
+
+		writeMetaData(dos, grammars);
+
+		/*
+		 * Grammars
+		 */
+		dos.writeInt(gpreps.getGrammarID(grammars.getDocumentGrammar()));
+		dos.writeInt(gpreps.getGrammarID(grammars.getFragmentGrammar()));
+		dos.writeInt(getElementFragmentGrammarID(grammars));
+
+		dos.writeInt(gpreps.getNumberOfGrammars());
+		for (int i = 0; i < gpreps.getNumberOfGrammars(); i++) {
+			writeGrammar(dos, gpreps.getGrammar(i));
+		}
+
+		/*
+		 * Global types, elements and attributes
+		 */
+		GrammarContext grammarContext = grammars.getGrammarContext();
+		for (int i = 0; i < grammarContext.getNumberOfGrammarUriContexts(); i++) {
+			GrammarUriContext guc = grammarContext.getGrammarUriContext(i);
+			for (int k = 0; k < guc.getNumberOfQNames(); k++) {
+				QNameContext qnc = guc.getQNameContext(k);
+				dos.writeInt(getGlobalTypeGrammarID(qnc));
+				dos.writeInt(getGlobalElementGrammarID(qnc));
+				dos.writeInt(getGlobalAttributeDatatypeID(qnc));
+			}
+		}
+
+		dos.flush();
+	}
+
+	/**
+	 * Assigns grammar and datatype IDs
+	 */
+	protected void prepare(SchemaInformedGrammars grammars) throws EXIException {
+		// clear
+		clear();
+
+		// prepare grammar rules
+		gpreps.prepareGrammars(grammars);
+
+		// datatypes in use
+		for (int i = 0; i < gpreps.getNumberOfGrammars(); i++) {
+			Grammar r = gpreps.getGrammar(i);
+			for (int k = 0; k < r.getNumberOfEvents(); k++) {
+				Event e = r.getProduction(k).getEvent();
+				if (e instanceof DatatypeEvent) {
+					registerDatatype(((DatatypeEvent) e).getDatatype());
+				}
+			}
+		}
+		GrammarContext grammarContext = grammars.getGrammarContext();
+		for (int i = 0; i < grammarContext.getNumberOfGrammarUriContexts(); i++) {
+			GrammarUriContext guc = grammarContext.getGrammarUriContext(i);
+			for (int k = 0; k < guc.getNumberOfQNames(); k++) {
+				Attribute at = guc.getQNameContext(k).getGlobalAttribute();
+				if (at != null) {
+					registerDatatype(at.getDatatype());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes schemaId, URIs, local-names and datatypes
+	 */
+	protected void writeMetaData(DataOutputStream dos,
+			SchemaInformedGrammars grammars) throws IOException {
+		writeString(dos, grammars.getSchemaId());
+		dos.writeBoolean(grammars.isBuiltInXMLSchemaTypesOnly());
+
+		/*
+		 * URIs and local-names
+		 */
+		GrammarContext grammarContext = grammars.getGrammarContext();
+		dos.writeInt(grammarContext.getNumberOfGrammarUriContexts());
+		for (int i = 0; i < grammarContext.getNumberOfGrammarUriContexts(); i++) {
+			GrammarUriContext guc = grammarContext.getGrammarUriContext(i);
+			writeUTF8(dos, guc.getNamespaceUri());
+			dos.writeInt(guc.getNumberOfQNames());
+			for (int k = 0; k < guc.getNumberOfQNames(); k++) {
+				writeUTF8(dos, guc.getQNameContext(k).getLocalName());
+			}
+		}
+
+		/*
+		 * Datatypes
+		 */
+		dos.writeInt(datatypes.getNumberOfDatatypes());
+		for (int i = 0; i < datatypes.getNumberOfDatatypes(); i++) {
+			writeDatatype(dos, datatypes.getDatatype(i));
+		}
+	}
+
+	protected int getElementFragmentGrammarID(SchemaInformedGrammars grammars) {
+		Grammar elementFragment = grammars
+				.getSchemaInformedElementFragmentGrammar();
+		return elementFragment == null ? GrammarsConstants.SNAPSHOT_NO_ID
+				: gpreps.getGrammarID(elementFragment);
+	}
+
+	protected int getGlobalTypeGrammarID(QNameContext qnc) {
+		return qnc.getTypeGrammar() == null ? GrammarsConstants.SNAPSHOT_NO_ID
+				: gpreps.getGrammarID(qnc.getTypeGrammar());
+	}
+
+	protected int getGlobalElementGrammarID(QNameContext qnc) {
+		StartElement se = qnc.getGlobalStartElement();
+		return se == null ? GrammarsConstants.SNAPSHOT_NO_ID : gpreps
+				.getGrammarID(se.getGrammar());
+	}
+
+	protected int getGlobalAttributeDatatypeID(QNameContext qnc) {
+		// attributes always have a datatype, NO_ID means no global attribute
+		Attribute at = qnc.getGlobalAttribute();
+		return at == null ? GrammarsConstants.SNAPSHOT_NO_ID
+				: getDatatypeID(at.getDatatype());
+	}
+
+	protected void registerDatatype(Datatype dt) {
+		datatypes.register(dt);
+	}
+
+	protected int getDatatypeID(Datatype dt) {
+		if (dt == null) {
+			return GrammarsConstants.SNAPSHOT_NO_ID;
+		} else if (dt == BuiltIn.DEFAULT_DATATYPE) {
+			return GrammarsConstants.SNAPSHOT_DEFAULT_DATATYPE_ID;
+		} else {
+			int id = datatypes.getDatatypeID(dt);
+			if (id == DatatypeRegistry.NO_ID) {
+				throw new RuntimeException("No datatype ID found for: " + dt);
+			}
+			return id;
+		}
+	}
+
+	protected void writeDatatype(DataOutputStream dos, Datatype dt)
+			throws IOException {
+		BuiltInType bit = dt.getBuiltInType();
+		dos.writeUTF(bit.name());
+
+		// schema type
+		QNameContext schemaType = dt.getSchemaType();
+		if (schemaType == null) {
+			dos.writeInt(GrammarsConstants.SNAPSHOT_NO_ID);
+		} else {
+			dos.writeInt(schemaType.getNamespaceUriID());
+			dos.writeInt(schemaType.getLocalNameID());
+		}
+
+		dos.writeInt(getDatatypeID(dt.getBaseDatatype()));
+		dos.writeInt(getDatatypeID(dt.getGrammarEnumeration()));
+
+		switch (bit) {
+		case STRING:
+			dos.writeBoolean(((StringDatatype) dt).isDerivedByUnion());
+			writeWhiteSpace(dos, dt.getWhiteSpace());
+			break;
+		case RCS_STRING:
+			RestrictedCharacterSet rcs = ((RestrictedCharacterSetDatatype) dt)
+					.getRestrictedCharacterSet();
+			dos.writeInt(rcs.size());
+			for (int i = 0; i < rcs.size(); i++) {
+				dos.writeInt(rcs.getCodePoint(i));
+			}
+			writeWhiteSpace(dos, dt.getWhiteSpace());
+			break;
+		case NBIT_UNSIGNED_INTEGER:
+			NBitUnsignedIntegerDatatype nbdt = (NBitUnsignedIntegerDatatype) dt;
+			dos.writeUTF(nbdt.getLowerBound().toString());
+			dos.writeUTF(nbdt.getUpperBound().toString());
+			break;
+		case DATETIME:
+			dos.writeUTF(((DatetimeDatatype) dt).getDatetimeType().name());
+			break;
+		case ENUMERATION:
+			EnumerationDatatype edt = (EnumerationDatatype) dt;
+			dos.writeInt(getDatatypeID(edt.getEnumValueDatatype()));
+			dos.writeInt(edt.getEnumerationSize());
+			for (int i = 0; i < edt.getEnumerationSize(); i++) {
+				writeUTF8(dos, edt.getEnumValue(i).toString());
+			}
+			break;
+		case LIST:
+			dos.writeInt(getDatatypeID(((ListDatatype) dt).getListDatatype()));
+			break;
+		default:
+			// default builInTypes without any additional information
+		}
+	}
+
+	protected void writeGrammar(DataOutputStream dos, Grammar r)
+			throws IOException {
+		byte grammarType = getGrammarType(r);
+		dos.writeByte(grammarType);
+
+		if (grammarType == GrammarsConstants.SNAPSHOT_FIRST_START_TAG_CONTENT) {
+			SchemaInformedFirstStartTagGrammar fst = (SchemaInformedFirstStartTagGrammar) r;
+			dos.writeBoolean(fst.isTypeCastable());
+			dos.writeBoolean(fst.isNillable());
+			dos.writeInt(getTypeEmptyGrammarID(fst));
+			dos.writeInt(gpreps.getGrammarID(r.getElementContentGrammar()));
+		} else if (grammarType == GrammarsConstants.SNAPSHOT_START_TAG_CONTENT) {
+			dos.writeInt(gpreps.getGrammarID(r.getElementContentGrammar()));
+		}
+
+		int[] args = new int[3];
+		dos.writeInt(r.getNumberOfEvents());
+		for (int i = 0; i < r.getNumberOfEvents(); i++) {
+			Production ei = r.getProduction(i);
+			byte eventCode = getEventCode(ei.getEvent());
+			dos.writeByte(eventCode);
+			getEventArguments(ei.getEvent(), args);
+			for (int k = 0; k < getNumberOfEventArguments(eventCode); k++) {
+				dos.writeInt(args[k]);
+			}
+			dos.writeInt(getNextGrammarID(ei));
+		}
+	}
+
+	protected static byte getGrammarType(Grammar r) {
+		if (r instanceof SchemaInformedFirstStartTagGrammar) {
+			return GrammarsConstants.SNAPSHOT_FIRST_START_TAG_CONTENT;
+		} else if (r instanceof SchemaInformedStartTagGrammar) {
+			return GrammarsConstants.SNAPSHOT_START_TAG_CONTENT;
+		} else if (r instanceof SchemaInformedElement) {
+			return GrammarsConstants.SNAPSHOT_ELEMENT_CONTENT;
+		} else if (r instanceof Document) {
+			return GrammarsConstants.SNAPSHOT_DOCUMENT;
+		} else if (r instanceof SchemaInformedDocContent) {
+			return GrammarsConstants.SNAPSHOT_DOC_CONTENT;
+		} else if (r instanceof DocEnd) {
+			return GrammarsConstants.SNAPSHOT_DOC_END;
+		} else if (r instanceof Fragment) {
+			return GrammarsConstants.SNAPSHOT_FRAGMENT;
+		} else if (r instanceof SchemaInformedFragmentContent) {
+			return GrammarsConstants.SNAPSHOT_FRAGMENT_CONTENT;
+		} else {
+			throw new RuntimeException("Unkown Rule type: " + r);
+		}
+	}
+
+	protected int getTypeEmptyGrammarID(SchemaInformedFirstStartTagGrammar fst) {
+		Grammar typeEmpty = fst.getTypeEmpty();
+		return typeEmpty == null ? GrammarsConstants.SNAPSHOT_NO_ID : gpreps
+				.getGrammarID(typeEmpty);
+	}
+
+	protected int getNextGrammarID(Production ei) {
+		Grammar next = ei.getNextGrammar();
+		if (next.getNumberOfEvents() > 0) {
+			return gpreps.getGrammarID(next);
+		} else {
+			// No events anymore, eg. EE, ED
+			return GrammarsConstants.SNAPSHOT_NO_ID;
+		}
+	}
+
+	protected static byte getEventCode(Event event) {
+		switch (event.getEventType()) {
+		case START_DOCUMENT:
+			return GrammarsConstants.SNAPSHOT_START_DOCUMENT;
+		case END_DOCUMENT:
+			return GrammarsConstants.SNAPSHOT_END_DOCUMENT;
+		case START_ELEMENT:
+			return GrammarsConstants.SNAPSHOT_START_ELEMENT;
+		case START_ELEMENT_NS:
+			return GrammarsConstants.SNAPSHOT_START_ELEMENT_NS;
+		case START_ELEMENT_GENERIC:
+			return GrammarsConstants.SNAPSHOT_START_ELEMENT_GENERIC;
+		case END_ELEMENT:
+			return GrammarsConstants.SNAPSHOT_END_ELEMENT;
+		case ATTRIBUTE:
+			return GrammarsConstants.SNAPSHOT_ATTRIBUTE;
+		case ATTRIBUTE_NS:
+			return GrammarsConstants.SNAPSHOT_ATTRIBUTE_NS;
+		case ATTRIBUTE_GENERIC:
+			return GrammarsConstants.SNAPSHOT_ATTRIBUTE_GENERIC;
+		case CHARACTERS:
+			return GrammarsConstants.SNAPSHOT_CHARACTERS;
+		case CHARACTERS_GENERIC:
+			return GrammarsConstants.SNAPSHOT_CHARACTERS_GENERIC;
+		default:
+			throw new RuntimeException("Unexpected Grammar Event Type for: "
+					+ event);
+		}
+	}
+
+	/**
+	 * Fills the event arguments, SE: uriID, localNameID, grammarID; AT:
+	 * uriID, localNameID, datatypeID; SE(uri:*), AT(uri:*): uriID; CH:
+	 * datatypeID
+	 */
+	protected void getEventArguments(Event event, int[] args) {
+		switch (event.getEventType()) {
+		case START_ELEMENT:
+			StartElement se = (StartElement) event;
+			args[0] = se.getQNameContext().getNamespaceUriID();
+			args[1] = se.getQNameContext().getLocalNameID();
+			args[2] = gpreps.getGrammarID(se.getGrammar());
+			break;
+		case START_ELEMENT_NS:
+			args[0] = ((StartElementNS) event).getNamespaceUriID();
+			break;
+		case ATTRIBUTE:
+			Attribute at = (Attribute) event;
+			args[0] = at.getQNameContext().getNamespaceUriID();
+			args[1] = at.getQNameContext().getLocalNameID();
+			args[2] = getDatatypeID(at.getDatatype());
+			break;
+		case ATTRIBUTE_NS:
+			args[0] = ((AttributeNS) event).getNamespaceUriID();
+			break;
+		case CHARACTERS:
+			args[0] = getDatatypeID(((DatatypeEvent) event).getDatatype());
+			break;
+		default:
+			// no arguments
+		}
+	}
+
+	static int getNumberOfEventArguments(byte eventCode) {
+		switch (eventCode) {
+		case GrammarsConstants.SNAPSHOT_START_ELEMENT:
+		case GrammarsConstants.SNAPSHOT_ATTRIBUTE:
+			return 3;
+		case GrammarsConstants.SNAPSHOT_START_ELEMENT_NS:
+		case GrammarsConstants.SNAPSHOT_ATTRIBUTE_NS:
+		case GrammarsConstants.SNAPSHOT_CHARACTERS:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	static void writeWhiteSpace(DataOutputStream dos, WhiteSpace ws)
+			throws IOException {
+		writeString(dos, ws == null ? null : ws.name());
+	}
+
+	static void writeString(DataOutputStream dos, String s) throws IOException {
+		dos.writeBoolean(s != null);
+		if (s != null) {
+			writeUTF8(dos, s);
+		}
+	}
+
+	/*
+	 * UTF-8 bytes with int length prefix, unlike writeUTF not limited to
+	 * 65535 bytes (e.g., long enumeration values)
+	 */
+	static void writeUTF8(DataOutputStream dos, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+
+}
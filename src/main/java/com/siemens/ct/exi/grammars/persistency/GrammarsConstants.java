@@ -126,4 +126,81 @@ public class GrammarsConstants {
 	static final String QNAME_ID = "qnameID";
 	static final String URI = "uri";
 	static final String URI_ID = "uriID";
+	
+	static final String GRS = "grs";
+	static final String ELEMENT_FRAGMENT_GRAMMAR_ID = "elementFragmentGrammarID";
+	static final String ELEMENT_CONTENT_GRAMMAR_ID = "elementContentGrammarID";
+	static final String TYPE_EMPTY_GRAMMAR_ID = "typeEmptyGrammarID";
+	static final String BASE_DATATYPE_ID = "baseDatatypeID";
+	static final String GRAMMAR_ENUMERATION_DATATYPE_ID = "grammarEnumerationDatatypeID";
+	static final String SCHEMA_TYPE_NAMESPACE_ID = "schemaTypeNamespaceID";
+	static final String SCHEMA_TYPE_LOCALNAME_ID = "schemaTypeLocalNameID";
+	static final String WHITE_SPACE = "whiteSpace";
+	static final String IS_DERIVED_BY_UNION = "isDerivedByUnion";
+	static final String LIST_TYPE = "listType";
+	static final String DATETIME_TYPE = "datetimeType";
+	static final String CODE_POINTS = "codePoints";
+	
+	/*
+	 * Binary snapshot
+	 */
+	static final int SNAPSHOT_MAGIC = 0x45584947; // "EXIG"
+	public static final int SNAPSHOT_VERSION = 2;
+
+	/*
+	 * JSON grammars carry no version, the revision is bumped whenever their
+	 * layout changes so that precompiled files are recognized as outdated
+	 */
+	public static final int JSON_REVISION = 2;
+	
+	static final int SNAPSHOT_NO_ID = -1;
+	// datatype ID for BuiltIn.DEFAULT_DATATYPE
+	static final int SNAPSHOT_DEFAULT_DATATYPE_ID = -2;
+	
+	// grammar types
+	static final byte SNAPSHOT_DOCUMENT = 0;
+	static final byte SNAPSHOT_DOC_CONTENT = 1;
+	static final byte SNAPSHOT_DOC_END = 2;
+	static final byte SNAPSHOT_FRAGMENT = 3;
+	static final byte SNAPSHOT_FRAGMENT_CONTENT = 4;
+	static final byte SNAPSHOT_FIRST_START_TAG_CONTENT = 5;
+	static final byte SNAPSHOT_START_TAG_CONTENT = 6;
+	static final byte SNAPSHOT_ELEMENT_CONTENT = 7;
+	
+	// events
+	static final byte SNAPSHOT_START_DOCUMENT = 0;
+	static final byte SNAPSHOT_END_DOCUMENT = 1;
+	static final byte SNAPSHOT_START_ELEMENT = 2;
+	static final byte SNAPSHOT_START_ELEMENT_NS = 3;
+	static final byte SNAPSHOT_START_ELEMENT_GENERIC = 4;
+	static final byte SNAPSHOT_END_ELEMENT = 5;
+	static final byte SNAPSHOT_ATTRIBUTE = 6;
+	static final byte SNAPSHOT_ATTRIBUTE_NS = 7;
+	static final byte SNAPSHOT_ATTRIBUTE_GENERIC = 8;
+	static final byte SNAPSHOT_CHARACTERS = 9;
+	static final byte SNAPSHOT_CHARACTERS_GENERIC = 10;
+	
+	/*
+	 * Memory-mapped grammar image
+	 */
+	static final int IMAGE_MAGIC = 0x4558494D; // "EXIM"
+	static final int IMAGE_VERSION = 3;
+	
+	// header: magic, version, #uris, #qnames, #grammars, #productions,
+	// documentID, fragmentID, elementFragmentID, metaDataLength, flags
+	static final int IMAGE_HEADER_INTS = 11;
+	// qname: uriID, localNameID, typeGrammarID, elementGrammarID,
+	// attributeDatatypeID, baseTypeQNameID
+	static final int IMAGE_QNAME_INTS = 6;
+	// grammar: type, flags, typeEmptyID, elementContentID,
+	// firstProduction, numberOfProductions
+	static final int IMAGE_GRAMMAR_INTS = 6;
+	// production: event, argument0, argument1, argument2, nextGrammarID
+	static final int IMAGE_PRODUCTION_INTS = 5;
+	
+	static final int IMAGE_FLAG_TYPE_CASTABLE = 1;
+	static final int IMAGE_FLAG_NILLABLE = 2;
+	
+	// header flag, base types of global types are recorded
+	static final int IMAGE_FLAG_BASE_TYPES = 1;
 }
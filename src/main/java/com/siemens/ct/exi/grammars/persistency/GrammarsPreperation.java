@@ -25,14 +25,17 @@ package com.siemens.ct.exi.grammars.persistency;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import com.siemens.ct.exi.grammars.persistency.GrammarIdDispenser;
 import com.siemens.ct.exi.context.GrammarContext;
 import com.siemens.ct.exi.context.GrammarUriContext;
 import com.siemens.ct.exi.context.QNameContext;
 import com.siemens.ct.exi.grammars.Grammars;
+import com.siemens.ct.exi.grammars.event.EventType;
 import com.siemens.ct.exi.grammars.event.StartElement;
 import com.siemens.ct.exi.grammars.grammar.DocEnd;
 import com.siemens.ct.exi.grammars.grammar.Document;
@@ -44,6 +47,7 @@ import com.siemens.ct.exi.grammars.grammar.SchemaInformedFirstStartTag;
 import com.siemens.ct.exi.grammars.grammar.SchemaInformedFirstStartTagGrammar;
 import com.siemens.ct.exi.grammars.grammar.SchemaInformedFragmentContent;
 import com.siemens.ct.exi.grammars.grammar.SchemaInformedStartTag;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedStartTagGrammar;
 import com.siemens.ct.exi.grammars.production.Production;
 
 public class GrammarsPreperation {
@@ -51,6 +55,8 @@ public class GrammarsPreperation {
 	protected GrammarIdDispenser grsIdDispenser;
 	
 	protected List<Grammar> sortedGrammars;
+	/* grammar (identity) --> sorted ID */
+	protected Map<Grammar, Integer> sortedGrammarIDs;
 
 
 	protected int numberOfFirstStartTagGrammars;
@@ -58,13 +64,24 @@ public class GrammarsPreperation {
 	protected int numberOfElementGrammars;
 	
 	public GrammarsPreperation() {
-		grsIdDispenser = new GrammarIdDispenser();
+		this(true);
+	}
+	
+	/**
+	 * 
+	 * @param optimizeGrammars whether equal grammars share one ID, otherwise
+	 *            each grammar instance gets its own ID
+	 */
+	public GrammarsPreperation(boolean optimizeGrammars) {
+		grsIdDispenser = new GrammarIdDispenser(optimizeGrammars);
 		sortedGrammars = new ArrayList<Grammar>();
+		sortedGrammarIDs = new IdentityHashMap<Grammar, Integer>();
 	}
 	
 	public void clear() {
 		grsIdDispenser.clear();
 		sortedGrammars.clear();
+		sortedGrammarIDs.clear();
 		
 		numberOfFirstStartTagGrammars = 0;
 		numberOfStartTagGrammars = 0;
@@ -82,6 +99,12 @@ public class GrammarsPreperation {
 		// fragment
 		Grammar frag = grammar.getFragmentGrammar();
 		prepareGrammar(frag);
+		
+		// element fragment
+		Grammar elementFragment = grammar.getSchemaInformedElementFragmentGrammar();
+		if (elementFragment != null) {
+			prepareGrammar(elementFragment);
+		}
 
 
 		// global type grammars
@@ -165,46 +188,53 @@ public class GrammarsPreperation {
 			}			
 		}
 		
-		System.out.println("Sorted Grammars: " + sortedGrammars);
+		for(int i=0; i<sortedGrammars.size(); i++) {
+			sortedGrammarIDs.put(sortedGrammars.get(i), i);
+		}
 
 	}
 	
 	
-	void prepareGrammar(Grammar r) throws IOException {
-		if (this.grsIdDispenser.isGrammarHandled(r)) {
-			// abort, already processed
-			return;
-		}
-		this.grsIdDispenser.addHandledGrammar(r);
-
-		int numberOfEvents = r.getNumberOfEvents();
-
-		/*
-		 * Other Events (encode and decode)
-		 */
-		for (int eventCode = 0; eventCode < numberOfEvents; eventCode++) {
-			Production ei = r.getProduction(eventCode);
-
-			switch (ei.getEvent().getEventType()) {
-			case START_ELEMENT:
-				StartElement se = (StartElement) ei.getEvent();
-
-				/*
-				 * another element to deal with?
-				 */
-				if (!this.grsIdDispenser.isGrammarHandled(se.getGrammar())) {
-					this.prepareGrammar(se.getGrammar());
+	/*
+	 * Depth-first in production order (start element grammar before next
+	 * grammar), then element content and TypeEmpty grammar. An explicit stack
+	 * is used so that long sequences do not exhaust the call stack.
+	 */
+	void prepareGrammar(Grammar root) throws IOException {
+		List<Grammar> todo = new ArrayList<Grammar>();
+		todo.add(root);
+		
+		while (!todo.isEmpty()) {
+			Grammar r = todo.remove(todo.size() - 1);
+			if (this.grsIdDispenser.isGrammarHandled(r)) {
+				// already processed
+				continue;
+			}
+			this.grsIdDispenser.addHandledGrammar(r);
+			
+			// push in reverse order of processing
+			if (r instanceof SchemaInformedFirstStartTagGrammar) {
+				Grammar typeEmpty = ((SchemaInformedFirstStartTagGrammar) r).getTypeEmpty();
+				if (typeEmpty != null) {
+					todo.add(typeEmpty);
+				}
+			}
+			if (r instanceof SchemaInformedStartTagGrammar) {
+				Grammar elementContent = r.getElementContentGrammar();
+				if (elementContent != null) {
+					todo.add(elementContent);
+				}
+			}
+			
+			for (int eventCode = r.getNumberOfEvents() - 1; eventCode >= 0; eventCode--) {
+				Production ei = r.getProduction(eventCode);
+				todo.add(ei.getNextGrammar());
+				
+				if (ei.getEvent().isEventType(EventType.START_ELEMENT)) {
+					todo.add(((StartElement) ei.getEvent()).getGrammar());
 				}
-				break;
-			default:
-				// no further event to prepare
 			}
-
-			prepareGrammar(ei.getNextGrammar());
 		}
-
-		// TODO prepare element content rule?
-		
 	}
 
 	// note: returns "sorted" id
@@ -213,14 +243,11 @@ public class GrammarsPreperation {
 		int id1 = this.grsIdDispenser.getGrammarID(r);
 		Grammar g1 = this.grsIdDispenser.getGrammar(id1);
 		
-		for(int i=0; i<this.sortedGrammars.size(); i++) {
-			Grammar g = this.sortedGrammars.get(i);
-			if (g1 == g) {
-				return i;
-			}
+		Integer id = sortedGrammarIDs.get(g1);
+		if (id == null) {
+			throw new RuntimeException("No grammar id found for: " + r);
 		}
-		
-		throw new RuntimeException("No grammar id found for: " + r);
+		return id;
 	}
 	
 	public Grammar getGrammar(int id) {
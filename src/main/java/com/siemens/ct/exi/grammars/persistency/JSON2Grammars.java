@@ -0,0 +1,568 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.siemens.ct.exi.context.QNameContext;
+import com.siemens.ct.exi.datatype.Datatype;
+import com.siemens.ct.exi.datatype.DatetimeDatatype;
+import com.siemens.ct.exi.datatype.EnumerationDatatype;
+import com.siemens.ct.exi.datatype.ListDatatype;
+import com.siemens.ct.exi.datatype.NBitUnsignedIntegerDatatype;
+import com.siemens.ct.exi.datatype.RestrictedCharacterSetDatatype;
+import com.siemens.ct.exi.datatype.StringDatatype;
+import com.siemens.ct.exi.datatype.WhiteSpace;
+import com.siemens.ct.exi.datatype.charset.CodePointCharacterSet;
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
+import com.siemens.ct.exi.types.BuiltInType;
+import com.siemens.ct.exi.types.DateTimeType;
+import com.siemens.ct.exi.values.IntegerValue;
+import com.siemens.ct.exi.values.Value;
+
+/**
+ * Loads schema-informed grammars from the JSON format written by
+ * {@link Grammars2JSON} (e.g., <code>.grs</code> files). No XML Schema
+ * processing takes place.
+ *
+ * <p>
+ * Files written before element content and TypeEmpty grammar IDs were part of
+ * the format cannot be loaded. Enumerations without value datatype are loaded
+ * with string values.
+ * </p>
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public class JSON2Grammars extends AbstractGrammarsReader {
+
+	/* JSON datatype ID of BuiltIn.DEFAULT_DATATYPE */
+	static final int JSON_DEFAULT_DATATYPE_ID = -1;
+
+	/* parsed, not yet resolved content */
+	List<String> namespaceUris;
+	List<List<String>> localNames;
+	// uriID, localNameID, typeGrammarID, elementGrammarID, attributeDatatypeID
+	List<int[]> globals;
+	List<Map<String, Object>> datatypeEntries;
+	List<GrammarEntry> grammarList;
+	int documentID;
+	int fragmentID;
+	int elementFragmentID;
+	boolean[] datatypeInProgress;
+
+	public JSON2Grammars() {
+		super();
+	}
+
+	protected void clear() {
+		super.clear();
+		namespaceUris = new ArrayList<String>();
+		localNames = new ArrayList<List<String>>();
+		globals = new ArrayList<int[]>();
+		datatypeEntries = new ArrayList<Map<String, Object>>();
+		grammarList = new ArrayList<GrammarEntry>();
+		documentID = GrammarsConstants.SNAPSHOT_NO_ID;
+		fragmentID = GrammarsConstants.SNAPSHOT_NO_ID;
+		elementFragmentID = GrammarsConstants.SNAPSHOT_NO_ID;
+		datatypeInProgress = null;
+	}
+
+	public SchemaInformedGrammars toGrammars(InputStream is)
+			throws IOException, EXIException {
+		clear();
+		try {
+			JSONReader jr = new JSONReader(new BufferedReader(
+					new InputStreamReader(is, "UTF-8")));
+			readGrammarsJSON(jr);
+			return buildGrammars();
+		} finally {
+			clear();
+		}
+	}
+
+	protected void readGrammarsJSON(JSONReader jr) throws IOException {
+		jr.beginObject();
+		while (jr.hasNext()) {
+			String name = jr.nextName();
+			if (GrammarsConstants.QNAMES.equals(name)) {
+				readQNames(jr);
+			} else if (GrammarsConstants.SIMPLE_DATATYPES.equals(name)) {
+				jr.beginArray();
+				while (jr.hasNext()) {
+					datatypeEntries.add(readDatatypeEntry(jr));
+				}
+				jr.endArray();
+			} else if (GrammarsConstants.GRS.equals(name)) {
+				readGrs(jr);
+			} else {
+				jr.skipValue();
+			}
+		}
+		jr.endObject();
+	}
+
+	protected void readQNames(JSONReader jr) throws IOException {
+		jr.beginObject();
+		while (jr.hasNext()) {
+			if (GrammarsConstants.NAMESPACE_CONTEXT.equals(jr.nextName())) {
+				jr.beginArray();
+				while (jr.hasNext()) {
+					readNamespaceContext(jr);
+				}
+				jr.endArray();
+			} else {
+				jr.skipValue();
+			}
+		}
+		jr.endObject();
+	}
+
+	protected void readNamespaceContext(JSONReader jr) throws IOException {
+		int uriID = namespaceUris.size();
+		String uri = null;
+		List<String> lns = new ArrayList<String>();
+
+		jr.beginObject();
+		while (jr.hasNext()) {
+			String name = jr.nextName();
+			if (GrammarsConstants.URI.equals(name)) {
+				uri = jr.nextString();
+			} else if (GrammarsConstants.QNAME_CONTEXT.equals(name)) {
+				jr.beginArray();
+				while (jr.hasNext()) {
+					int[] global = new int[] { uriID, lns.size(),
+							GrammarsConstants.SNAPSHOT_NO_ID,
+							GrammarsConstants.SNAPSHOT_NO_ID,
+							GrammarsConstants.SNAPSHOT_NO_ID };
+					String localName = null;
+					jr.beginObject();
+					while (jr.hasNext()) {
+						String qn = jr.nextName();
+						if (GrammarsConstants.LOCAL_NAME.equals(qn)) {
+							localName = jr.nextString();
+						} else if (GrammarsConstants.GLOBAL_TYPE_GRAMMAR_ID
+								.equals(qn)) {
+							global[2] = jr.nextInt();
+						} else if (GrammarsConstants.GLOBAL_ELEMENT_GRAMMAR_ID
+								.equals(qn)) {
+							global[3] = jr.nextInt();
+						} else if (GrammarsConstants.GLOBAL_ATTRIBUTE_DATATYPE_ID
+								.equals(qn)) {
+							global[4] = toDatatypeID(jr.nextInt());
+						} else {
+							jr.skipValue();
+						}
+					}
+					jr.endObject();
+					if (localName == null) {
+						throw jr.syntaxError("qnameContext without localName");
+					}
+					lns.add(localName);
+					globals.add(global);
+				}
+				jr.endArray();
+			} else {
+				jr.skipValue();
+			}
+		}
+		jr.endObject();
+
+		if (uri == null) {
+			throw jr.syntaxError("namespaceContext without uri");
+		}
+		namespaceUris.add(uri);
+		localNames.add(lns);
+	}
+
+	/*
+	 * All members of a datatype, nested list and enumeration value types
+	 * share the same level
+	 */
+	protected Map<String, Object> readDatatypeEntry(JSONReader jr)
+			throws IOException {
+		Map<String, Object> entry = new HashMap<String, Object>();
+		jr.beginObject();
+		while (jr.hasNext()) {
+			String name = jr.nextName();
+			if (GrammarsConstants.DATATYPE_ENUM_VALUES.equals(name)
+					|| GrammarsConstants.CODE_POINTS.equals(name)) {
+				List<String> values = new ArrayList<String>();
+				jr.beginArray();
+				while (jr.hasNext()) {
+					values.add(jr.nextLiteral());
+				}
+				jr.endArray();
+				entry.put(name, values);
+			} else if (GrammarsConstants.IS_DERIVED_BY_UNION.equals(name)) {
+				entry.put(name, Boolean.valueOf(jr.nextBoolean()));
+			} else {
+				entry.put(name, jr.nextLiteral());
+			}
+		}
+		jr.endObject();
+		return entry;
+	}
+
+	protected void readGrs(JSONReader jr) throws IOException {
+		jr.beginObject();
+		while (jr.hasNext()) {
+			String name = jr.nextName();
+			if (GrammarsConstants.DOCUMENT_GRAMMAR_ID.equals(name)) {
+				documentID = jr.nextInt();
+			} else if (GrammarsConstants.FRAGMENT_GRAMMAR_ID.equals(name)) {
+				fragmentID = jr.nextInt();
+			} else if (GrammarsConstants.ELEMENT_FRAGMENT_GRAMMAR_ID
+					.equals(name)) {
+				elementFragmentID = jr.nextInt();
+			} else if (GrammarsConstants.GRAMMAR.equals(name)) {
+				jr.beginArray();
+				while (jr.hasNext()) {
+					grammarList.add(readGrammar(jr));
+				}
+				jr.endArray();
+			} else {
+				jr.skipValue();
+			}
+		}
+		jr.endObject();
+	}
+
+	protected GrammarEntry readGrammar(JSONReader jr) throws IOException {
+		GrammarEntry ge = new GrammarEntry();
+		ge.type = -1;
+		List<int[]> productions = new ArrayList<int[]>();
+
+		jr.beginObject();
+		while (jr.hasNext()) {
+			String name = jr.nextName();
+			if (GrammarsConstants.TYPE.equals(name)) {
+				ge.type = toGrammarType(jr.nextString());
+			} else if (GrammarsConstants.IS_TYPE_CASTABLE.equals(name)) {
+				ge.typeCastable = jr.nextBoolean();
+			} else if (GrammarsConstants.IS_NILLABLE.equals(name)) {
+				ge.nillable = jr.nextBoolean();
+			} else if (GrammarsConstants.TYPE_EMPTY_GRAMMAR_ID.equals(name)) {
+				ge.typeEmptyID = jr.nextInt();
+			} else if (GrammarsConstants.ELEMENT_CONTENT_GRAMMAR_ID
+					.equals(name)) {
+				ge.elementContentID = jr.nextInt();
+			} else if (GrammarsConstants.PRODUCTION.equals(name)) {
+				jr.beginArray();
+				while (jr.hasNext()) {
+					productions.add(readProduction(jr));
+				}
+				jr.endArray();
+			} else {
+				jr.skipValue();
+			}
+		}
+		jr.endObject();
+
+		if (ge.type == -1) {
+			throw jr.syntaxError("grammar without type");
+		}
+		if ((ge.type == GrammarsConstants.SNAPSHOT_FIRST_START_TAG_CONTENT || ge.type == GrammarsConstants.SNAPSHOT_START_TAG_CONTENT)
+				&& ge.elementContentID == GrammarsConstants.SNAPSHOT_NO_ID) {
+			throw jr.syntaxError("start tag grammar without "
+					+ GrammarsConstants.ELEMENT_CONTENT_GRAMMAR_ID
+					+ ", please re-create the grammar file");
+		}
+
+		ge.events = new byte[productions.size()];
+		ge.arguments = new int[productions.size() * 3];
+		ge.nextGrammarIDs = new int[productions.size()];
+		for (int i = 0; i < productions.size(); i++) {
+			int[] p = productions.get(i);
+			ge.events[i] = (byte) p[0];
+			ge.arguments[i * 3] = p[1];
+			ge.arguments[i * 3 + 1] = p[2];
+			ge.arguments[i * 3 + 2] = p[3];
+			ge.nextGrammarIDs[i] = p[4];
+		}
+
+		return ge;
+	}
+
+	/*
+	 * Returns event, argument0..2 and nextGrammarID
+	 */
+	protected int[] readProduction(JSONReader jr) throws IOException {
+		int[] p = new int[] { -1, GrammarsConstants.SNAPSHOT_NO_ID,
+				GrammarsConstants.SNAPSHOT_NO_ID,
+				GrammarsConstants.SNAPSHOT_NO_ID,
+				GrammarsConstants.SNAPSHOT_NO_ID };
+		jr.beginObject();
+		while (jr.hasNext()) {
+			String name = jr.nextName();
+			if (GrammarsConstants.EVENT.equals(name)) {
+				p[0] = toEventCode(jr.nextString());
+			} else if (GrammarsConstants.START_ELEMENT_NAMESPACE_ID
+					.equals(name)
+					|| GrammarsConstants.ATTRIBUTE_NAMESPACE_ID.equals(name)) {
+				p[1] = jr.nextInt();
+			} else if (GrammarsConstants.START_ELEMENT_LOCALNAME_ID
+					.equals(name)
+					|| GrammarsConstants.ATTRIBUTE_LOCALNAME_ID.equals(name)) {
+				p[2] = jr.nextInt();
+			} else if (GrammarsConstants.START_ELEMENT_GRAMMAR_ID.equals(name)) {
+				p[3] = jr.nextInt();
+			} else if (GrammarsConstants.ATTRIBUTE_DATATYPE_ID.equals(name)) {
+				p[3] = toDatatypeID(jr.nextInt());
+			} else if (GrammarsConstants.CHARACTERS_DATATYPE_ID.equals(name)) {
+				// single argument
+				p[1] = toDatatypeID(jr.nextInt());
+			} else if (GrammarsConstants.NEXT_GRAMMAR_ID.equals(name)) {
+				p[4] = jr.nextInt();
+			} else {
+				jr.skipValue();
+			}
+		}
+		jr.endObject();
+
+		if (p[0] == -1) {
+			throw jr.syntaxError("production without event");
+		}
+		return p;
+	}
+
+	protected static int toDatatypeID(int jsonDatatypeID) {
+		return jsonDatatypeID == JSON_DEFAULT_DATATYPE_ID ? GrammarsConstants.SNAPSHOT_DEFAULT_DATATYPE_ID
+				: jsonDatatypeID;
+	}
+
+	protected static byte toGrammarType(String type) throws IOException {
+		if (GrammarsConstants.DOCUMENT.equals(type)) {
+			return GrammarsConstants.SNAPSHOT_DOCUMENT;
+		} else if (GrammarsConstants.DOC_CONTENT.equals(type)) {
+			return GrammarsConstants.SNAPSHOT_DOC_CONTENT;
+		} else if (GrammarsConstants.DOC_END.equals(type)) {
+			return GrammarsConstants.SNAPSHOT_DOC_END;
+		} else if (GrammarsConstants.FRAGMENT.equals(type)) {
+			return GrammarsConstants.SNAPSHOT_FRAGMENT;
+		} else if (GrammarsConstants.FRAGMENT_CONTENT.equals(type)) {
+			return GrammarsConstants.SNAPSHOT_FRAGMENT_CONTENT;
+		} else if (GrammarsConstants.FIRST_START_TAG_CONTENT.equals(type)) {
+			return GrammarsConstants.SNAPSHOT_FIRST_START_TAG_CONTENT;
+		} else if (GrammarsConstants.START_TAG_CONTENT.equals(type)) {
+			return GrammarsConstants.SNAPSHOT_START_TAG_CONTENT;
+		} else if (GrammarsConstants.ELEMENT_CONTENT.equals(type)) {
+			return GrammarsConstants.SNAPSHOT_ELEMENT_CONTENT;
+		} else {
+			throw new IOException("Unknown grammar type '" + type + "'");
+		}
+	}
+
+	protected static byte toEventCode(String event) throws IOException {
+		if (GrammarsConstants.START_DOCUMENT.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_START_DOCUMENT;
+		} else if (GrammarsConstants.END_DOCUMENT.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_END_DOCUMENT;
+		} else if (GrammarsConstants.START_ELEMENT.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_START_ELEMENT;
+		} else if (GrammarsConstants.START_ELEMENT_NS.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_START_ELEMENT_NS;
+		} else if (GrammarsConstants.START_ELEMENT_GENERIC.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_START_ELEMENT_GENERIC;
+		} else if (GrammarsConstants.END_ELEMENT.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_END_ELEMENT;
+		} else if (GrammarsConstants.ATTRIBUTE.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_ATTRIBUTE;
+		} else if (GrammarsConstants.ATTRIBUTE_NS.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_ATTRIBUTE_NS;
+		} else if (GrammarsConstants.ATTRIBUTE_GENERIC.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_ATTRIBUTE_GENERIC;
+		} else if (GrammarsConstants.CHARACTERS.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_CHARACTERS;
+		} else if (GrammarsConstants.CHARACTERS_GENERIC.equals(event)) {
+			return GrammarsConstants.SNAPSHOT_CHARACTERS_GENERIC;
+		} else {
+			throw new IOException("Unknown event '" + event + "'");
+		}
+	}
+
+	protected SchemaInformedGrammars buildGrammars() throws EXIException {
+		if (documentID == GrammarsConstants.SNAPSHOT_NO_ID
+				|| fragmentID == GrammarsConstants.SNAPSHOT_NO_ID) {
+			throw new EXIException(
+					"JSON grammars without document or fragment grammar");
+		}
+
+		// URIs and local-names
+		String[] uris = namespaceUris.toArray(new String[namespaceUris.size()]);
+		String[][] lns = new String[uris.length][];
+		for (int i = 0; i < uris.length; i++) {
+			lns[i] = localNames.get(i).toArray(
+					new String[localNames.get(i).size()]);
+		}
+		initGrammarUriContexts(uris, lns);
+
+		// datatypes, base datatypes may be listed after derived ones
+		datatypes = new Datatype[datatypeEntries.size()];
+		datatypeInProgress = new boolean[datatypes.length];
+		for (int i = 0; i < datatypes.length; i++) {
+			createDatatype(i);
+		}
+
+		// grammars
+		grammarEntries = grammarList.toArray(new GrammarEntry[grammarList
+				.size()]);
+		createGrammars();
+
+		// global types, elements and attributes
+		for (int[] global : globals) {
+			setGlobals(global[0], global[1], global[2], global[3], global[4]);
+		}
+
+		return newSchemaInformedGrammars(documentID, fragmentID,
+				elementFragmentID);
+	}
+
+	protected Datatype createDatatype(int datatypeID) throws EXIException {
+		if (datatypes[datatypeID] != null) {
+			return datatypes[datatypeID];
+		}
+		if (datatypeInProgress[datatypeID]) {
+			throw new EXIException("Cyclic datatype reference " + datatypeID);
+		}
+		datatypeInProgress[datatypeID] = true;
+
+		Map<String, Object> entry = datatypeEntries.get(datatypeID);
+
+		QNameContext qncSchemaType = null;
+		if (entry.containsKey(GrammarsConstants.SCHEMA_TYPE_NAMESPACE_ID)) {
+			int uriID = getInt(entry,
+					GrammarsConstants.SCHEMA_TYPE_NAMESPACE_ID);
+			int localNameID = getInt(entry,
+					GrammarsConstants.SCHEMA_TYPE_LOCALNAME_ID);
+			qncSchemaType = grammarUriContexts[uriID]
+					.getQNameContext(localNameID);
+		}
+
+		Datatype datatype = newDatatype(entry, GrammarsConstants.TYPE,
+				qncSchemaType);
+
+		if (entry.containsKey(GrammarsConstants.BASE_DATATYPE_ID)) {
+			datatype.setBaseDatatype(createDatatype(getInt(entry,
+					GrammarsConstants.BASE_DATATYPE_ID)));
+		}
+		if (entry.containsKey(GrammarsConstants.GRAMMAR_ENUMERATION_DATATYPE_ID)) {
+			datatype.setGrammarEnumeration((EnumerationDatatype) createDatatype(getInt(
+					entry, GrammarsConstants.GRAMMAR_ENUMERATION_DATATYPE_ID)));
+		}
+
+		datatypes[datatypeID] = datatype;
+		return datatype;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected Datatype newDatatype(Map<String, Object> entry, String typeKey,
+			QNameContext qncSchemaType) throws EXIException {
+		String type = (String) entry.get(typeKey);
+		if (type == null) {
+			throw new EXIException("Datatype without " + typeKey);
+		}
+		BuiltInType bit = BuiltInType.valueOf(type);
+
+		Datatype datatype = newSimpleDatatype(bit, qncSchemaType);
+		if (datatype != null) {
+			return datatype;
+		}
+
+		WhiteSpace ws = entry.containsKey(GrammarsConstants.WHITE_SPACE) ? WhiteSpace
+				.valueOf((String) entry.get(GrammarsConstants.WHITE_SPACE))
+				: WhiteSpace.preserve;
+
+		switch (bit) {
+		case NBIT_UNSIGNED_INTEGER:
+			return new NBitUnsignedIntegerDatatype(IntegerValue.parse((String) entry
+					.get(GrammarsConstants.LOWER_BOUND)),
+					IntegerValue.parse((String) entry
+							.get(GrammarsConstants.UPPER_BOUND)), qncSchemaType);
+		case DATETIME:
+			return new DatetimeDatatype(DateTimeType.valueOf((String) entry
+					.get(GrammarsConstants.DATETIME_TYPE)), qncSchemaType);
+		case STRING:
+			if (Boolean.TRUE.equals(entry
+					.get(GrammarsConstants.IS_DERIVED_BY_UNION))) {
+				return new StringDatatype(qncSchemaType, true);
+			} else {
+				return new StringDatatype(qncSchemaType, ws);
+			}
+		case RCS_STRING:
+			List<String> cps = (List<String>) entry
+					.get(GrammarsConstants.CODE_POINTS);
+			Set<Integer> codePoints = new TreeSet<Integer>();
+			for (String cp : cps) {
+				codePoints.add(Integer.valueOf(cp));
+			}
+			return new RestrictedCharacterSetDatatype(
+					new CodePointCharacterSet(codePoints), qncSchemaType, ws);
+		case LIST:
+			return new ListDatatype(newDatatype(entry,
+					GrammarsConstants.LIST_TYPE, null), qncSchemaType);
+		case ENUMERATION:
+			Datatype dtEnumValues;
+			if (entry
+					.containsKey(GrammarsConstants.DATATYPE_ENUM_VALUES_BUILTIN_TYPE)) {
+				dtEnumValues = newDatatype(entry,
+						GrammarsConstants.DATATYPE_ENUM_VALUES_BUILTIN_TYPE,
+						null);
+			} else {
+				dtEnumValues = new StringDatatype(null, WhiteSpace.preserve);
+			}
+			List<String> enumValues = (List<String>) entry
+					.get(GrammarsConstants.DATATYPE_ENUM_VALUES);
+			Value[] values = new Value[enumValues.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = parseEnumValue(enumValues.get(i), dtEnumValues);
+			}
+			return new EnumerationDatatype(values, dtEnumValues, qncSchemaType);
+		default:
+			throw new EXIException("Unsupported datatype in JSON grammars: "
+					+ bit);
+		}
+	}
+
+	private static int getInt(Map<String, Object> entry, String key)
+			throws EXIException {
+		Object o = entry.get(key);
+		try {
+			return Integer.parseInt((String) o);
+		} catch (RuntimeException e) {
+			throw new EXIException("Integer expected for " + key + ": " + o);
+		}
+	}
+
+}
@@ -0,0 +1,278 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull parser for the JSON grammar files written by
+ * {@link Grammars2JSON}. Values are consumed one token at a time so large
+ * grammar arrays are never held as a generic object tree.
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+class JSONReader {
+
+	private final Reader reader;
+	// one character look-ahead, -2 means none
+	private int peeked = -2;
+	private int line = 1;
+
+	private final StringBuilder sb = new StringBuilder();
+
+	JSONReader(Reader reader) {
+		this.reader = reader;
+	}
+
+	private int read() throws IOException {
+		int c;
+		if (peeked != -2) {
+			c = peeked;
+			peeked = -2;
+		} else {
+			c = reader.read();
+		}
+		if (c == '\n') {
+			line++;
+		}
+		return c;
+	}
+
+	private int peek() throws IOException {
+		if (peeked == -2) {
+			peeked = reader.read();
+		}
+		return peeked;
+	}
+
+	private int peekNonWhitespace() throws IOException {
+		int c = peek();
+		while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+			read();
+			c = peek();
+		}
+		return c;
+	}
+
+	private void expect(char expected) throws IOException {
+		int c = peekNonWhitespace();
+		if (c != expected) {
+			throw syntaxError("'" + expected + "' expected");
+		}
+		read();
+	}
+
+	IOException syntaxError(String msg) {
+		return new IOException("Malformed JSON grammars, " + msg + " (line "
+				+ line + ")");
+	}
+
+	void beginObject() throws IOException {
+		expect('{');
+	}
+
+	void endObject() throws IOException {
+		expect('}');
+	}
+
+	void beginArray() throws IOException {
+		expect('[');
+	}
+
+	void endArray() throws IOException {
+		expect(']');
+	}
+
+	/**
+	 * Returns whether the current object or array has another member,
+	 * separating commas are consumed.
+	 */
+	boolean hasNext() throws IOException {
+		int c = peekNonWhitespace();
+		if (c == ',') {
+			read();
+			c = peekNonWhitespace();
+		}
+		if (c == -1) {
+			throw syntaxError("unexpected end of input");
+		}
+		return c != '}' && c != ']';
+	}
+
+	String nextName() throws IOException {
+		String name = nextString();
+		expect(':');
+		return name;
+	}
+
+	String nextString() throws IOException {
+		expect('"');
+		sb.setLength(0);
+		int c;
+		while ((c = read()) != '"') {
+			if (c == -1) {
+				throw syntaxError("unterminated string");
+			} else if (c == '\\') {
+				c = read();
+				switch (c) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					int cp = 0;
+					for (int i = 0; i < 4; i++) {
+						int d = Character.digit(read(), 16);
+						if (d < 0) {
+							throw syntaxError("invalid unicode escape");
+						}
+						cp = (cp << 4) | d;
+					}
+					sb.append((char) cp);
+					break;
+				case -1:
+					throw syntaxError("unterminated string");
+				default:
+					// '"', '\\' and '/'
+					sb.append((char) c);
+				}
+			} else {
+				sb.append((char) c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the literal of the next number (or string) value, e.g. for big
+	 * integer bounds
+	 */
+	String nextLiteral() throws IOException {
+		int c = peekNonWhitespace();
+		if (c == '"') {
+			return nextString();
+		}
+		sb.setLength(0);
+		while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E'
+				|| (c >= '0' && c <= '9')) {
+			sb.append((char) read());
+			c = peek();
+		}
+		if (sb.length() == 0) {
+			throw syntaxError("number expected");
+		}
+		return sb.toString();
+	}
+
+	int nextInt() throws IOException {
+		String s = nextLiteral();
+		try {
+			return Integer.parseInt(s.trim());
+		} catch (NumberFormatException e) {
+			throw syntaxError("integer expected instead of '" + s + "'");
+		}
+	}
+
+	boolean nextBoolean() throws IOException {
+		int c = peekNonWhitespace();
+		if (c == '"') {
+			// lenient, e.g. "true"
+			return Boolean.parseBoolean(nextString());
+		}
+		String s = nextKeyword();
+		if ("true".equals(s)) {
+			return true;
+		} else if ("false".equals(s)) {
+			return false;
+		} else {
+			throw syntaxError("boolean expected instead of '" + s + "'");
+		}
+	}
+
+	private String nextKeyword() throws IOException {
+		peekNonWhitespace();
+		sb.setLength(0);
+		int c = peek();
+		while (c >= 'a' && c <= 'z') {
+			sb.append((char) read());
+			c = peek();
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Skips the next value including nested objects and arrays
+	 */
+	void skipValue() throws IOException {
+		int c = peekNonWhitespace();
+		switch (c) {
+		case '{':
+			beginObject();
+			while (hasNext()) {
+				nextName();
+				skipValue();
+			}
+			endObject();
+			break;
+		case '[':
+			beginArray();
+			while (hasNext()) {
+				skipValue();
+			}
+			endArray();
+			break;
+		case '"':
+			nextString();
+			break;
+		case 't':
+		case 'f':
+		case 'n':
+			nextKeyword();
+			break;
+		default:
+			nextLiteral();
+		}
+	}
+
+	/**
+	 * Returns whether the next value is an array
+	 */
+	boolean isArray() throws IOException {
+		return peekNonWhitespace() == '[';
+	}
+
+}
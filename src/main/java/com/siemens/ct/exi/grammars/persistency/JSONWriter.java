@@ -0,0 +1,209 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming writer for the JSON grammar files read by {@link JSONReader}.
+ * Separators and indentation are inserted automatically, output is buffered
+ * and numbers are written without intermediate strings. In compact mode no
+ * whitespace is written at all.
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+class JSONWriter {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Writer writer;
+	private final boolean compact;
+
+	private final char[] buffer = new char[8192];
+	private int pos;
+
+	// digits of a number, written backwards
+	private final char[] digits = new char[20];
+
+	// whether the object or array at a given depth has members already
+	private boolean[] hasMembers = new boolean[16];
+	private int depth;
+	// value follows a member name
+	private boolean afterName;
+
+	JSONWriter(Writer writer, boolean compact) {
+		this.writer = writer;
+		this.compact = compact;
+	}
+
+	private void write(char c) throws IOException {
+		if (pos == buffer.length) {
+			writer.write(buffer, 0, pos);
+			pos = 0;
+		}
+		buffer[pos++] = c;
+	}
+
+	private void write(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			write(s.charAt(i));
+		}
+	}
+
+	private void newLine() throws IOException {
+		if (!compact) {
+			write('\n');
+			for (int i = 0; i < depth; i++) {
+				write('\t');
+			}
+		}
+	}
+
+	private void beforeValue() throws IOException {
+		if (afterName) {
+			afterName = false;
+		} else if (depth > 0) {
+			if (hasMembers[depth]) {
+				write(',');
+			}
+			hasMembers[depth] = true;
+			newLine();
+		}
+	}
+
+	private void open(char c) throws IOException {
+		beforeValue();
+		write(c);
+		if (++depth == hasMembers.length) {
+			boolean[] b = new boolean[depth * 2];
+			System.arraycopy(hasMembers, 0, b, 0, depth);
+			hasMembers = b;
+		}
+		hasMembers[depth] = false;
+	}
+
+	private void close(char c) throws IOException {
+		boolean members = hasMembers[depth];
+		depth--;
+		if (members) {
+			newLine();
+		}
+		write(c);
+		if (depth == 0 && !compact) {
+			write('\n');
+		}
+	}
+
+	void beginObject() throws IOException {
+		open('{');
+	}
+
+	void endObject() throws IOException {
+		close('}');
+	}
+
+	void beginArray() throws IOException {
+		open('[');
+	}
+
+	void endArray() throws IOException {
+		close(']');
+	}
+
+	JSONWriter name(String name) throws IOException {
+		beforeValue();
+		writeString(name);
+		write(compact ? ":" : " : ");
+		afterName = true;
+		return this;
+	}
+
+	void value(String s) throws IOException {
+		beforeValue();
+		writeString(s);
+	}
+
+	void value(boolean b) throws IOException {
+		beforeValue();
+		write(b ? "true" : "false");
+	}
+
+	void value(long l) throws IOException {
+		beforeValue();
+		if (l < 0) {
+			if (l == Long.MIN_VALUE) {
+				write(Long.toString(l));
+				return;
+			}
+			write('-');
+			l = -l;
+		}
+		int n = 0;
+		do {
+			digits[n++] = (char) ('0' + (l % 10));
+			l /= 10;
+		} while (l != 0);
+		while (n > 0) {
+			write(digits[--n]);
+		}
+	}
+
+	/**
+	 * Writes a number literal as is, e.g. big integer bounds
+	 */
+	void literal(String number) throws IOException {
+		beforeValue();
+		write(number);
+	}
+
+	private void writeString(String s) throws IOException {
+		write('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				write('\\');
+				write(c);
+			} else if (c < 0x20) {
+				write('\\');
+				write('u');
+				write('0');
+				write('0');
+				write(HEX[c >> 4]);
+				write(HEX[c & 0xF]);
+			} else {
+				write(c);
+			}
+		}
+		write('"');
+	}
+
+	void flush() throws IOException {
+		writer.write(buffer, 0, pos);
+		pos = 0;
+		writer.flush();
+	}
+
+}
@@ -0,0 +1,355 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
+
+/**
+ * Read-only, random-access view on a grammar image written by
+ * {@link Grammars2Image}.
+ *
+ * <p>
+ * The index-based accessors read the qname, grammar and production tables
+ * directly from the (mapped) buffer without copying them. Grammars and
+ * productions are addressed by the IDs assigned by
+ * {@link GrammarsPreperation}, a production index within a grammar is its
+ * first-level event code. Event and grammar type values are the snapshot
+ * codes of {@link GrammarsConstants}.
+ * </p>
+ *
+ * <p>
+ * Note: EXI encoders and decoders cannot work on these accessors, they need
+ * grammar objects. {@link #toGrammars()} materializes a full heap copy in
+ * every JVM, the mapped pages are not shared by the coders of several
+ * processes. The image is a snapshot format that supports reading single
+ * grammars (see {@link #toGrammars(Set)}) without parsing the whole file.
+ * </p>
+ *
+ * <p>
+ * Instances are thread-safe, only absolute reads on the buffer are used.
+ * </p>
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public class MappedGrammarsImage {
+
+	protected final ByteBuffer buffer;
+
+	protected final IntBuffer header;
+	protected final IntBuffer qnameTable;
+	protected final IntBuffer grammarTable;
+	protected final IntBuffer productionTable;
+	protected final int metaDataOffset;
+
+	public MappedGrammarsImage(ByteBuffer buffer) throws EXIException {
+		this.buffer = buffer;
+
+		if (buffer.capacity() < GrammarsConstants.IMAGE_HEADER_INTS * 4) {
+			throw new EXIException("No grammar image");
+		}
+		header = slice(0, GrammarsConstants.IMAGE_HEADER_INTS);
+		if (header.get(0) != GrammarsConstants.IMAGE_MAGIC) {
+			throw new EXIException("No grammar image");
+		}
+		if (header.get(1) != GrammarsConstants.IMAGE_VERSION) {
+			throw new EXIException("Unsupported grammar image version "
+					+ header.get(1));
+		}
+
+		int offset = GrammarsConstants.IMAGE_HEADER_INTS * 4;
+		int len = getNumberOfQNames() * GrammarsConstants.IMAGE_QNAME_INTS;
+		qnameTable = slice(offset, len);
+		offset += len * 4;
+		len = getNumberOfGrammars() * GrammarsConstants.IMAGE_GRAMMAR_INTS;
+		grammarTable = slice(offset, len);
+		offset += len * 4;
+		len = getNumberOfProductions()
+				* GrammarsConstants.IMAGE_PRODUCTION_INTS;
+		productionTable = slice(offset, len);
+		offset += len * 4;
+		metaDataOffset = offset;
+
+		if (buffer.capacity() != metaDataOffset + header.get(9)) {
+			throw new EXIException("Truncated grammar image");
+		}
+	}
+
+	/**
+	 * Maps the given image file read-only into memory.
+	 */
+	public static MappedGrammarsImage map(File image) throws IOException,
+			EXIException {
+		RandomAccessFile raf = new RandomAccessFile(image, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			// the mapping stays valid after the channel is closed
+			return new MappedGrammarsImage(fc.map(
+					FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private IntBuffer slice(int offset, int numberOfInts) throws EXIException {
+		if (offset + numberOfInts * 4 > buffer.capacity()) {
+			throw new EXIException("Truncated grammar image");
+		}
+		ByteBuffer bb = buffer.duplicate();
+		bb.position(offset);
+		bb.limit(offset + numberOfInts * 4);
+		return bb.slice().asIntBuffer();
+	}
+
+	public int getNumberOfUris() {
+		return header.get(2);
+	}
+
+	public int getNumberOfQNames() {
+		return header.get(3);
+	}
+
+	public int getNumberOfGrammars() {
+		return header.get(4);
+	}
+
+	public int getNumberOfProductions() {
+		return header.get(5);
+	}
+
+	public int getDocumentGrammarID() {
+		return header.get(6);
+	}
+
+	public int getFragmentGrammarID() {
+		return header.get(7);
+	}
+
+	public int getElementFragmentGrammarID() {
+		return header.get(8);
+	}
+
+	/**
+	 * @return whether the base types of global types are recorded (see
+	 *         {@link Grammars2Image#setBaseTypes(java.util.Map)})
+	 */
+	public boolean hasBaseTypes() {
+		return (header.get(10) & GrammarsConstants.IMAGE_FLAG_BASE_TYPES) != 0;
+	}
+
+	/*
+	 * QNames
+	 */
+	private int qname(int qnameID, int field) {
+		return qnameTable.get(qnameID * GrammarsConstants.IMAGE_QNAME_INTS
+				+ field);
+	}
+
+	public int getNamespaceUriID(int qnameID) {
+		return qname(qnameID, 0);
+	}
+
+	public int getLocalNameID(int qnameID) {
+		return qname(qnameID, 1);
+	}
+
+	public int getGlobalTypeGrammarID(int qnameID) {
+		return qname(qnameID, 2);
+	}
+
+	public int getGlobalElementGrammarID(int qnameID) {
+		return qname(qnameID, 3);
+	}
+
+	public int getGlobalAttributeDatatypeID(int qnameID) {
+		return qname(qnameID, 4);
+	}
+
+	public int getBaseTypeQNameID(int qnameID) {
+		return qname(qnameID, 5);
+	}
+
+	/*
+	 * Grammars
+	 */
+	private int grammar(int grammarID, int field) {
+		return grammarTable.get(grammarID
+				* GrammarsConstants.IMAGE_GRAMMAR_INTS + field);
+	}
+
+	public int getGrammarType(int grammarID) {
+		return grammar(grammarID, 0);
+	}
+
+	public boolean isTypeCastable(int grammarID) {
+		return (grammar(grammarID, 1) & GrammarsConstants.IMAGE_FLAG_TYPE_CASTABLE) != 0;
+	}
+
+	public boolean isNillable(int grammarID) {
+		return (grammar(grammarID, 1) & GrammarsConstants.IMAGE_FLAG_NILLABLE) != 0;
+	}
+
+	public int getTypeEmptyGrammarID(int grammarID) {
+		return grammar(grammarID, 2);
+	}
+
+	public int getElementContentGrammarID(int grammarID) {
+		return grammar(grammarID, 3);
+	}
+
+	public int getNumberOfEvents(int grammarID) {
+		return grammar(grammarID, 5);
+	}
+
+	/*
+	 * Productions
+	 */
+	private int production(int grammarID, int eventCode, int field) {
+		return productionTable.get((grammar(grammarID, 4) + eventCode)
+				* GrammarsConstants.IMAGE_PRODUCTION_INTS + field);
+	}
+
+	public int getEvent(int grammarID, int eventCode) {
+		return production(grammarID, eventCode, 0);
+	}
+
+	/**
+	 * Returns event argument 0..2, SE: uriID, localNameID, grammarID; AT:
+	 * uriID, localNameID, datatypeID; SE(uri:*), AT(uri:*): uriID; CH:
+	 * datatypeID
+	 */
+	public int getEventArgument(int grammarID, int eventCode, int index) {
+		return production(grammarID, eventCode, 1 + index);
+	}
+
+	/**
+	 * Returns the next grammar ID or -1 for terminal productions (EE, ED)
+	 */
+	public int getNextGrammarID(int grammarID, int eventCode) {
+		return production(grammarID, eventCode, 4);
+	}
+
+	/**
+	 * Returns the first-level event code of the given event in the grammar or
+	 * -1 if there is no such production. For SE and AT the qname is compared,
+	 * for SE(uri:*) and AT(uri:*) the uri.
+	 */
+	public int getEventCode(int grammarID, int event, int uriID,
+			int localNameID) {
+		int n = getNumberOfEvents(grammarID);
+		for (int i = 0; i < n; i++) {
+			if (getEvent(grammarID, i) == event) {
+				switch (event) {
+				case GrammarsConstants.SNAPSHOT_START_ELEMENT:
+				case GrammarsConstants.SNAPSHOT_ATTRIBUTE:
+					if (getEventArgument(grammarID, i, 0) == uriID
+							&& getEventArgument(grammarID, i, 1) == localNameID) {
+						return i;
+					}
+					break;
+				case GrammarsConstants.SNAPSHOT_START_ELEMENT_NS:
+				case GrammarsConstants.SNAPSHOT_ATTRIBUTE_NS:
+					if (getEventArgument(grammarID, i, 0) == uriID) {
+						return i;
+					}
+					break;
+				default:
+					return i;
+				}
+			}
+		}
+		return GrammarsConstants.SNAPSHOT_NO_ID;
+	}
+
+	/**
+	 * Returns the URIs, local-names and datatypes as stream in snapshot
+	 * format
+	 */
+	protected InputStream getMetaDataInputStream() {
+		ByteBuffer bb = buffer.duplicate();
+		bb.position(metaDataOffset);
+		return new ByteBufferInputStream(bb.slice());
+	}
+
+	/**
+	 * Materializes the image as schema-informed grammars, a heap copy of all
+	 * grammars that does not refer to the mapped buffer
+	 */
+	public SchemaInformedGrammars toGrammars() throws IOException,
+			EXIException {
+		return new Snapshot2Grammars().toGrammars(this);
+	}
+
+	/**
+	 * Materializes the grammars needed for the given global elements and
+	 * types only
+	 * 
+	 * @see Snapshot2Grammars#toGrammars(MappedGrammarsImage, Set)
+	 */
+	public SchemaInformedGrammars toGrammars(Set<QName> globals)
+			throws IOException, EXIException {
+		return new Snapshot2Grammars().toGrammars(this, globals);
+	}
+
+	static class ByteBufferInputStream extends InputStream {
+		final ByteBuffer bb;
+
+		ByteBufferInputStream(ByteBuffer bb) {
+			this.bb = bb;
+		}
+
+		public int read() {
+			return bb.hasRemaining() ? (bb.get() & 0xFF) : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!bb.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, bb.remaining());
+			bb.get(b, off, len);
+			return len;
+		}
+
+		public int available() {
+			return bb.remaining();
+		}
+	}
+
+}
@@ -0,0 +1,555 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+/*
+ * Copyright (c) 2007-2016 Siemens AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.namespace.QName;
+
+import com.siemens.ct.exi.Constants;
+import com.siemens.ct.exi.context.GrammarUriContext;
+import com.siemens.ct.exi.context.QNameContext;
+import com.siemens.ct.exi.datatype.Datatype;
+import com.siemens.ct.exi.datatype.DatetimeDatatype;
+import com.siemens.ct.exi.datatype.EnumerationDatatype;
+import com.siemens.ct.exi.datatype.ListDatatype;
+import com.siemens.ct.exi.datatype.NBitUnsignedIntegerDatatype;
+import com.siemens.ct.exi.datatype.RestrictedCharacterSetDatatype;
+import com.siemens.ct.exi.datatype.StringDatatype;
+import com.siemens.ct.exi.datatype.WhiteSpace;
+import com.siemens.ct.exi.datatype.charset.CodePointCharacterSet;
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
+import com.siemens.ct.exi.types.BuiltInType;
+import com.siemens.ct.exi.types.DateTimeType;
+import com.siemens.ct.exi.values.IntegerValue;
+import com.siemens.ct.exi.values.Value;
+
+/**
+ * Loads schema-informed grammars from a binary snapshot written by
+ * {@link Grammars2Snapshot}. No XML Schema processing takes place.
+ *
+ * @version 0.9.7-SNAPSHOT
+ */
+
+public class Snapshot2Grammars extends AbstractGrammarsReader {
+
+	public Snapshot2Grammars() {
+		super();
+	}
+
+	public SchemaInformedGrammars toGrammars(InputStream is)
+			throws IOException, EXIException {
+		try {
+			return loadGrammars(new DataInputStream(new BufferedInputStream(
+					is)));
+		} finally {
+			clear();
+		}
+	}
+
+	public SchemaInformedGrammars toGrammars(MappedGrammarsImage image)
+			throws IOException, EXIException {
+		return toGrammars(image, null);
+	}
+
+	/**
+	 * Materializes only the grammars needed for the given global elements and
+	 * types. Starting from their grammars all referenced grammars (next,
+	 * start element, element content and TypeEmpty grammars, global element
+	 * grammars matched by wildcards, grammars of global types derived from a
+	 * loaded type) and the grammars of the built-in XML Schema types are
+	 * loaded, the grammar and production tables of all other grammars are not
+	 * touched.
+	 * 
+	 * <p>
+	 * Derived types are the targets of xsi:type casts. They are known only if
+	 * the image records base types (see
+	 * {@link Grammars2Image#setBaseTypes(java.util.Map)}), otherwise the
+	 * grammars of all global types are loaded. Types derived from a built-in
+	 * type only are not followed, such types need to be requested.
+	 * </p>
+	 * 
+	 * <p>
+	 * String table and event codes are the same as for the whole image,
+	 * documents using only the loaded elements and types are interoperable
+	 * with the complete grammars. DocContent and FragmentContent still list
+	 * all global elements, the start element of an element that was not
+	 * loaded throws a RuntimeException (caused by an EXIException naming the
+	 * element) when its grammar is requested. There is no element fragment
+	 * grammar.
+	 * </p>
+	 * 
+	 * @param image
+	 *            grammar image
+	 * @param globals
+	 *            qualified names of global elements and types or null for
+	 *            all grammars
+	 * @return schema-informed grammars
+	 * @throws EXIException
+	 *             if a qualified name is neither a global element nor a
+	 *             global type
+	 */
+	public SchemaInformedGrammars toGrammars(MappedGrammarsImage image,
+			Set<QName> globals) throws IOException, EXIException {
+		try {
+			readMetaData(new DataInputStream(image.getMetaDataInputStream()));
+
+			boolean[] needed = globals == null ? null : getNeededGrammars(
+					image, globals);
+
+			grammarEntries = new GrammarEntry[image.getNumberOfGrammars()];
+			for (int i = 0; i < grammarEntries.length; i++) {
+				if (needed == null || needed[i]) {
+					grammarEntries[i] = readGrammarEntry(image, i);
+				}
+			}
+			createGrammars();
+
+			for (int q = 0; q < image.getNumberOfQNames(); q++) {
+				setGlobals(image.getNamespaceUriID(q), image.getLocalNameID(q),
+						image.getGlobalTypeGrammarID(q),
+						image.getGlobalElementGrammarID(q),
+						image.getGlobalAttributeDatatypeID(q));
+			}
+
+			return newSchemaInformedGrammars(image.getDocumentGrammarID(),
+					image.getFragmentGrammarID(),
+					needed == null ? image.getElementFragmentGrammarID()
+							: GrammarsConstants.SNAPSHOT_NO_ID);
+		} finally {
+			clear();
+		}
+	}
+
+	protected GrammarEntry readGrammarEntry(MappedGrammarsImage image,
+			int grammarID) {
+		GrammarEntry ge = new GrammarEntry();
+		ge.type = (byte) image.getGrammarType(grammarID);
+		ge.typeCastable = image.isTypeCastable(grammarID);
+		ge.nillable = image.isNillable(grammarID);
+		ge.typeEmptyID = image.getTypeEmptyGrammarID(grammarID);
+		ge.elementContentID = image.getElementContentGrammarID(grammarID);
+		int numberOfProductions = image.getNumberOfEvents(grammarID);
+		ge.events = new byte[numberOfProductions];
+		ge.arguments = new int[numberOfProductions * 3];
+		ge.nextGrammarIDs = new int[numberOfProductions];
+		for (int k = 0; k < numberOfProductions; k++) {
+			ge.events[k] = (byte) image.getEvent(grammarID, k);
+			for (int a = 0; a < 3; a++) {
+				ge.arguments[k * 3 + a] = image.getEventArgument(grammarID, k,
+						a);
+			}
+			ge.nextGrammarIDs[k] = image.getNextGrammarID(grammarID, k);
+		}
+		return ge;
+	}
+
+	/**
+	 * Computes the grammars reachable from the given global elements and
+	 * types, the document and fragment grammars and the built-in XML Schema
+	 * types
+	 */
+	protected boolean[] getNeededGrammars(MappedGrammarsImage image,
+			Set<QName> globals) throws EXIException {
+		boolean[] needed = new boolean[image.getNumberOfGrammars()];
+		List<Integer> todo = new ArrayList<Integer>();
+
+		todo.add(image.getDocumentGrammarID());
+		todo.add(image.getFragmentGrammarID());
+
+		// built-in types are always available (e.g., for xsi:type casts)
+		for (int i = 0; i < grammarUriContexts.length; i++) {
+			if (Constants.XML_SCHEMA_NS_URI.equals(grammarUriContexts[i]
+					.getNamespaceUri())) {
+				for (int k = 0; k < grammarUriContexts[i].getNumberOfQNames(); k++) {
+					todo.add(image.getGlobalTypeGrammarID(qnameOffsets[i] + k));
+				}
+			}
+		}
+
+		/*
+		 * Global types by the productions of their type grammar and derived
+		 * types per base type, an xsi:type cast may switch from a loaded type
+		 * to a derived one. Note: elements of a nillable or type castable
+		 * type use a copy of the type grammar with the same productions.
+		 */
+		Map<Integer, List<Integer>> typesByProductions = new HashMap<Integer, List<Integer>>();
+		Map<Integer, List<Integer>> derivedTypes = new HashMap<Integer, List<Integer>>();
+		for (int q = 0; q < image.getNumberOfQNames(); q++) {
+			int typeGrammarID = image.getGlobalTypeGrammarID(q);
+			if (typeGrammarID == GrammarsConstants.SNAPSHOT_NO_ID) {
+				continue;
+			}
+			if (image.hasBaseTypes()) {
+				addTo(typesByProductions,
+						getProductionsHash(image, typeGrammarID), q);
+				int baseTypeID = image.getBaseTypeQNameID(q);
+				if (baseTypeID != GrammarsConstants.SNAPSHOT_NO_ID) {
+					addTo(derivedTypes, baseTypeID, q);
+				}
+			} else {
+				// derivations unknown, any global type may be a cast target
+				todo.add(typeGrammarID);
+			}
+		}
+
+		for (QName qn : globals) {
+			int qnameID = getQNameID(qn);
+			if (qnameID == GrammarsConstants.SNAPSHOT_NO_ID
+					|| (image.getGlobalTypeGrammarID(qnameID) == GrammarsConstants.SNAPSHOT_NO_ID && image
+							.getGlobalElementGrammarID(qnameID) == GrammarsConstants.SNAPSHOT_NO_ID)) {
+				throw new EXIException("No global element or type for " + qn);
+			}
+			todo.add(image.getGlobalTypeGrammarID(qnameID));
+			todo.add(image.getGlobalElementGrammarID(qnameID));
+		}
+
+		while (!todo.isEmpty()) {
+			int grammarID = todo.remove(todo.size() - 1);
+			if (grammarID == GrammarsConstants.SNAPSHOT_NO_ID
+					|| needed[grammarID]) {
+				continue;
+			}
+			needed[grammarID] = true;
+
+			// grammar of a global type (or a copy) --> type and derived types
+			int grammarType = image.getGrammarType(grammarID);
+			List<Integer> types = grammarType == GrammarsConstants.SNAPSHOT_FIRST_START_TAG_CONTENT ? typesByProductions
+					.get(getProductionsHash(image, grammarID)) : null;
+			for (int i = 0; types != null && i < types.size(); i++) {
+				int typeGrammarID = image.getGlobalTypeGrammarID(types.get(i));
+				if (isSameProductions(image, grammarID, typeGrammarID)) {
+					todo.add(typeGrammarID);
+					List<Integer> derived = derivedTypes.get(types.get(i));
+					for (int k = 0; derived != null && k < derived.size(); k++) {
+						todo.add(image.getGlobalTypeGrammarID(derived.get(k)));
+					}
+				}
+			}
+
+			todo.add(image.getTypeEmptyGrammarID(grammarID));
+			todo.add(image.getElementContentGrammarID(grammarID));
+
+			// DocContent and FragmentContent list all global elements
+			boolean allGlobals = grammarType == GrammarsConstants.SNAPSHOT_DOC_CONTENT
+					|| grammarType == GrammarsConstants.SNAPSHOT_FRAGMENT_CONTENT;
+
+			for (int k = 0; k < image.getNumberOfEvents(grammarID); k++) {
+				todo.add(image.getNextGrammarID(grammarID, k));
+				if (allGlobals) {
+					continue;
+				}
+				switch (image.getEvent(grammarID, k)) {
+				case GrammarsConstants.SNAPSHOT_START_ELEMENT:
+					todo.add(image.getEventArgument(grammarID, k, 2));
+					break;
+				case GrammarsConstants.SNAPSHOT_START_ELEMENT_NS:
+					// global element grammars are used for wildcard matches
+					addGlobalElementGrammars(image,
+							image.getEventArgument(grammarID, k, 0), todo);
+					break;
+				case GrammarsConstants.SNAPSHOT_START_ELEMENT_GENERIC:
+					for (int i = 0; i < grammarUriContexts.length; i++) {
+						addGlobalElementGrammars(image, i, todo);
+					}
+					break;
+				default:
+					// no grammar reference
+				}
+			}
+		}
+
+		return needed;
+	}
+
+	private static int getProductionsHash(MappedGrammarsImage image,
+			int grammarID) {
+		int h = image.getNumberOfEvents(grammarID);
+		for (int k = 0; k < image.getNumberOfEvents(grammarID); k++) {
+			h = 31 * h + image.getEvent(grammarID, k);
+			for (int a = 0; a < 3; a++) {
+				h = 31 * h + image.getEventArgument(grammarID, k, a);
+			}
+			h = 31 * h + image.getNextGrammarID(grammarID, k);
+		}
+		return h;
+	}
+
+	private static boolean isSameProductions(MappedGrammarsImage image,
+			int grammarID1, int grammarID2) {
+		if (image.getNumberOfEvents(grammarID1) != image
+				.getNumberOfEvents(grammarID2)) {
+			return false;
+		}
+		for (int k = 0; k < image.getNumberOfEvents(grammarID1); k++) {
+			if (image.getEvent(grammarID1, k) != image.getEvent(grammarID2, k)
+					|| image.getNextGrammarID(grammarID1, k) != image
+							.getNextGrammarID(grammarID2, k)) {
+				return false;
+			}
+			for (int a = 0; a < 3; a++) {
+				if (image.getEventArgument(grammarID1, k, a) != image
+						.getEventArgument(grammarID2, k, a)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static void addTo(Map<Integer, List<Integer>> map, int key,
+			int value) {
+		List<Integer> values = map.get(key);
+		if (values == null) {
+			values = new ArrayList<Integer>();
+			map.put(key, values);
+		}
+		values.add(value);
+	}
+
+	private void addGlobalElementGrammars(MappedGrammarsImage image,
+			int uriID, List<Integer> todo) {
+		for (int k = 0; k < grammarUriContexts[uriID].getNumberOfQNames(); k++) {
+			todo.add(image.getGlobalElementGrammarID(qnameOffsets[uriID] + k));
+		}
+	}
+
+	/*
+	 * qname ID within the image or NO_ID if the qname is unknown
+	 */
+	private int getQNameID(QName qn) {
+		for (int i = 0; i < grammarUriContexts.length; i++) {
+			GrammarUriContext guc = grammarUriContexts[i];
+			if (guc.getNamespaceUri().equals(qn.getNamespaceURI())) {
+				QNameContext qnc = guc.getQNameContext(qn.getLocalPart());
+				return qnc == null ? GrammarsConstants.SNAPSHOT_NO_ID
+						: qnameOffsets[i] + qnc.getLocalNameID();
+			}
+		}
+		return GrammarsConstants.SNAPSHOT_NO_ID;
+	}
+
+	protected SchemaInformedGrammars loadGrammars(DataInputStream dis)
+			throws IOException, EXIException {
+
+		if (dis.readInt() != GrammarsConstants.SNAPSHOT_MAGIC) {
+			throw new EXIException("No grammar snapshot");
+		}
+		int version = dis.readInt();
+		if (version != GrammarsConstants.SNAPSHOT_VERSION) {
+			throw new EXIException("Unsupported grammar snapshot version "
+					+ version);
+		}
+
+		readMetaData(dis);
+
+		/*
+		 * Grammars
+		 */
+		int documentID = dis.readInt();
+		int fragmentID = dis.readInt();
+		int elementFragmentID = dis.readInt();
+
+		grammarEntries = new GrammarEntry[dis.readInt()];
+		for (int i = 0; i < grammarEntries.length; i++) {
+			grammarEntries[i] = readGrammarEntry(dis);
+		}
+		createGrammars();
+
+		/*
+		 * Global types, elements and attributes
+		 */
+		for (int i = 0; i < grammarUriContexts.length; i++) {
+			for (int k = 0; k < grammarUriContexts[i].getNumberOfQNames(); k++) {
+				setGlobals(i, k, dis.readInt(), dis.readInt(), dis.readInt());
+			}
+		}
+
+		return newSchemaInformedGrammars(documentID, fragmentID,
+				elementFragmentID);
+	}
+
+	/**
+	 * Reads schemaId, URIs, local-names and datatypes
+	 */
+	protected void readMetaData(DataInputStream dis) throws IOException,
+			EXIException {
+		schemaId = readString(dis);
+		builtInXMLSchemaTypesOnly = dis.readBoolean();
+
+		/*
+		 * URIs and local-names
+		 */
+		String[] namespaceUris = new String[dis.readInt()];
+		String[][] localNames = new String[namespaceUris.length][];
+		for (int i = 0; i < namespaceUris.length; i++) {
+			namespaceUris[i] = readUTF8(dis);
+			localNames[i] = new String[dis.readInt()];
+			for (int k = 0; k < localNames[i].length; k++) {
+				localNames[i][k] = readUTF8(dis);
+			}
+		}
+		initGrammarUriContexts(namespaceUris, localNames);
+
+		/*
+		 * Datatypes
+		 */
+		datatypes = new Datatype[dis.readInt()];
+		for (int i = 0; i < datatypes.length; i++) {
+			datatypes[i] = readDatatype(dis);
+		}
+	}
+
+	protected Datatype readDatatype(DataInputStream dis) throws IOException,
+			EXIException {
+		BuiltInType bit = BuiltInType.valueOf(dis.readUTF());
+
+		// schema type
+		QNameContext qncSchemaType = null;
+		int uriID = dis.readInt();
+		if (uriID != GrammarsConstants.SNAPSHOT_NO_ID) {
+			qncSchemaType = grammarUriContexts[uriID].getQNameContext(dis
+					.readInt());
+		}
+
+		Datatype baseDatatype = getDatatype(dis.readInt());
+		Datatype grammarEnumeration = getDatatype(dis.readInt());
+
+		Datatype datatype = newSimpleDatatype(bit, qncSchemaType);
+
+		switch (bit) {
+		case BINARY_BASE64:
+		case BINARY_HEX:
+		case BOOLEAN:
+		case BOOLEAN_FACET:
+		case DECIMAL:
+		case FLOAT:
+		case UNSIGNED_INTEGER:
+		case INTEGER:
+			break;
+		case NBIT_UNSIGNED_INTEGER:
+			datatype = new NBitUnsignedIntegerDatatype(
+					IntegerValue.parse(dis.readUTF()),
+					IntegerValue.parse(dis.readUTF()), qncSchemaType);
+			break;
+		case DATETIME:
+			datatype = new DatetimeDatatype(
+					DateTimeType.valueOf(dis.readUTF()), qncSchemaType);
+			break;
+		case STRING:
+			boolean isDerivedByUnion = dis.readBoolean();
+			WhiteSpace ws = readWhiteSpace(dis);
+			if (isDerivedByUnion) {
+				datatype = new StringDatatype(qncSchemaType, true);
+			} else {
+				datatype = new StringDatatype(qncSchemaType, ws);
+			}
+			break;
+		case RCS_STRING:
+			int numberOfCodePoints = dis.readInt();
+			Set<Integer> codePoints = new TreeSet<Integer>();
+			for (int i = 0; i < numberOfCodePoints; i++) {
+				codePoints.add(dis.readInt());
+			}
+			datatype = new RestrictedCharacterSetDatatype(
+					new CodePointCharacterSet(codePoints), qncSchemaType,
+					readWhiteSpace(dis));
+			break;
+		case ENUMERATION:
+			Datatype dtEnumValues = getDatatype(dis.readInt());
+			Value[] values = new Value[dis.readInt()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = parseEnumValue(readUTF8(dis), dtEnumValues);
+			}
+			datatype = new EnumerationDatatype(values, dtEnumValues,
+					qncSchemaType);
+			break;
+		case LIST:
+			datatype = new ListDatatype(getDatatype(dis.readInt()),
+					qncSchemaType);
+			break;
+		default:
+			throw new EXIException("Unsupported datatype in snapshot: " + bit);
+		}
+
+		if (baseDatatype != null) {
+			datatype.setBaseDatatype(baseDatatype);
+		}
+		if (grammarEnumeration != null) {
+			datatype.setGrammarEnumeration((EnumerationDatatype) grammarEnumeration);
+		}
+
+		return datatype;
+	}
+
+	protected GrammarEntry readGrammarEntry(DataInputStream dis)
+			throws IOException {
+		GrammarEntry ge = new GrammarEntry();
+		ge.type = dis.readByte();
+		if (ge.type == GrammarsConstants.SNAPSHOT_FIRST_START_TAG_CONTENT) {
+			ge.typeCastable = dis.readBoolean();
+			ge.nillable = dis.readBoolean();
+			ge.typeEmptyID = dis.readInt();
+			ge.elementContentID = dis.readInt();
+		} else if (ge.type == GrammarsConstants.SNAPSHOT_START_TAG_CONTENT) {
+			ge.elementContentID = dis.readInt();
+		}
+
+		int numberOfProductions = dis.readInt();
+		ge.events = new byte[numberOfProductions];
+		ge.arguments = new int[numberOfProductions * 3];
+		ge.nextGrammarIDs = new int[numberOfProductions];
+
+		for (int i = 0; i < numberOfProductions; i++) {
+			ge.events[i] = dis.readByte();
+			int n = Grammars2Snapshot.getNumberOfEventArguments(ge.events[i]);
+			for (int k = 0; k < n; k++) {
+				ge.arguments[i * 3 + k] = dis.readInt();
+			}
+			ge.nextGrammarIDs[i] = dis.readInt();
+		}
+
+		return ge;
+	}
+
+	static WhiteSpace readWhiteSpace(DataInputStream dis) throws IOException {
+		String ws = readString(dis);
+		return ws == null ? WhiteSpace.preserve : WhiteSpace.valueOf(ws);
+	}
+
+	static String readString(DataInputStream dis) throws IOException {
+		return dis.readBoolean() ? readUTF8(dis) : null;
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.siemens.ct.exi.grammars;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import com.siemens.ct.exi.GrammarFactory;
+import com.siemens.ct.exi.grammars.CachingEntityResolver.Validation;
+
+public class CachingEntityResolverTest extends TestCase {
+
+	String schemaA = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+			+ " <xs:element name='a' type='xs:string' />" + "</xs:schema>";
+
+	String schemaB = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+			+ " <xs:element name='b' type='xs:int' />" + "</xs:schema>";
+
+	public void testReadFromMemory() throws Exception {
+		File f = GrammarCacheTest.createSchema(schemaA);
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		CachingEntityResolver cer = new CachingEntityResolver(null,
+				Validation.NONE, CachingEntityResolver.UNBOUNDED);
+
+		gf.createGrammars(f.getAbsolutePath(), cer);
+		assertEquals(1, cer.size());
+
+		// no access to the file system anymore
+		assertTrue(f.delete());
+		Grammars g = gf.createGrammars(f.getAbsolutePath(), cer);
+		assertTrue(g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("a") != null);
+	}
+
+	public void testModificationTime() throws Exception {
+		File f = GrammarCacheTest.createSchema(schemaA);
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		CachingEntityResolver cer = new CachingEntityResolver();
+
+		gf.createGrammars(f.getAbsolutePath(), cer);
+		long lastModified = f.lastModified();
+
+		GrammarCacheTest.writeSchema(f, schemaB);
+		f.setLastModified(lastModified + 2000);
+		Grammars g = gf.createGrammars(f.getAbsolutePath(), cer);
+		assertTrue(g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("b") != null);
+		assertEquals(1, cer.size());
+	}
+
+	public void testContentDigest() throws Exception {
+		File f = GrammarCacheTest.createSchema(schemaA);
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		CachingEntityResolver cer = new CachingEntityResolver(null,
+				Validation.CONTENT_DIGEST, CachingEntityResolver.UNBOUNDED);
+
+		gf.createGrammars(f.getAbsolutePath(), cer);
+		GrammarCacheTest.writeSchema(f, schemaB);
+		Grammars g = gf.createGrammars(f.getAbsolutePath(), cer);
+		assertTrue(g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("b") != null);
+	}
+
+	public void testContentDigestRevalidation() throws Exception {
+		File f = GrammarCacheTest.createSchema(schemaA);
+		// same length as schemaA
+		String schemaC = schemaA.replace("name='a'", "name='c'");
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		CachingEntityResolver cer = new CachingEntityResolver(null,
+				Validation.CONTENT_DIGEST, CachingEntityResolver.UNBOUNDED);
+		cer.setRevalidationInterval(-1);
+
+		gf.createGrammars(f.getAbsolutePath(), cer);
+		long lastModified = f.lastModified();
+		GrammarCacheTest.writeSchema(f, schemaC);
+		f.setLastModified(lastModified);
+
+		// unchanged time stamp and length, not read again
+		Grammars g = gf.createGrammars(f.getAbsolutePath(), cer);
+		assertTrue(g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("a") != null);
+
+		// compared by content on every resolve
+		cer.setRevalidationInterval(0);
+		g = gf.createGrammars(f.getAbsolutePath(), cer);
+		assertTrue(g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("c") != null);
+	}
+
+	public void testMaximumBytes() throws Exception {
+		File fA = GrammarCacheTest.createSchema(schemaA);
+		File fB = GrammarCacheTest.createSchema(schemaB);
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		// room for one document only
+		CachingEntityResolver cer = new CachingEntityResolver(null,
+				Validation.NONE, schemaA.length() + 10);
+
+		gf.createGrammars(fA.getAbsolutePath(), cer);
+		gf.createGrammars(fB.getAbsolutePath(), cer);
+		assertEquals(1, cer.size());
+		assertTrue(cer.getNumberOfBytes() <= cer.getMaximumBytes());
+	}
+
+}
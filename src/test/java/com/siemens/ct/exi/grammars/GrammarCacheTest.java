@@ -0,0 +1,186 @@
+package com.siemens.ct.exi.grammars;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.xerces.xni.XMLResourceIdentifier;
+import org.apache.xerces.xni.parser.XMLEntityResolver;
+import org.apache.xerces.xni.parser.XMLInputSource;
+
+import junit.framework.TestCase;
+
+import com.siemens.ct.exi.GrammarFactory;
+
+public class GrammarCacheTest extends TestCase {
+
+	String schemaA = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+			+ " <xs:element name='a' type='xs:string' />" + "</xs:schema>";
+
+	String schemaB = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+			+ " <xs:element name='b' type='xs:int' />" + "</xs:schema>";
+
+	protected static File writeSchema(File f, String schema)
+			throws IOException {
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(schema.getBytes());
+		fos.close();
+		return f;
+	}
+
+	protected static File createSchema(String schema) throws IOException {
+		File f = File.createTempFile("grammarCache", ".xsd");
+		f.deleteOnExit();
+		return writeSchema(f, schema);
+	}
+
+	public void testCacheHit() throws Exception {
+		File f = createSchema(schemaA);
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		gf.setGrammarCache(new GrammarCache());
+
+		Grammars g1 = gf.createGrammars(f.getAbsolutePath());
+		Grammars g2 = gf.createGrammars(f.getAbsolutePath());
+		assertTrue(isCacheHit(g1, g2));
+		assertTrue(gf.getGrammarCache().size() == 1);
+
+		// own instance per call
+		assertTrue(g1 != g2);
+		((SchemaInformedGrammars) g1).setSchemaId("foo");
+		assertEquals(f.getAbsolutePath(), g2.getSchemaId());
+		assertEquals(f.getAbsolutePath(), gf.createGrammars(f.getAbsolutePath())
+				.getSchemaId());
+	}
+
+	protected static boolean isCacheHit(Grammars g1, Grammars g2) {
+		// same grammar graph
+		return g1.getDocumentGrammar() == g2.getDocumentGrammar();
+	}
+
+	public void testCacheKeyEntityResolver() throws Exception {
+		final File fA = createSchema(schemaA);
+		final File fB = createSchema(schemaB);
+		File main = createSchema("<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ " <xs:include schemaLocation='" + fA.toURI() + "' />"
+				+ "</xs:schema>");
+		// maps the include to another document
+		XMLEntityResolver redirect = new XMLEntityResolver() {
+			public XMLInputSource resolveEntity(XMLResourceIdentifier rid) {
+				if (fA.toURI().toString().equals(rid.getLiteralSystemId())) {
+					return new XMLInputSource(null, fB.toURI().toString(),
+							null);
+				}
+				return null;
+			}
+		};
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		gf.setGrammarCache(new GrammarCache());
+
+		Grammars g1 = gf.createGrammars(main.getAbsolutePath());
+		assertTrue(g1.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("a") != null);
+		Grammars g2 = gf.createGrammars(main.getAbsolutePath(), redirect);
+		assertTrue(g2.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("b") != null);
+		assertEquals(2, gf.getGrammarCache().size());
+
+		// removes the entries of all resolvers
+		gf.getGrammarCache().remove(main.getAbsolutePath());
+		assertEquals(0, gf.getGrammarCache().size());
+	}
+
+	public void testCacheContentChanged() throws Exception {
+		File f = createSchema(schemaA);
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		gf.setGrammarCache(new GrammarCache());
+
+		Grammars g1 = gf.createGrammars(f.getAbsolutePath());
+		assertTrue(g1.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("a") != null);
+
+		writeSchema(f, schemaB);
+		Grammars g2 = gf.createGrammars(f.getAbsolutePath());
+		assertFalse(isCacheHit(g1, g2));
+		assertTrue(g2.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("b") != null);
+	}
+
+	public void testCacheEviction() throws Exception {
+		File fA = createSchema(schemaA);
+		File fB = createSchema(schemaB);
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		gf.setGrammarCache(new GrammarCache(1));
+
+		Grammars gA1 = gf.createGrammars(fA.getAbsolutePath());
+		gf.createGrammars(fB.getAbsolutePath());
+		assertTrue(gf.getGrammarCache().size() == 1);
+
+		// A got evicted
+		Grammars gA2 = gf.createGrammars(fA.getAbsolutePath());
+		assertFalse(isCacheHit(gA1, gA2));
+	}
+
+	public void testCacheConcurrentCallers() throws Exception {
+		final File f = createSchema(schemaA);
+
+		final GrammarFactory gf = GrammarFactory.newInstance();
+		gf.setGrammarCache(new GrammarCache());
+
+		final Grammars[] results = new Grammars[8];
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						results[index] = gf.createGrammars(f.getAbsolutePath());
+					} catch (Exception e) {
+						// checked below
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+
+		for (int i = 0; i < results.length; i++) {
+			assertTrue(results[i] != null);
+			assertTrue(isCacheHit(results[i], results[0]));
+		}
+	}
+
+	public void testCacheHitWithoutRead() throws Exception {
+		File f = createSchema(schemaA);
+		final int[] resolved = new int[1];
+		XMLEntityResolver countingResolver = new XMLEntityResolver() {
+			public XMLInputSource resolveEntity(XMLResourceIdentifier rid) {
+				resolved[0]++;
+				// location only, document is read by the cache
+				return null;
+			}
+		};
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		gf.setGrammarCache(new GrammarCache());
+
+		Grammars g1 = gf.createGrammars(f.getAbsolutePath(), countingResolver);
+		int n = resolved[0];
+		assertTrue(n > 0);
+
+		// file checked by modification time, not resolved and read again
+		Grammars g2 = gf.createGrammars(f.getAbsolutePath(), countingResolver);
+		assertTrue(isCacheHit(g1, g2));
+		assertEquals(n, resolved[0]);
+
+		writeSchema(f, schemaB);
+		Grammars g3 = gf.createGrammars(f.getAbsolutePath(), countingResolver);
+		assertFalse(isCacheHit(g1, g3));
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.siemens.ct.exi.grammars;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import com.siemens.ct.exi.GrammarFactory;
+import com.siemens.ct.exi.grammars.event.EventType;
+import com.siemens.ct.exi.grammars.grammar.Grammar;
+
+public class GrammarFactoryTest extends TestCase {
+
+	protected static String getSchema(int n) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>");
+		sb.append(" <xs:element name='root'><xs:complexType><xs:sequence>");
+		for (int i = 0; i < n; i++) {
+			sb.append("<xs:element name='e" + i + "' type='xs:int' />");
+		}
+		sb.append(" </xs:sequence></xs:complexType></xs:element>");
+		sb.append("</xs:schema>");
+		return sb.toString();
+	}
+
+	protected static int getNumberOfSequenceGrammars(Grammars g) {
+		Grammar root = g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("root").getGlobalStartElement()
+				.getGrammar();
+		int cnt = 0;
+		Grammar gr = root;
+		while (gr.getNumberOfEvents() > 0
+				&& !gr.getProduction(0).getEvent()
+						.isEventType(EventType.END_ELEMENT)) {
+			gr = gr.getProduction(0).getNextGrammar();
+			cnt++;
+		}
+		return cnt;
+	}
+
+	public void testXSDTypesOnlyGrammars() throws Exception {
+		Grammars g1 = GrammarFactory.newInstance().createXSDTypesOnlyGrammars();
+		Grammars g2 = GrammarFactory.newInstance().createXSDTypesOnlyGrammars();
+		// built once, separate instances sharing the grammar graph
+		assertTrue(g1 != g2);
+		assertTrue(g1.getDocumentGrammar() == g2.getDocumentGrammar());
+		assertTrue(g1.getGrammarContext() == g2.getGrammarContext());
+		assertTrue(g1.isBuiltInXMLSchemaTypesOnly());
+
+		// modifying one instance does not affect others
+		((SchemaInformedGrammars) g1).setSchemaId("foo");
+		assertFalse("foo".equals(g2.getSchemaId()));
+		assertFalse("foo".equals(GrammarFactory.newInstance()
+				.createXSDTypesOnlyGrammars().getSchemaId()));
+		assertTrue(g2.isBuiltInXMLSchemaTypesOnly());
+	}
+
+	public void testParallelCreateGrammars() throws Exception {
+		final GrammarFactory gf = GrammarFactory.newInstance();
+
+		final int numberOfThreads = 8;
+		final int runsPerThread = 5;
+		final Throwable[] errors = new Throwable[numberOfThreads];
+		Thread[] threads = new Thread[numberOfThreads];
+
+		for (int i = 0; i < numberOfThreads; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for (int k = 0; k < runsPerThread; k++) {
+							// different schema per thread
+							int n = index + 1;
+							Grammars g = gf
+									.createGrammars(new ByteArrayInputStream(
+											getSchema(n).getBytes()));
+							if (getNumberOfSequenceGrammars(g) != n) {
+								throw new RuntimeException(
+										"Unexpected grammar for n=" + n);
+							}
+						}
+					} catch (Throwable t) {
+						errors[index] = t;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < numberOfThreads; i++) {
+			threads[i].join();
+		}
+
+		for (int i = 0; i < numberOfThreads; i++) {
+			if (errors[i] != null) {
+				fail("Thread " + i + ": " + errors[i]);
+			}
+		}
+	}
+
+
+	protected static String getImportingSchema(String root, File base) {
+		return "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' xmlns:b='urn:base'>"
+				+ " <xs:import namespace='urn:base' schemaLocation='"
+				+ base.toURI() + "' />"
+				+ " <xs:element name='" + root + "'><xs:complexType><xs:sequence>"
+				+ "  <xs:element ref='b:base' />"
+				+ " </xs:sequence></xs:complexType></xs:element>"
+				+ "</xs:schema>";
+	}
+
+	public void testSharedGrammarPool() throws Exception {
+		File base = GrammarCacheTest.createSchema("<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:base'>"
+				+ " <xs:element name='base' type='xs:string' />" + "</xs:schema>");
+		File main1 = GrammarCacheTest.createSchema(getImportingSchema("r1", base));
+		File main2 = GrammarCacheTest.createSchema(getImportingSchema("r2", base));
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		SchemaGrammarPool pool = new SchemaGrammarPool();
+		gf.setGrammarPool(pool);
+
+		Grammars g1 = gf.createGrammars(main1.getAbsolutePath());
+		assertTrue(g1.getGrammarContext().getGrammarUriContext("urn:base")
+				.getQNameContext("base").getGlobalStartElement() != null);
+		boolean pooled = false;
+		for (String key : pool.getKeys()) {
+			pooled |= key.startsWith("urn:base ");
+		}
+		assertTrue(pooled);
+
+		// base document is taken from the pool and not parsed again
+		GrammarCacheTest.writeSchema(base, "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:base'>"
+				+ " <xs:element name='changed' type='xs:string' />" + "</xs:schema>");
+		Grammars g2 = gf.createGrammars(main2.getAbsolutePath());
+		assertTrue(g2.getGrammarContext().getGrammarUriContext("urn:base")
+				.getQNameContext("base").getGlobalStartElement() != null);
+		assertTrue(g2.getGrammarContext().getGrammarUriContext("urn:base")
+				.getQNameContext("changed") == null);
+	}
+
+}
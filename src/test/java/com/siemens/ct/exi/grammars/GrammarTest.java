@@ -24,8 +24,19 @@
 package com.siemens.ct.exi.grammars;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.xml.namespace.QName;
 
@@ -35,6 +46,7 @@ import org.apache.xerces.xni.XMLResourceIdentifier;
 import org.apache.xerces.xni.XNIException;
 import org.apache.xerces.xni.parser.XMLInputSource;
 import org.apache.xerces.xs.XSModel;
+import org.apache.xerces.xs.XSObject;
 import org.apache.xerces.xs.XSSimpleTypeDefinition;
 import org.apache.xerces.xs.XSTypeDefinition;
 import org.custommonkey.xmlunit.XMLConstants;
@@ -42,6 +54,7 @@ import org.custommonkey.xmlunit.XMLConstants;
 import com.siemens.ct.exi.FidelityOptions;
 import com.siemens.ct.exi.GrammarFactory;
 import com.siemens.ct.exi.context.GrammarContext;
+import com.siemens.ct.exi.context.GrammarUriContext;
 import com.siemens.ct.exi.context.QNameContext;
 import com.siemens.ct.exi.datatype.Datatype;
 import com.siemens.ct.exi.datatype.EnumerationDatatype;
@@ -52,6 +65,8 @@ import com.siemens.ct.exi.grammars.event.EventType;
 import com.siemens.ct.exi.grammars.event.StartElement;
 import com.siemens.ct.exi.grammars.grammar.BuiltInStartTag;
 import com.siemens.ct.exi.grammars.grammar.Grammar;
+import com.siemens.ct.exi.grammars.grammar.SchemaInformedElement;
+import com.siemens.ct.exi.grammars.persistency.Grammars2Snapshot;
 import com.siemens.ct.exi.grammars.production.Production;
 import com.siemens.ct.exi.types.BuiltInType;
 
@@ -161,6 +176,319 @@ public class GrammarTest extends TestCase {
 		assertTrue(er3.getEvent().isEventType(EventType.END_ELEMENT));
 	}
 
+	public void testSequenceLargeMaxOccurs() throws Exception {
+		// one content model state per occurrence
+		int n = 3000;
+		schema = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ " <xs:element name='root'>"
+				+ "  <xs:complexType>"
+				+ "   <xs:sequence >"
+				+ "    <xs:element name='a' type='xs:string' minOccurs='" + n
+				+ "' maxOccurs='" + n + "' /> "
+				+ "    <xs:element name='b' type='xs:string' /> "
+				+ "   </xs:sequence>" + "  </xs:complexType>"
+				+ " </xs:element>" + "</xs:schema>";
+
+		Grammars g = getGrammarFromSchemaAsString(schema);
+		GrammarContext gc = g.getGrammarContext();
+
+		Grammar gr = gc.getGrammarUriContext("").getQNameContext("root")
+				.getGlobalStartElement().getGrammar();
+		for (int i = 0; i < n; i++) {
+			// SE(a)
+			assertTrue(gr.getNumberOfEvents() == 1);
+			Production er = gr.getProduction(0);
+			assertTrue(((StartElement) er.getEvent()).getQName()
+					.getLocalPart().equals("a"));
+			gr = er.getNextGrammar();
+		}
+		// SE(b)
+		assertTrue(gr.getNumberOfEvents() == 1);
+		Production erB = gr.getProduction(0);
+		assertTrue(((StartElement) erB.getEvent()).getQName().getLocalPart()
+				.equals("b"));
+		// EE
+		assertTrue(erB.getNextGrammar().getProduction(0).getEvent()
+				.isEventType(EventType.END_ELEMENT));
+	}
+
+	public void testContentModelStateHash() throws Exception {
+		schema = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ " <xs:element name='a' type='xs:string' />" + "</xs:schema>";
+		XSDGrammarsBuilder xsdGB = XSDGrammarsBuilder.newInstance();
+		xsdGB.loadGrammars(new ByteArrayInputStream(schema.getBytes()));
+		xsdGB.toGrammars();
+		List<XSObject> states = new ArrayList<XSObject>();
+		states.add(xsdGB.getXSModel().getElementDeclaration("a", null));
+
+		// states of a large maxOccurs differ in their counter only
+		int n = 50000;
+		EXIContentModelBuilder.CMStateMap<Grammar> knownStates = new EXIContentModelBuilder.CMStateMap<Grammar>();
+		Set<Integer> hashes = new HashSet<Integer>();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < n; i++) {
+			EXIContentModelBuilder.CMState s = new EXIContentModelBuilder.CMState(
+					states, false, new int[] { 1, 0, i }, false, null);
+			assertNull(knownStates.get(s));
+			knownStates.put(s, new SchemaInformedElement());
+			hashes.add(s.hashCode());
+		}
+		for (int i = 0; i < n; i++) {
+			assertNotNull(knownStates.get(new EXIContentModelBuilder.CMState(
+					states, false, new int[] { 1, 0, i }, false, null)));
+		}
+		assertEquals(n, hashes.size());
+		assertEquals(n, knownStates.size());
+		// linear probing over a single hash code would be quadratic
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	public void testMinimizeContentModel() throws Exception {
+		// after a and after b the same content (c) follows
+		schema = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ " <xs:element name='c' type='xs:string' /> "
+				+ " <xs:element name='root'>" + "  <xs:complexType>"
+				+ "   <xs:choice >"
+				+ "    <xs:sequence><xs:element name='a' type='xs:string' /><xs:element ref='c' /></xs:sequence>"
+				+ "    <xs:sequence><xs:element name='b' type='xs:string' /><xs:element ref='c' /></xs:sequence>"
+				+ "   </xs:choice>" + "  </xs:complexType>"
+				+ " </xs:element>" + "</xs:schema>";
+
+		XSDGrammarsBuilder xsdGB = XSDGrammarsBuilder.newInstance();
+		xsdGB.setMinimizeContentModels(true);
+		xsdGB.loadGrammars(new ByteArrayInputStream(schema.getBytes()));
+		Grammars g = xsdGB.toGrammars();
+
+		assertTrue(xsdGB.getNumberOfMinimizedContentModelStates() < xsdGB
+				.getNumberOfContentModelStates());
+
+		Grammar root = g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("root").getGlobalStartElement().getGrammar();
+		// SE(a), SE(b)
+		assertTrue(root.getNumberOfEvents() == 2);
+		assertTrue(root.getProduction(0).getNextGrammar() == root
+				.getProduction(1).getNextGrammar());
+	}
+
+	public void testSharedContentModel() throws Exception {
+		// extension adding attributes only keeps the particle of the base
+		schema = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ " <xs:complexType name='base'>"
+				+ "  <xs:sequence><xs:element name='a' type='xs:string' /><xs:element name='b' type='xs:string' /></xs:sequence>"
+				+ " </xs:complexType>"
+				+ " <xs:complexType name='derived'><xs:complexContent>"
+				+ "  <xs:extension base='base'><xs:attribute name='at' type='xs:string' /></xs:extension>"
+				+ " </xs:complexContent></xs:complexType>"
+				+ " <xs:element name='x' type='base' />"
+				+ " <xs:element name='y' type='derived' />" + "</xs:schema>";
+
+		XSDGrammarsBuilder xsdGB = XSDGrammarsBuilder.newInstance();
+		xsdGB.loadGrammars(new ByteArrayInputStream(schema.getBytes()));
+		Grammars g = xsdGB.toGrammars();
+
+		// start, after a, after b
+		assertEquals(3, xsdGB.getNumberOfContentModelStates());
+
+		GrammarUriContext guc = g.getGrammarContext().getGrammarUriContext("");
+		Grammar x = guc.getQNameContext("x").getGlobalStartElement()
+				.getGrammar();
+		Grammar y = guc.getQNameContext("y").getGlobalStartElement()
+				.getGrammar();
+		// grammar after SE(a) is shared
+		assertTrue(getNextGrammarAfterStartElement(x) == getNextGrammarAfterStartElement(y));
+	}
+
+	protected static byte[] toSnapshot(SchemaInformedGrammars grammars)
+			throws EXIException, IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new Grammars2Snapshot().toGrammarsSnapshot(grammars, baos);
+		return baos.toByteArray();
+	}
+
+	protected void _testParallel(String xsd) throws EXIException,
+			IOException {
+		XSDGrammarsBuilder xsdGB = XSDGrammarsBuilder.newInstance();
+		xsdGB.loadGrammars(xsd);
+		byte[] snapshot = toSnapshot(xsdGB.toGrammars());
+
+		ExecutorService es = Executors.newFixedThreadPool(4);
+		try {
+			XSDGrammarsBuilder parallelBuilder = XSDGrammarsBuilder
+					.newInstance();
+			parallelBuilder.setExecutorService(es);
+			parallelBuilder.loadGrammars(xsd);
+			// same grammars (and IDs) as translated sequentially
+			assertTrue(Arrays.equals(snapshot,
+					toSnapshot(parallelBuilder.toGrammars())));
+			assertEquals(xsdGB.getNumberOfContentModelStates(),
+					parallelBuilder.getNumberOfContentModelStates());
+		} finally {
+			es.shutdown();
+		}
+	}
+
+	public void testParallelNotebook() throws Exception {
+		_testParallel("data/W3C/PrimerNotebook/notebook.xsd");
+	}
+
+	public void testParallelEXIForJSON() throws Exception {
+		_testParallel("data/W3C/EXIforJSON/schema-for-json.xsd");
+	}
+
+	public void testParallelContentModels() throws Exception {
+		// substitution groups, namespace wildcards and mixed content
+		schema = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ " <xs:element name='h' type='xs:string' />"
+				+ " <xs:element name='s1' type='xs:string' substitutionGroup='h' />"
+				+ " <xs:element name='s2' type='xs:string' substitutionGroup='h' />"
+				+ " <xs:complexType name='t'><xs:sequence>"
+				+ "  <xs:element ref='h' maxOccurs='3' />"
+				+ "  <xs:any namespace='urn:a urn:b' minOccurs='0' />"
+				+ "  <xs:element name='c' type='xs:int' minOccurs='0' maxOccurs='unbounded' />"
+				+ " </xs:sequence></xs:complexType>"
+				+ " <xs:element name='r'><xs:complexType mixed='true'><xs:sequence>"
+				+ "  <xs:element name='a' type='t' />"
+				+ "  <xs:any namespace='##other' processContents='lax' />"
+				+ " </xs:sequence></xs:complexType></xs:element>"
+				+ " <xs:element name='x' type='t' />" + "</xs:schema>";
+		File f = File.createTempFile("parallel", ".xsd");
+		f.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(schema.getBytes("UTF-8"));
+		fos.close();
+
+		_testParallel(f.getAbsolutePath());
+	}
+
+	protected void _testLazy(String xsd) throws EXIException, IOException {
+		XSDGrammarsBuilder xsdGB = XSDGrammarsBuilder.newInstance();
+		xsdGB.loadGrammars(xsd);
+		byte[] snapshot = toSnapshot(xsdGB.toGrammars());
+
+		XSDGrammarsBuilder lazyBuilder = XSDGrammarsBuilder.newInstance();
+		lazyBuilder.setLazy(true);
+		lazyBuilder.loadGrammars(xsd);
+		SchemaInformedGrammars grammars = lazyBuilder.toGrammars();
+		// nothing translated yet
+		assertEquals(0, lazyBuilder.getNumberOfContentModelStates());
+
+		// same grammars (and IDs) once translated
+		assertTrue(Arrays.equals(snapshot, toSnapshot(grammars)));
+		assertEquals(xsdGB.getNumberOfContentModelStates(),
+				lazyBuilder.getNumberOfContentModelStates());
+
+		try {
+			lazyBuilder.loadGrammars(xsd);
+			fail("Lazy builder re-used");
+		} catch (EXIException e) {
+			// expected
+		}
+	}
+
+	public void testLazyNotebook() throws Exception {
+		_testLazy("data/W3C/PrimerNotebook/notebook.xsd");
+	}
+
+	public void testLazyEXIForJSON() throws Exception {
+		_testLazy("data/W3C/EXIforJSON/schema-for-json.xsd");
+	}
+
+	public void testLazyGlobalElement() throws Exception {
+		XSDGrammarsBuilder lazyBuilder = XSDGrammarsBuilder.newInstance();
+		lazyBuilder.setLazy(true);
+		lazyBuilder.loadGrammars("data/W3C/PrimerNotebook/notebook.xsd");
+		GrammarContext gc = lazyBuilder.toGrammars().getGrammarContext();
+
+		QNameContext qncNotebook = gc.getGrammarUriContext("")
+				.getQNameContext("notebook");
+		Grammar notebook = qncNotebook.getGlobalStartElement().getGrammar();
+		assertNotNull(notebook);
+		assertTrue(lazyBuilder.getNumberOfContentModelStates() > 0);
+		// resolved once
+		assertTrue(notebook == qncNotebook.getGlobalStartElement()
+				.getGrammar());
+
+		// type grammar (xsi:type)
+		assertNotNull(gc.getGrammarUriContext("").getQNameContext("Note")
+				.getTypeGrammar());
+	}
+
+	protected static Grammar getNextGrammarAfterStartElement(Grammar g) {
+		for (int i = 0; i < g.getNumberOfEvents(); i++) {
+			Production p = g.getProduction(i);
+			if (p.getEvent().isEventType(EventType.START_ELEMENT)) {
+				return p.getNextGrammar();
+			}
+		}
+		return null;
+	}
+
+	public void testRootElements() throws Exception {
+		schema = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ " <xs:complexType name='A'><xs:sequence><xs:element name='x' type='xs:int' /></xs:sequence></xs:complexType>"
+				+ " <xs:complexType name='B'><xs:sequence><xs:element name='y' type='xs:int' /></xs:sequence>"
+				+ "  <xs:attribute name='at' type='xs:string' /></xs:complexType>"
+				+ " <xs:element name='a' type='A' />"
+				+ " <xs:element name='b' type='B' />" + "</xs:schema>";
+
+		XSDGrammarsBuilder xsdGB = XSDGrammarsBuilder.newInstance();
+		xsdGB.loadGrammars(new ByteArrayInputStream(schema.getBytes()));
+		xsdGB.setRootElements(Collections.singleton(new QName("", "a")));
+		Grammars g = xsdGB.toGrammars();
+
+		GrammarUriContext guc = g.getGrammarContext().getGrammarUriContext("");
+		assertTrue(guc.getQNameContext("a").getGlobalStartElement() != null);
+		assertTrue(guc.getQNameContext("A").getTypeGrammar() != null);
+		assertTrue(guc.getQNameContext("x") != null);
+		// not reachable from a
+		assertTrue(guc.getQNameContext("b") == null);
+		assertTrue(guc.getQNameContext("B") == null);
+		assertTrue(guc.getQNameContext("y") == null);
+		assertTrue(guc.getQNameContext("at") == null);
+		// built-in types are kept
+		assertTrue(g.getGrammarContext()
+				.getGrammarUriContext(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+				.getQNameContext("int").getTypeGrammar() != null);
+
+		// unknown root
+		xsdGB.loadGrammars(new ByteArrayInputStream(schema.getBytes()));
+		xsdGB.setRootElements(Collections.singleton(new QName("", "c")));
+		try {
+			xsdGB.toGrammars();
+			fail("Unknown root element accepted");
+		} catch (EXIException e) {
+			// expected
+		}
+	}
+
+	public void testRootElementsDerivedTypes() throws Exception {
+		schema = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ " <xs:complexType name='A'><xs:sequence><xs:element name='x' type='xs:int' /></xs:sequence></xs:complexType>"
+				+ " <xs:complexType name='A2'><xs:complexContent><xs:extension base='A'>"
+				+ "  <xs:sequence><xs:element name='x2' type='xs:int' /></xs:sequence>"
+				+ " </xs:extension></xs:complexContent></xs:complexType>"
+				+ " <xs:complexType name='A3'><xs:complexContent><xs:extension base='A2'>"
+				+ "  <xs:attribute name='at3' type='xs:string' />"
+				+ " </xs:extension></xs:complexContent></xs:complexType>"
+				+ " <xs:simpleType name='S'><xs:restriction base='xs:string' /></xs:simpleType>"
+				+ " <xs:element name='a' type='A' />"
+				+ " <xs:element name='s' type='xs:string' />" + "</xs:schema>";
+
+		XSDGrammarsBuilder xsdGB = XSDGrammarsBuilder.newInstance();
+		xsdGB.loadGrammars(new ByteArrayInputStream(schema.getBytes()));
+		xsdGB.setRootElements(Collections.singleton(new QName("", "a")));
+		Grammars g = xsdGB.toGrammars();
+
+		GrammarUriContext guc = g.getGrammarContext().getGrammarUriContext("");
+		// xsi:type casts from A to types derived from A
+		assertTrue(guc.getQNameContext("A2").getTypeGrammar() != null);
+		assertTrue(guc.getQNameContext("A3").getTypeGrammar() != null);
+		assertTrue(guc.getQNameContext("x2") != null);
+		assertTrue(guc.getQNameContext("at3") != null);
+		// derived from a built-in type only, no xsi:type cast to S
+		assertTrue(guc.getQNameContext("S") == null);
+	}
+
 	public void testSequence2() throws Exception {
 		schema = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
 				+ " <xs:element name='root'>" + "  <xs:complexType>"
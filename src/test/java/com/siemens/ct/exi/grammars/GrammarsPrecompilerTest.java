@@ -0,0 +1,159 @@
+package com.siemens.ct.exi.grammars;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.siemens.ct.exi.GrammarFactory;
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.persistency.Snapshot2Grammars;
+
+public class GrammarsPrecompilerTest extends TestCase {
+
+	String schemaA = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+			+ " <xs:element name='a' type='xs:string' />" + "</xs:schema>";
+
+	String schemaB = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+			+ " <xs:element name='b' type='xs:int' />" + "</xs:schema>";
+
+	protected static File createDirectory(String name) throws IOException {
+		File dir = File.createTempFile(name, "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	public void testIncremental() throws Exception {
+		File in = createDirectory("xsds");
+		File out = createDirectory("grammars");
+		new File(in, "sub").mkdir();
+		File fA = GrammarCacheTest.writeSchema(new File(in, "a.xsd"), schemaA);
+		GrammarCacheTest.writeSchema(new File(in, "sub/b.xsd"), schemaB);
+
+		Map<String, String> schemas = GrammarsPrecompiler.listDirectory(in);
+		assertEquals(2, schemas.size());
+		assertTrue(schemas.containsKey("a.xsd"));
+		assertTrue(schemas.containsKey("sub/b.xsd"));
+
+		GrammarsPrecompiler gp = new GrammarsPrecompiler(out);
+		gp.setNumberOfThreads(2);
+		assertEquals(2, gp.precompile(schemas));
+		File outA = gp.getOutputFile("a.xsd");
+		assertTrue(outA.exists());
+		assertTrue(outA.getName().startsWith("a-"));
+
+		// loadable, schemaId set
+		FileInputStream fis = new FileInputStream(outA);
+		SchemaInformedGrammars g = new Snapshot2Grammars().toGrammars(fis);
+		fis.close();
+		assertEquals("a.xsd", g.getSchemaId());
+		assertNotNull(g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("a"));
+
+		// unchanged, also for a new precompiler reading the index
+		assertEquals(0, new GrammarsPrecompiler(out).precompile(schemas));
+
+		// changed content, new file name
+		GrammarCacheTest.writeSchema(fA, schemaB);
+		gp = new GrammarsPrecompiler(out);
+		assertEquals(1, gp.precompile(schemas));
+		assertFalse(outA.exists());
+		assertTrue(gp.getOutputFile("a.xsd").exists());
+
+		// other format, compiled again
+		outA = gp.getOutputFile("a.xsd");
+		gp = new GrammarsPrecompiler(out);
+		gp.setFormat(GrammarsPrecompiler.Format.JSON);
+		assertEquals(2, gp.precompile(schemas));
+		assertFalse(outA.exists());
+		assertTrue(gp.getOutputFile("a.xsd").getName().endsWith(".json"));
+
+		// removed schema, pruned from index and output
+		File outB = gp.getOutputFile("sub/b.xsd");
+		schemas.remove("sub/b.xsd");
+		gp = new GrammarsPrecompiler(out);
+		gp.setFormat(GrammarsPrecompiler.Format.JSON);
+		assertEquals(0, gp.precompile(schemas));
+		assertNull(gp.getOutputFile("sub/b.xsd"));
+		assertFalse(outB.exists());
+		assertNull(new GrammarsPrecompiler(out).getOutputFile("sub/b.xsd"));
+	}
+
+	public void testFormatVersion() throws Exception {
+		File in = createDirectory("xsds");
+		File out = createDirectory("grammars");
+		GrammarCacheTest.writeSchema(new File(in, "a.xsd"), schemaA);
+		Map<String, String> schemas = GrammarsPrecompiler.listDirectory(in);
+
+		// output of a previous format version
+		GrammarsPrecompiler previous = new GrammarsPrecompiler(out) {
+			protected String getFileName(String schemaId, List<String> digests)
+					throws IOException {
+				List<String> d = new ArrayList<String>(digests);
+				d.add("previous format version");
+				return super.getFileName(schemaId, d);
+			}
+		};
+		assertEquals(1, previous.precompile(schemas));
+		File outPrevious = previous.getOutputFile("a.xsd");
+
+		GrammarsPrecompiler gp = new GrammarsPrecompiler(out);
+		assertEquals(1, gp.precompile(schemas));
+		assertFalse(outPrevious.exists());
+		assertEquals(0, new GrammarsPrecompiler(out).precompile(schemas));
+	}
+
+	public void testPrecompiledGrammars() throws Exception {
+		File in = createDirectory("xsds");
+		File classes = createDirectory("classes");
+		File fA = GrammarCacheTest.writeSchema(new File(in, "a.xsd"), schemaA);
+		// second classpath entry with its own index
+		File inB = createDirectory("xsds");
+		File classesB = createDirectory("classes");
+		GrammarCacheTest.writeSchema(new File(inB, "b.xsd"), schemaB);
+
+		new GrammarsPrecompiler(new File(classes,
+				GrammarsPrecompiler.CLASSPATH_DIRECTORY))
+				.precompile(GrammarsPrecompiler.listDirectory(in));
+		new GrammarsPrecompiler(new File(classesB,
+				GrammarsPrecompiler.CLASSPATH_DIRECTORY))
+				.precompile(GrammarsPrecompiler.listDirectory(inB));
+		ClassLoader cl = new URLClassLoader(new URL[] {
+				classes.toURI().toURL(), classesB.toURI().toURL() }, null);
+
+		GrammarFactory gf = GrammarFactory.newInstance();
+		Grammars g = gf.createPrecompiledGrammars("a.xsd", cl);
+		assertEquals("a.xsd", g.getSchemaId());
+		assertNotNull(g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("a"));
+
+		g = gf.createPrecompiledGrammars("b.xsd", cl);
+		assertEquals("b.xsd", g.getSchemaId());
+		assertNotNull(g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("b"));
+
+		// neither precompiled nor a schema location
+		try {
+			gf.createPrecompiledGrammars("c.xsd", cl);
+			fail("EXIException expected");
+		} catch (EXIException e) {
+			assertTrue(e.getMessage().indexOf("c.xsd") >= 0);
+		}
+
+		// no precompiled grammars, built at runtime
+		GrammarCacheTest.writeSchema(fA, schemaB);
+		g = gf.createPrecompiledGrammars(fA.getAbsolutePath(), cl);
+		assertEquals(fA.getAbsolutePath(), g.getSchemaId());
+		assertNotNull(g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext("b"));
+	}
+
+}
@@ -1,15 +1,23 @@
 package com.siemens.ct.exi.grammars.persistency;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
 import org.junit.Test;
 
+import com.siemens.ct.exi.datatype.Datatype;
 import com.siemens.ct.exi.exceptions.EXIException;
 import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
 import com.siemens.ct.exi.grammars.XSDGrammarsBuilder;
+import com.siemens.ct.exi.grammars.event.DatatypeEvent;
+import com.siemens.ct.exi.grammars.event.Event;
+import com.siemens.ct.exi.grammars.grammar.Grammar;
 
 public class Grammars2JSONTest extends TestCase {
 	
@@ -42,4 +50,60 @@ public class Grammars2JSONTest extends TestCase {
 		_test(xsd);
 	}
 
+
+	@Test
+	public void testCompact() throws EXIException, IOException {
+		grammarBuilder.loadGrammars("data/W3C/PrimerNotebook/notebook.xsd");
+		SchemaInformedGrammars grammars = grammarBuilder.toGrammars();
+
+		Grammars2JSON g2j = new Grammars2JSON();
+		g2j.setCompact(true);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		g2j.toGrammarsJSON(grammars, baos);
+		String json = new String(baos.toByteArray(), "UTF-8");
+		assertTrue(json.indexOf('\n') == -1);
+		assertTrue(json.indexOf('\t') == -1);
+
+		// same grammars as the indented form
+		SchemaInformedGrammars loaded = new JSON2Grammars()
+				.toGrammars(new ByteArrayInputStream(baos.toByteArray()));
+		assertTrue(Arrays.equals(GrammarsSnapshotTest.toSnapshot(grammars),
+				GrammarsSnapshotTest.toSnapshot(loaded)));
+	}
+
+	@Test
+	public void testDatatypeRegistry() throws EXIException, IOException {
+		grammarBuilder.loadGrammars("data/W3C/EXIforJSON/schema-for-json.xsd");
+		SchemaInformedGrammars grammars = grammarBuilder.toGrammars();
+
+		GrammarsPreperation gpreps = new GrammarsPreperation(false);
+		gpreps.prepareGrammars(grammars);
+		DatatypeRegistry datatypes = new DatatypeRegistry(true);
+		Map<Datatype, Integer> ids = new IdentityHashMap<Datatype, Integer>();
+		for (int i = 0; i < gpreps.getNumberOfGrammars(); i++) {
+			Grammar r = gpreps.getGrammar(i);
+			for (int k = 0; k < r.getNumberOfEvents(); k++) {
+				Event e = r.getProduction(k).getEvent();
+				if (e instanceof DatatypeEvent) {
+					Datatype dt = ((DatatypeEvent) e).getDatatype();
+					ids.put(dt, datatypes.register(dt));
+				}
+			}
+		}
+		assertTrue(datatypes.getNumberOfDatatypes() > 0);
+
+		for (Datatype dt : ids.keySet()) {
+			int id = ids.get(dt);
+			// stable IDs
+			assertEquals(id, datatypes.register(dt));
+			assertEquals(id, datatypes.getDatatypeID(dt));
+			// representative has the same structure
+			Datatype rep = datatypes.getDatatype(id);
+			assertTrue(dt == rep || DatatypeRegistry.isEqualDatatype(dt, rep));
+			// referenced datatypes come first
+			assertTrue(datatypes.getDatatypeID(dt.getBaseDatatype()) < id);
+			assertTrue(datatypes.getDatatypeID(dt.getGrammarEnumeration()) < id);
+		}
+	}
+
 }
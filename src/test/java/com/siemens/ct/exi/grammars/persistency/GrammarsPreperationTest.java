@@ -0,0 +1,91 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
+import com.siemens.ct.exi.grammars.XSDGrammarsBuilder;
+import com.siemens.ct.exi.grammars.grammar.Grammar;
+
+public class GrammarsPreperationTest extends TestCase {
+
+	protected static String getAnonymousType(int n) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<xs:complexType><xs:sequence>");
+		for (int i = 0; i < n; i++) {
+			sb.append("<xs:element name='e" + i + "' type='xs:int' />");
+		}
+		sb.append("</xs:sequence></xs:complexType>");
+		return sb.toString();
+	}
+
+	protected static SchemaInformedGrammars getGrammars(String xsd)
+			throws EXIException {
+		XSDGrammarsBuilder xsdGB = XSDGrammarsBuilder.newInstance();
+		xsdGB.loadGrammars(new ByteArrayInputStream(xsd.getBytes()));
+		return xsdGB.toGrammars();
+	}
+
+	protected static Grammar getElementGrammar(SchemaInformedGrammars g,
+			String localName) {
+		return g.getGrammarContext().getGrammarUriContext("")
+				.getQNameContext(localName).getGlobalStartElement()
+				.getGrammar();
+	}
+
+	public void testDeepEqualGrammars() throws EXIException, IOException {
+		// sequence much deeper than the former equality depth limit
+		int n = 200;
+		String xsd = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ "<xs:element name='a'>" + getAnonymousType(n)
+				+ "</xs:element>" + "<xs:element name='b'>"
+				+ getAnonymousType(n) + "</xs:element>" + "</xs:schema>";
+		SchemaInformedGrammars g = getGrammars(xsd);
+
+		GrammarsPreperation optimized = new GrammarsPreperation(true);
+		optimized.prepareGrammars(g);
+		assertEquals(optimized.getGrammarID(getElementGrammar(g, "a")),
+				optimized.getGrammarID(getElementGrammar(g, "b")));
+
+		GrammarsPreperation plain = new GrammarsPreperation(false);
+		plain.prepareGrammars(g);
+		assertTrue(plain.getGrammarID(getElementGrammar(g, "a")) != plain
+				.getGrammarID(getElementGrammar(g, "b")));
+		assertTrue(optimized.getNumberOfGrammars() < plain
+				.getNumberOfGrammars());
+	}
+
+	public void testDifferentGrammars() throws EXIException, IOException {
+		String xsd = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ "<xs:element name='a'>" + getAnonymousType(20)
+				+ "</xs:element>" + "<xs:element name='b'>"
+				+ getAnonymousType(21) + "</xs:element>" + "</xs:schema>";
+		SchemaInformedGrammars g = getGrammars(xsd);
+
+		GrammarsPreperation optimized = new GrammarsPreperation(true);
+		optimized.prepareGrammars(g);
+		assertTrue(optimized.getGrammarID(getElementGrammar(g, "a")) != optimized
+				.getGrammarID(getElementGrammar(g, "b")));
+	}
+
+	public void testDifferentDatatypes() throws EXIException, IOException {
+		// string datatypes differ in whitespace and schema type only
+		String xsd = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ "<xs:element name='a' type='xs:string' />"
+				+ "<xs:element name='b'><xs:simpleType>"
+				+ "<xs:restriction base='xs:string'>"
+				+ "<xs:whiteSpace value='collapse' />"
+				+ "</xs:restriction></xs:simpleType></xs:element>"
+				+ "</xs:schema>";
+		SchemaInformedGrammars g = getGrammars(xsd);
+
+		GrammarsPreperation optimized = new GrammarsPreperation(true);
+		optimized.prepareGrammars(g);
+		assertTrue(optimized.getGrammarID(getElementGrammar(g, "a")) != optimized
+				.getGrammarID(getElementGrammar(g, "b")));
+	}
+
+}
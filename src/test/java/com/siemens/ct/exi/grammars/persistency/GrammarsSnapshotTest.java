@@ -0,0 +1,269 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.siemens.ct.exi.Constants;
+import com.siemens.ct.exi.context.GrammarContext;
+import com.siemens.ct.exi.context.GrammarUriContext;
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
+import com.siemens.ct.exi.grammars.XSDGrammarsBuilder;
+import com.siemens.ct.exi.grammars.event.Event;
+import com.siemens.ct.exi.grammars.event.EventType;
+import com.siemens.ct.exi.grammars.event.StartElement;
+import com.siemens.ct.exi.grammars.grammar.Grammar;
+
+public class GrammarsSnapshotTest extends TestCase {
+
+	XSDGrammarsBuilder grammarBuilder = XSDGrammarsBuilder.newInstance();
+
+	public GrammarsSnapshotTest() throws EXIException {
+		super();
+	}
+
+	protected static byte[] toSnapshot(SchemaInformedGrammars grammars)
+			throws EXIException, IOException {
+		Grammars2Snapshot g2s = new Grammars2Snapshot();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		g2s.toGrammarsSnapshot(grammars, baos);
+		return baos.toByteArray();
+	}
+
+	protected void _test(String xsd) throws EXIException, IOException {
+		grammarBuilder.loadGrammars(xsd);
+		SchemaInformedGrammars grammars = grammarBuilder.toGrammars();
+		grammars.setSchemaId(xsd);
+
+		byte[] snapshot = toSnapshot(grammars);
+
+		Snapshot2Grammars s2g = new Snapshot2Grammars();
+		SchemaInformedGrammars loaded = s2g.toGrammars(new ByteArrayInputStream(
+				snapshot));
+
+		assertEquals(xsd, loaded.getSchemaId());
+		assertEquals(grammars.getGrammarContext()
+				.getNumberOfGrammarQNameContexts(), loaded.getGrammarContext()
+				.getNumberOfGrammarQNameContexts());
+
+		// writing the loaded grammars again must produce the same snapshot
+		assertTrue(Arrays.equals(snapshot, toSnapshot(loaded)));
+	}
+
+	@Test
+	public void testNotebook() throws EXIException, IOException {
+		String xsd = "data/W3C/PrimerNotebook/notebook.xsd";
+		_test(xsd);
+	}
+
+	@Test
+	public void testLongEnumerationValue() throws EXIException, IOException {
+		// more than 65535 UTF-8 bytes (DataOutput.writeUTF limit)
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 70000; i++) {
+			sb.append('x');
+		}
+		String schema = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ " <xs:element name='e'><xs:simpleType><xs:restriction base='xs:string'>"
+				+ "  <xs:enumeration value='" + sb + "' />"
+				+ "  <xs:enumeration value='y' />"
+				+ " </xs:restriction></xs:simpleType></xs:element>"
+				+ "</xs:schema>";
+		File f = File.createTempFile("longEnum", ".xsd");
+		f.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(schema.getBytes("UTF-8"));
+		fos.close();
+
+		_test(f.getAbsolutePath());
+	}
+
+	@Test
+	public void testEXIForJSON() throws EXIException, IOException {
+		String xsd = "data/W3C/EXIforJSON/schema-for-json.xsd";
+		_test(xsd);
+	}
+
+	protected static MappedGrammarsImage toImage(
+			SchemaInformedGrammars grammars, Map<QName, QName> baseTypes)
+			throws EXIException, IOException {
+		File f = File.createTempFile("grammars", ".img");
+		f.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream(f);
+		Grammars2Image g2i = new Grammars2Image();
+		g2i.setBaseTypes(baseTypes);
+		g2i.toGrammarsImage(grammars, fos);
+		fos.close();
+
+		return MappedGrammarsImage.map(f);
+	}
+
+	protected void _testImage(String xsd) throws EXIException, IOException {
+		grammarBuilder.loadGrammars(xsd);
+		SchemaInformedGrammars grammars = grammarBuilder.toGrammars();
+
+		MappedGrammarsImage image = toImage(grammars,
+				grammarBuilder.getBaseTypes());
+		assertEquals(grammars.getGrammarContext()
+				.getNumberOfGrammarQNameContexts(), image.getNumberOfQNames());
+
+		// document grammar: SD followed by DocContent
+		int doc = image.getDocumentGrammarID();
+		assertEquals(1, image.getNumberOfEvents(doc));
+		assertEquals(GrammarsConstants.SNAPSHOT_START_DOCUMENT,
+				image.getEvent(doc, 0));
+
+		// materialized grammars equal the original grammars
+		assertTrue(Arrays.equals(toSnapshot(grammars),
+				toSnapshot(image.toGrammars())));
+	}
+
+	@Test
+	public void testImageNotebook() throws EXIException, IOException {
+		_testImage("data/W3C/PrimerNotebook/notebook.xsd");
+	}
+
+	@Test
+	public void testImageEXIForJSON() throws EXIException, IOException {
+		_testImage("data/W3C/EXIforJSON/schema-for-json.xsd");
+	}
+
+	@Test
+	public void testImagePartial() throws EXIException, IOException {
+		String json = "http://www.w3.org/2015/EXI/json";
+		grammarBuilder.loadGrammars("data/W3C/EXIforJSON/schema-for-json.xsd");
+		SchemaInformedGrammars grammars = grammarBuilder.toGrammars();
+
+		MappedGrammarsImage image = toImage(grammars,
+				grammarBuilder.getBaseTypes());
+		SchemaInformedGrammars partial = image.toGrammars(Collections
+				.singleton(new QName(json, "string")));
+
+		// requested element and built-in types only
+		GrammarContext gc = partial.getGrammarContext();
+		assertNotNull(gc.getGrammarUriContext(json).getQNameContext("string")
+				.getGlobalStartElement().getGrammar());
+		assertNull(gc.getGrammarUriContext(json).getQNameContext("map")
+				.getGlobalStartElement());
+		assertNotNull(gc.getGrammarUriContext(Constants.XML_SCHEMA_NS_URI)
+				.getQNameContext("string").getTypeGrammar());
+
+		// same string table and event codes
+		assertEquals(grammars.getGrammarContext()
+				.getNumberOfGrammarQNameContexts(),
+				gc.getNumberOfGrammarQNameContexts());
+		Grammar docContent = grammars.getDocumentGrammar().getProduction(0)
+				.getNextGrammar();
+		Grammar partialDocContent = partial.getDocumentGrammar()
+				.getProduction(0).getNextGrammar();
+		assertEquals(docContent.getNumberOfEvents(),
+				partialDocContent.getNumberOfEvents());
+
+		// unloaded element keeps its event code, its grammar is unavailable
+		for (int i = 0; i < partialDocContent.getNumberOfEvents(); i++) {
+			Event ev = partialDocContent.getProduction(i).getEvent();
+			assertEquals(docContent.getProduction(i).getEvent().getEventType(),
+					ev.getEventType());
+			if (ev.isEventType(EventType.START_ELEMENT)) {
+				StartElement se = (StartElement) ev;
+				if ("string".equals(se.getQName().getLocalPart())) {
+					assertNotNull(se.getGrammar());
+				} else {
+					try {
+						se.getGrammar();
+						fail("Grammar of unloaded element " + se.getQName());
+					} catch (RuntimeException e) {
+						assertTrue(e.getCause() instanceof EXIException);
+						assertTrue(e.getCause().getMessage().indexOf(
+								se.getQName().getLocalPart()) >= 0);
+					}
+				}
+			}
+		}
+
+		try {
+			image.toGrammars(Collections.singleton(new QName(json, "foo")));
+			fail("Unknown global element accepted");
+		} catch (EXIException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testImagePartialDerivedType() throws EXIException,
+			IOException {
+		String schema = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+				+ " <xs:complexType name='base'><xs:sequence>"
+				+ "  <xs:element name='a' type='xs:string' />"
+				+ " </xs:sequence></xs:complexType>"
+				+ " <xs:complexType name='derived'><xs:complexContent>"
+				+ "  <xs:extension base='base'><xs:sequence>"
+				+ "   <xs:element name='b' type='xs:int' />"
+				+ "  </xs:sequence></xs:extension>"
+				+ " </xs:complexContent></xs:complexType>"
+				+ " <xs:complexType name='other'><xs:sequence>"
+				+ "  <xs:element name='c' type='xs:boolean' />"
+				+ " </xs:sequence></xs:complexType>"
+				+ " <xs:element name='e' type='base' />"
+				+ " <xs:element name='o' type='other' />" + "</xs:schema>";
+		File f = File.createTempFile("derived", ".xsd");
+		f.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(schema.getBytes("UTF-8"));
+		fos.close();
+
+		grammarBuilder.loadGrammars(f.getAbsolutePath());
+		SchemaInformedGrammars grammars = grammarBuilder.toGrammars();
+		assertEquals(new QName("", "base"), grammarBuilder.getBaseTypes()
+				.get(new QName("", "derived")));
+		GrammarUriContext guc = grammars.getGrammarContext()
+				.getGrammarUriContext("");
+
+		// xsi:type cast from base to derived needs the derived type grammar
+		MappedGrammarsImage image = toImage(grammars,
+				grammarBuilder.getBaseTypes());
+		assertTrue(image.hasBaseTypes());
+		GrammarUriContext partial = image
+				.toGrammars(Collections.singleton(new QName("", "e")))
+				.getGrammarContext().getGrammarUriContext("");
+		assertNotNull(partial.getQNameContext("base").getTypeGrammar());
+		Grammar derived = partial.getQNameContext("derived").getTypeGrammar();
+		assertNotNull(derived);
+		assertEquals(guc.getQNameContext("derived").getTypeGrammar()
+				.getNumberOfEvents(), derived.getNumberOfEvents());
+		// unrelated type is not loaded
+		assertNull(partial.getQNameContext("other").getTypeGrammar());
+
+		// without base types all global types are loaded
+		image = toImage(grammars, null);
+		assertFalse(image.hasBaseTypes());
+		partial = image.toGrammars(Collections.singleton(new QName("", "e")))
+				.getGrammarContext().getGrammarUriContext("");
+		assertNotNull(partial.getQNameContext("derived").getTypeGrammar());
+		assertNotNull(partial.getQNameContext("other").getTypeGrammar());
+	}
+
+	@Test
+	public void testInvalidSnapshot() throws IOException {
+		Snapshot2Grammars s2g = new Snapshot2Grammars();
+		try {
+			s2g.toGrammars(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 }));
+			fail("Invalid snapshot accepted");
+		} catch (EXIException e) {
+			// expected
+		}
+	}
+
+}
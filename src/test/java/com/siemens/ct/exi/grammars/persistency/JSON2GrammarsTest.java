@@ -0,0 +1,73 @@
+package com.siemens.ct.exi.grammars.persistency;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.siemens.ct.exi.exceptions.EXIException;
+import com.siemens.ct.exi.grammars.SchemaInformedGrammars;
+import com.siemens.ct.exi.grammars.XSDGrammarsBuilder;
+
+public class JSON2GrammarsTest extends TestCase {
+
+	XSDGrammarsBuilder grammarBuilder = XSDGrammarsBuilder.newInstance();
+
+	public JSON2GrammarsTest() throws EXIException {
+		super();
+	}
+
+	protected static byte[] toJSON(SchemaInformedGrammars grammars)
+			throws EXIException, IOException {
+		Grammars2JSON g2j = new Grammars2JSON();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		g2j.toGrammarsJSON(grammars, baos);
+		return baos.toByteArray();
+	}
+
+	protected void _test(String xsd) throws EXIException, IOException {
+		grammarBuilder.loadGrammars(xsd);
+		SchemaInformedGrammars grammars = grammarBuilder.toGrammars();
+
+		byte[] json = toJSON(grammars);
+
+		JSON2Grammars j2g = new JSON2Grammars();
+		SchemaInformedGrammars loaded = j2g.toGrammars(new ByteArrayInputStream(
+				json));
+
+		assertEquals(grammars.getGrammarContext()
+				.getNumberOfGrammarQNameContexts(), loaded.getGrammarContext()
+				.getNumberOfGrammarQNameContexts());
+
+		// writing the loaded grammars again must produce the same JSON
+		assertEquals(new String(json, "UTF-8"), new String(toJSON(loaded),
+				"UTF-8"));
+	}
+
+	@Test
+	public void testNotebook() throws EXIException, IOException {
+		String xsd = "data/W3C/PrimerNotebook/notebook.xsd";
+		_test(xsd);
+	}
+
+	@Test
+	public void testEXIForJSON() throws EXIException, IOException {
+		String xsd = "data/W3C/EXIforJSON/schema-for-json.xsd";
+		_test(xsd);
+	}
+
+	@Test
+	public void testMalformedJSON() throws EXIException {
+		JSON2Grammars j2g = new JSON2Grammars();
+		try {
+			j2g.toGrammars(new ByteArrayInputStream("{\"grs\": [".getBytes()));
+			fail("Malformed JSON accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}